@@ -0,0 +1,148 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.component.google.pubsub.consumer.GooglePubsubAcknowledge;
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionCandidates;
+import org.entur.ukur.subscription.Subscription;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * ET messages aggregated from the ET queue to be processed together, and the lookups they share so these
+ * are done once per batch instead of once per journey. Messages received with manual acknowledgement (Google
+ * Pub/Sub with ackMode=NONE) are acknowledged when the batch has been processed.
+ */
+class ETBatch {
+
+    private final long created = System.currentTimeMillis();
+    private final List<ETMessage> messages = new ArrayList<>();
+    private final List<Exchange> unacknowledged = new ArrayList<>();
+    private final HashMap<String, Set<Subscription>> subscriptionsOnLineRefOrCodespace = new HashMap<>();
+    private final HashMap<StopSequence, SubscriptionCandidates> candidatesForStopsInOrder = new HashMap<>();
+    private int lookups = 0;
+    private int sharedLookups = 0;
+
+    /**
+     * Aggregation strategy collecting the ETMessage (or EstimatedVehicleJourney) bodies into an ETBatch.
+     */
+    static Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+        ETMessage message = newExchange.getIn().getBody(ETMessage.class);
+        if (message == null) {
+            message = ETMessage.of(newExchange.getIn().getBody(EstimatedVehicleJourney.class));
+        }
+        if (oldExchange == null) {
+            ETBatch batch = new ETBatch();
+            batch.add(message, newExchange);
+            newExchange.getIn().setBody(batch);
+            return newExchange;
+        }
+        oldExchange.getIn().getBody(ETBatch.class).add(message, newExchange);
+        return oldExchange;
+    }
+
+    /**
+     * @param exchange the exchange the message was received in, kept until the batch is processed if the message is
+     *                 to be acknowledged by us
+     */
+    void add(ETMessage message, Exchange exchange) {
+        messages.add(message);
+        if (exchange.getIn().getHeader(GooglePubsubConstants.GOOGLE_PUBSUB_ACKNOWLEDGE) != null) {
+            unacknowledged.add(exchange);
+        }
+    }
+
+    /**
+     * Acknowledges the messages received with manual acknowledgement, so they are not delivered again.
+     */
+    void acknowledge() {
+        for (Exchange exchange : unacknowledged) {
+            exchange.getIn().getHeader(GooglePubsubConstants.GOOGLE_PUBSUB_ACKNOWLEDGE, GooglePubsubAcknowledge.class).ack(exchange);
+        }
+        unacknowledged.clear();
+    }
+
+    /**
+     * Negatively acknowledges the messages received with manual acknowledgement, so they are delivered again.
+     */
+    void reject() {
+        for (Exchange exchange : unacknowledged) {
+            exchange.getIn().getHeader(GooglePubsubConstants.GOOGLE_PUBSUB_ACKNOWLEDGE, GooglePubsubAcknowledge.class).nack(exchange);
+        }
+        unacknowledged.clear();
+    }
+
+    List<ETMessage> getMessages() {
+        return messages;
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    /**
+     * Milliseconds since the first message was added.
+     */
+    long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    Set<Subscription> getSubscriptionsOnLineRefOrCodespace(String lineRef, String codespace, BiFunction<String, String, Set<Subscription>> lookup) {
+        lookups++;
+        String key = lineRef + "|" + codespace;
+        Set<Subscription> subscriptions = subscriptionsOnLineRefOrCodespace.get(key);
+        if (subscriptions == null) {
+            subscriptions = lookup.apply(lineRef, codespace);
+            subscriptionsOnLineRefOrCodespace.put(key, subscriptions);
+        } else {
+            sharedLookups++;
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Journeys in the batch with the same stops and aimed times (typically updates of the same journey) share the
+     * lookup of subscriptions with from and to stops in order.
+     */
+    SubscriptionCandidates getCandidatesForStopsInOrder(StopSequence stops, Function<StopSequence, SubscriptionCandidates> lookup) {
+        lookups++;
+        SubscriptionCandidates candidates = candidatesForStopsInOrder.get(stops);
+        if (candidates == null) {
+            candidates = lookup.apply(stops);
+            candidatesForStopsInOrder.put(stops, candidates);
+        } else {
+            sharedLookups++;
+        }
+        return candidates;
+    }
+
+    /**
+     * Percentage of the lookups that was resolved from another journey in the batch.
+     */
+    int getDedupPercent() {
+        return lookups == 0 ? 0 : (100 * sharedLookups) / lookups;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.entur.avro.realtime.siri.converter.avro2jaxb.Avro2JaxbConverter;
+import org.entur.avro.realtime.siri.helper.JsonReader;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+
+/**
+ * An ET message as received from the queue: the refs needed to decide if the journey might be subscribed upon are
+ * read with a streaming pass over the Avro JSON payload, and the full JAXB EstimatedVehicleJourney is only converted
+ * from the payload when the journey is actually processed.
+ */
+final class ETMessage {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String payload;
+    private EstimatedVehicleJourney journey;
+    private String dataSource;
+    private String lineRef;
+    private String datedVehicleJourneyRef;
+    private String recordedAtTime;
+    private final List<String> stopPointRefs = new ArrayList<>();
+
+    private ETMessage(String payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * Reads the refs from the payload without converting it. If the payload can't be scanned it is converted right
+     * away, so errors are reported the same way as before.
+     */
+    static ETMessage decode(String payload) {
+        ETMessage message = new ETMessage(payload);
+        try (JsonParser parser = JSON_FACTORY.createParser(payload)) {
+            message.scan(parser);
+        } catch (IOException e) {
+            return of(convert(payload));
+        }
+        if (message.lineRef == null && message.dataSource == null && message.stopPointRefs.isEmpty()) {
+            //nothing recognized - don't risk skipping a journey on refs we didn't find
+            return of(convert(payload));
+        }
+        return message;
+    }
+
+    static ETMessage of(EstimatedVehicleJourney journey) {
+        ETMessage message = new ETMessage(null);
+        message.journey = journey;
+        if (journey != null) {
+            message.dataSource = journey.getDataSource();
+            message.lineRef = getStringValue(journey.getLineRef());
+            message.datedVehicleJourneyRef = getStringValue(journey.getDatedVehicleJourneyRef());
+            if (journey.getRecordedCalls() != null && journey.getRecordedCalls().getRecordedCalls() != null) {
+                for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                    message.addStopPointRef(getStringValue(call.getStopPointRef()));
+                }
+            }
+            if (journey.getEstimatedCalls() != null && journey.getEstimatedCalls().getEstimatedCalls() != null) {
+                for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                    message.addStopPointRef(getStringValue(call.getStopPointRef()));
+                }
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the full EstimatedVehicleJourney, converted from the payload the first time it is needed
+     */
+    EstimatedVehicleJourney getJourney() {
+        if (journey == null && payload != null) {
+            journey = convert(payload);
+        }
+        return journey;
+    }
+
+    /**
+     * @return true if the EstimatedVehicleJourney has been converted (or was given)
+     */
+    boolean isConverted() {
+        return journey != null;
+    }
+
+    /**
+     * @return true if there is neither a payload nor an EstimatedVehicleJourney
+     */
+    boolean isEmpty() {
+        return payload == null && journey == null;
+    }
+
+    String getDataSource() {
+        return dataSource;
+    }
+
+    String getLineRef() {
+        return lineRef;
+    }
+
+    String getDatedVehicleJourneyRef() {
+        return datedVehicleJourneyRef;
+    }
+
+    List<String> getStopPointRefs() {
+        return stopPointRefs;
+    }
+
+    ZonedDateTime getRecordedAtTime() {
+        if (journey != null) {
+            return journey.getRecordedAtTime();
+        }
+        if (recordedAtTime != null) {
+            try {
+                return ZonedDateTime.parse(recordedAtTime);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void scan(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object");
+        }
+        int depth = 1;
+        JsonToken token;
+        while (depth > 0 && (token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                depth++;
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            } else if (token == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if ("stopPointRef".equals(field)) {
+                    addStopPointRef(readString(parser));
+                } else if (depth == 1) {
+                    if ("dataSource".equals(field)) {
+                        dataSource = readString(parser);
+                    } else if ("lineRef".equals(field)) {
+                        lineRef = readString(parser);
+                    } else if ("datedVehicleJourneyRef".equals(field)) {
+                        datedVehicleJourneyRef = readString(parser);
+                    } else if ("recordedAtTime".equals(field)) {
+                        recordedAtTime = readString(parser);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the value of the current field: either a string, or the first string in an object (as with union types
+     * or ref structures).
+     */
+    private static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        if (token == JsonToken.START_OBJECT) {
+            String value = null;
+            int depth = 1;
+            while (depth > 0 && (token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (token == JsonToken.VALUE_STRING && value == null) {
+                    value = parser.getText();
+                }
+            }
+            return value;
+        }
+        if (token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+        }
+        return null;
+    }
+
+    private void addStopPointRef(String stopPointRef) {
+        if (stopPointRef != null) {
+            stopPointRefs.add(stopPointRef);
+        }
+    }
+
+    private static EstimatedVehicleJourney convert(String payload) {
+        return Avro2JaxbConverter.convert(JsonReader.readEstimatedVehicleJourney(payload));
+    }
+}
@@ -16,12 +16,18 @@
 package org.entur.ukur.camelroute;
 
 import com.codahale.metrics.Timer;
+import com.google.common.hash.BloomFilter;
+import jakarta.annotation.PreDestroy;
 import org.apache.camel.Exchange;
 import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.index.DeviationFilter;
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionCandidates;
 import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.JourneyChangeDetector;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
-import org.entur.ukur.subscription.DeviationType;
+import org.entur.ukur.service.SubscriptionFilterService;
 import org.entur.ukur.subscription.StopDetails;
 import org.entur.ukur.subscription.StopDetailsAndSubscriptions;
 import org.entur.ukur.subscription.Subscription;
@@ -31,23 +37,20 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import uk.org.siri.siri21.ArrivalBoardingActivityEnumeration;
-import uk.org.siri.siri21.CallStatusEnumeration;
-import uk.org.siri.siri21.DepartureBoardingActivityEnumeration;
 import uk.org.siri.siri21.EstimatedCall;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
-import uk.org.siri.siri21.RecordedCall;
 import uk.org.siri.siri21.ServiceFeatureRef;
 import uk.org.siri.siri21.StopAssignmentStructure;
 
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
@@ -55,8 +58,8 @@ import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
 
 @Service
 public class ETSubscriptionProcessor implements org.apache.camel.Processor {
-    private static final int DIRECTION_FROM = 1;
-    private static final int DIRECTION_TO = 2;
+    private static final long MAX_CACHED_STOP_PATTERNS = 50_000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -64,40 +67,84 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
     private MetricsService metricsService;
     private QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
     private FileStorageService fileStorageService;
+    private SubscriptionFilterService subscriptionFilterService;
+    private JourneyChangeDetector journeyChangeDetector;
+    private StopPatternCache stopPatterns;
     @Value("${ukur.camel.et.store.files:false}")
     private boolean storeMessagesToFile = false;
     @Value("${ukur.camel.et.skipCallTimeChecks:false}")
     boolean skipCallTimeChecks = false;
+    @Value("${ukur.camel.et.filter:true}")
+    boolean useSubscriptionFilter = true;
+    @Value("${ukur.camel.et.delta:true}")
+    boolean skipUnchangedJourneys = true;
+    @Value("${ukur.camel.et.parallel.threshold:0}")
+    int parallelMatchingThreshold = 0;
+    @Value("${ukur.camel.et.parallel.threads:0}")
+    int parallelMatchingThreads = 0;
+    private volatile ForkJoinPool matchingPool;
 
     @Autowired
     public ETSubscriptionProcessor(SubscriptionManager subscriptionManager,
                                    FileStorageService fileStorageService,
                                    MetricsService metricsService,
-                                   QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+                                   QuayAndStopPlaceMappingService quayAndStopPlaceMappingService,
+                                   SubscriptionFilterService subscriptionFilterService,
+                                   JourneyChangeDetector journeyChangeDetector) {
         this.fileStorageService = fileStorageService;
+        this.subscriptionFilterService = subscriptionFilterService;
+        this.journeyChangeDetector = journeyChangeDetector;
         this.subscriptionManager = subscriptionManager;
         this.metricsService = metricsService;
         this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
+        this.stopPatterns = new StopPatternCache(quayAndStopPlaceMappingService, MAX_CACHED_STOP_PATTERNS);
         logger.debug("Initializes...");
     }
 
     /**
-     * Expects inputstream with XML with EstimatedVehicleJourney as root element.
+     * Expects an {@link ETMessage} decoded from the queue, or inputstream with XML with EstimatedVehicleJourney as root element.
      */
     @Override
     public void process(Exchange exchange) {
+        ETMessage message = exchange.getIn().getBody(ETMessage.class);
+        if (message == null) {
+            message = ETMessage.of(exchange.getIn().getBody(EstimatedVehicleJourney.class));
+        }
+        process(message, null);
+    }
+
+    /**
+     * Expects an {@link ETBatch} aggregated from the ET queue, and processes its messages one by one with the lookups
+     * they have in common done once.
+     */
+    public void processBatch(Exchange exchange) {
+        ETBatch batch = exchange.getIn().getBody(ETBatch.class);
+        metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_SIZE).update(batch.size());
+        metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_LATENCY).update(batch.getAge());
         try {
-            EstimatedVehicleJourney estimatedVehicleJourney = exchange.getIn().getBody(EstimatedVehicleJourney.class);
-            ZonedDateTime timestamp = estimatedVehicleJourney.getRecordedAtTime();
+            for (ETMessage message : batch.getMessages()) {
+                process(message, batch);
+            }
+        } catch (RuntimeException e) {
+            batch.reject();
+            throw e;
+        }
+        batch.acknowledge();
+        metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_DEDUP).update(batch.getDedupPercent());
+        logger.debug("Processed batch with {} EstimatedVehicleJourneys ({}% of the lookups were shared)", batch.size(), batch.getDedupPercent());
+    }
 
-            if (estimatedVehicleJourney == null) {
+    private void process(ETMessage message, ETBatch batch) {
+        try {
+            if (message.isEmpty()) {
                 throw new IllegalArgumentException("No EstimatedVehicleJourney element...");
             }
+            ZonedDateTime timestamp = message.getRecordedAtTime();
             metricsService.registerReceivedMessage(EstimatedVehicleJourney.class);
 
-            if (processEstimatedVehicleJourney(estimatedVehicleJourney, timestamp)) {
+            if (processMessage(message, timestamp, batch)) {
                 if (storeMessagesToFile) {
-                    fileStorageService.writeToFile(estimatedVehicleJourney);
+                    fileStorageService.writeToFile(message.getJourney());
                 }
             }
             metricsService.registerMessageDelay(MetricsService.HISTOGRAM_PROCESSED_DELAY, timestamp);
@@ -108,15 +155,46 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
     }
 
     boolean processEstimatedVehicleJourney(EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
+        return processEstimatedVehicleJourney(estimatedVehicleJourney, timestamp, null);
+    }
+
+    boolean processEstimatedVehicleJourney(EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp, ETBatch batch) {
+        return processMessage(ETMessage.of(estimatedVehicleJourney), timestamp, batch);
+    }
+
+    /**
+     * The subscription filter is checked on the refs read from the message, so the EstimatedVehicleJourney is only
+     * converted from the payload when it might be subscribed upon.
+     *
+     * @param batch the batch the journey is processed as part of, or null
+     */
+    private boolean processMessage(ETMessage message, ZonedDateTime timestamp, ETBatch batch) {
+        if (useSubscriptionFilter && !mightBeSubscribed(message)) {
+            logger.trace("Skips EstimatedVehicleJourney (LineRef={}, DatedVehicleJourneyRef={}) - no subscriptions on its stops, line or codespace", message.getLineRef(), message.getDatedVehicleJourneyRef());
+            metricsService.getMeter(MetricsService.METER_ET_FILTER_MISS).mark();
+            return true;
+        }
+        EstimatedVehicleJourney estimatedVehicleJourney = message.getJourney();
         if (shouldIgnoreJourney(estimatedVehicleJourney)) {
             logger.debug("Ignores EstimatedVehicleJourney with LineRef {}", getStringValue(estimatedVehicleJourney.getLineRef()));
             metricsService.getMeter(MetricsService.METER_ET_IGNORED).mark();
             return false;
         }
+        String lineRef = getStringValue(estimatedVehicleJourney.getLineRef());
+        String codespace = estimatedVehicleJourney.getDataSource();
+        //stop matching is skipped when the calls are unchanged, but full messages carry more than we fingerprint
+        JourneyChangeDetector.JourneyVersion version = skipUnchangedJourneys ? journeyChangeDetector.getVersion(estimatedVehicleJourney) : null;
+        boolean stopsUnchanged = version != null && journeyChangeDetector.isUnchanged(version);
+        HashSet<Subscription> subscriptionsOnLineRefOrCodespace = findSubscriptionsOnLineRefOrCodespace(lineRef, codespace, batch);
+        if (stopsUnchanged && subscriptionsOnLineRefOrCodespace.isEmpty()) {
+            logger.trace("Skips EstimatedVehicleJourney (LineRef={}, DatedVehicleJourneyRef={}) - no changes since last version", lineRef, getStringValue(estimatedVehicleJourney.getDatedVehicleJourneyRef()));
+            return true;
+        }
         Timer timer = metricsService.getTimer(MetricsService.TIMER_ET_PROCESS);
         Timer.Context time = timer.time();
         try {
-            List<StopDetails> deviations = getDeviations(estimatedVehicleJourney);
+            JourneyTimeline timeline = JourneyTimeline.of(estimatedVehicleJourney);
+            List<StopDetails> deviations = getDeviations(timeline, System.currentTimeMillis());
             if (deviations.isEmpty()) {
                 logger.trace("Processes EstimatedVehicleJourney (LineRef={}, DatedVehicleJourneyRef={}) - no deviations", getStringValue(estimatedVehicleJourney.getLineRef()), getStringValue(estimatedVehicleJourney.getDatedVehicleJourneyRef()));
                 metricsService.getMeter(MetricsService.METER_ET_WITHOUT_DEVIATIONS).mark();
@@ -124,26 +202,17 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
                 logger.debug("Processes EstimatedVehicleJourney (LineRef={}, DatedVehicleJourneyRef={}) - with {} deviations", getStringValue(estimatedVehicleJourney.getLineRef()), getStringValue(estimatedVehicleJourney.getDatedVehicleJourneyRef()), deviations.size());
                 metricsService.getMeter(MetricsService.METER_ET_WITH_DEVIATIONS).mark();
             }
-            List<StopDetailsAndSubscriptions> affectedSubscriptions = findAffectedSubscriptions(deviations, estimatedVehicleJourney);
-            String lineRef = getStringValue(estimatedVehicleJourney.getLineRef());
-            String codespace = estimatedVehicleJourney.getDataSource();
-            HashSet<Subscription> subscriptionsToNoNotify = new HashSet<>();
-            for (StopDetailsAndSubscriptions stopDetailsAndSubscriptions : affectedSubscriptions) {
-                StopDetails stopDetails = stopDetailsAndSubscriptions.getStopDetails();
-                Duration delayDuration = stopDetails.getDelayDuration();
-
-                HashSet<Subscription> subscriptions = stopDetailsAndSubscriptions.getSubscriptions();
-                subscriptions.removeIf(s -> notIncluded(lineRef, s.getLineRefs()));
-                subscriptions.removeIf(s -> notIncluded(codespace, s.getCodespaces()));
-                if (delayDuration != null) {
-                    subscriptions.removeIf(s -> delayedLessThan(delayDuration, s.getMinimumDelay()));
+            if (!stopsUnchanged) {
+                StopPattern stopPattern = stopPatterns.get(JourneyChangeDetector.journeyKey(estimatedVehicleJourney), timeline);
+                List<StopDetailsAndSubscriptions> affectedSubscriptions = findAffectedSubscriptions(deviations, timeline, stopPattern, lineRef, codespace, batch);
+                HashSet<Subscription> subscriptionsToNoNotify = new HashSet<>();
+                for (StopDetailsAndSubscriptions stopDetailsAndSubscriptions : affectedSubscriptions) {
+                    HashSet<Subscription> subscriptions = stopDetailsAndSubscriptions.getSubscriptions();
+                    logger.debug(" - For stopPlace {} there are {} affected subscriptions ", stopDetailsAndSubscriptions.getStopDetails().getStopPointRef(), subscriptions.size());
+                    subscriptionsToNoNotify.addAll(subscriptions); //accumulates subscriptions as these are normally found twice (from and to)
                 }
-                subscriptions.removeIf(s -> deviationTypeFilter(s.getDeviationType(),stopDetails.getDeviationTypes()));
-                logger.debug(" - For stopPlace {} there are {} affected subscriptions ", stopDetails.getStopPointRef(), subscriptions.size());
-                subscriptionsToNoNotify.addAll(subscriptions); //accumulates subscriptions as these are normally found twice (from and to)
+                subscriptionManager.notifySubscriptionsOnStops(subscriptionsToNoNotify, estimatedVehicleJourney, timestamp);
             }
-            subscriptionManager.notifySubscriptionsOnStops(subscriptionsToNoNotify, estimatedVehicleJourney, timestamp);
-            HashSet<Subscription> subscriptionsOnLineRefOrCodespace = findSubscriptionsOnLineRefOrCodespace(lineRef, codespace);
             if (!subscriptionsOnLineRefOrCodespace.isEmpty()) {
                 if (deviations.isEmpty()) {
                     //only send to subscriptions with isPushAllData=true
@@ -152,6 +221,9 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
                 logger.debug(" - There are {} affected subscriptions on lineref={} or codespace={}", subscriptionsOnLineRefOrCodespace.size(), lineRef, codespace);
                 subscriptionManager.notifySubscriptionsWithFullMessage(subscriptionsOnLineRefOrCodespace, estimatedVehicleJourney, timestamp);
             }
+            if (version != null && !stopsUnchanged) {
+                journeyChangeDetector.processed(version);
+            }
         } finally {
             long nanos = time.stop();
             logger.debug("Done processing EstimatedVehicleJourney after {} ms", nanos / 1000000);
@@ -159,19 +231,33 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
         return true;
     }
 
-    private boolean deviationTypeFilter(DeviationType subscriptionDeviationType, Set<DeviationType> stopDetailsDeviationTypes) {
-        return !subscriptionDeviationType.equals(DeviationType.ALL) && !stopDetailsDeviationTypes.contains(subscriptionDeviationType);
-
+    /**
+     * One pass over the journey's line, codespace and stops to check if any of them might be subscribed upon (no false
+     * negatives, but a few false positives).
+     */
+    private boolean mightBeSubscribed(ETMessage message) {
+        BloomFilter<CharSequence> filter = subscriptionFilterService.getFilter(ET);
+        if (filter == null) {
+            return true;
+        }
+        boolean mightBeSubscribed = mightContain(filter, message.getLineRef()) ||
+                mightContain(filter, message.getDataSource());
+        if (!mightBeSubscribed) {
+            for (String stopPointRef : message.getStopPointRefs()) {
+                if (mightContain(filter, stopPointRef)) {
+                    mightBeSubscribed = true;
+                    break;
+                }
+            }
+        }
+        if (mightBeSubscribed) {
+            metricsService.getMeter(MetricsService.METER_ET_FILTER_HIT).mark();
+        }
+        return mightBeSubscribed;
     }
 
-    private boolean delayedLessThan(Duration delayDuration, Duration minimumDelay) {
-        if (minimumDelay == null) {
-            return false;
-        } else {
-            var minimumDelayTimeInMillis = minimumDelay.toMillis();
-            var delayedArrivalInMillis = delayDuration.toMillis();
-            return delayedArrivalInMillis <= minimumDelayTimeInMillis;
-        }
+    private boolean mightContain(BloomFilter<CharSequence> filter, String value) {
+        return value != null && filter.mightContain(value);
     }
 
     private boolean shouldIgnoreJourney(EstimatedVehicleJourney estimatedVehicleJourney) {
@@ -185,175 +271,163 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
         return false;
     }
 
-    private boolean notIncluded(String value, Set<String> values) {
-        return !values.isEmpty() && StringUtils.isNotBlank(value) && !values.contains(value);
-    }
-
-    private HashSet<Subscription> findSubscriptionsOnLineRefOrCodespace(String lineRef, String codespace) {
-        HashSet<Subscription> subscriptions = new HashSet<>();
-        if (StringUtils.isNotBlank(lineRef)) {
-            Set<Subscription> lineRefSubscriptions = subscriptionManager.getSubscriptionsForLineRef(lineRef, ET);
-            lineRefSubscriptions.removeIf(s -> notIncluded(codespace, s.getCodespaces()));
-            subscriptions.addAll(lineRefSubscriptions);
+    private HashSet<Subscription> findSubscriptionsOnLineRefOrCodespace(String lineRef, String codespace, ETBatch batch) {
+        if (StringUtils.isBlank(lineRef) && StringUtils.isBlank(codespace)) {
+            return new HashSet<>();
         }
-        if (StringUtils.isNotBlank(codespace)) {
-            Set<Subscription> codespaceSubscriptions = subscriptionManager.getSubscriptionsForCodespace(codespace, ET);
-            codespaceSubscriptions.removeIf(s -> notIncluded(lineRef, s.getLineRefs()));
-            subscriptions.addAll(codespaceSubscriptions);
+        //the index intersects line and codespace for subscriptions that has both
+        if (batch != null) {
+            return new HashSet<>(batch.getSubscriptionsOnLineRefOrCodespace(lineRef, codespace,
+                    (l, c) -> subscriptionManager.getSubscriptionsForLineRefOrCodespace(l, c, ET)));
         }
-        return subscriptions;
+        return new HashSet<>(subscriptionManager.getSubscriptionsForLineRefOrCodespace(lineRef, codespace, ET));
     }
 
+    private SubscriptionCandidates findCandidatesForStopsInOrder(StopSequence stops, ETBatch batch) {
+        if (batch != null) {
+            return batch.getCandidatesForStopsInOrder(stops, s -> subscriptionManager.getCandidatesForStopsInOrder(s, ET));
+        }
+        return subscriptionManager.getCandidatesForStopsInOrder(stops, ET);
+    }
 
-    private List<StopDetailsAndSubscriptions> findAffectedSubscriptions(List<StopDetails> deviations, EstimatedVehicleJourney estimatedVehicleJourney) {
-        HashMap<String, StopData> stops = getStopData(estimatedVehicleJourney);
-        ArrayList<StopDetailsAndSubscriptions> affectedSubscriptions = new ArrayList<>();
+    /**
+     * Finds subscriptions with valid direction on this journey, and narrows them down per deviating stop on the
+     * attribute columns in the subscription index (line, codespace, deviation type and minimum delay). When the number
+     * of stops times the number of candidates reaches ukur.camel.et.parallel.threshold, the stops are matched in
+     * parallel.
+     */
+    private List<StopDetailsAndSubscriptions> findAffectedSubscriptions(List<StopDetails> deviations, JourneyTimeline timeline,
+                                                                         StopPattern stopPattern, String lineRef, String codespace,
+                                                                         ETBatch batch) {
+        //All subscriptions with valid direction on this journey in one pass, instead of a lookup and direction check per stop
+        SubscriptionCandidates candidates = findCandidatesForStopsInOrder(getStopSequence(stopPattern, timeline), batch)
+                .onLineRefAndCodespace(lineRef, codespace);
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ArrayList<StopMatching> matchings = new ArrayList<>();
         for (StopDetails deviation : deviations) {
-            HashSet<Subscription> subscriptions = new HashSet<>();
             String stopPoint = deviation.getStopPointRef();
             //TODO: we should possibly use stops from Destination/Arrival StopAssignment? Then a quay-only subscription could receive deviations on track-change as well (from and to the susbcribed quay)
             if (StringUtils.startsWithIgnoreCase(stopPoint, "NSR:")) {
                 //Bryr oss kun om stopPointRef på "nasjonalt format"
-                Set<Subscription> subs = subscriptionManager.getSubscriptionsForStopPoint(stopPoint, ET);
-                for (Subscription sub : subs) {
-                    if (validDirection(sub, stops)) {
-                        if (!deviation.getDeviationTypes().isEmpty() || subscribedStopDelayed(sub, stopPoint, deviation)) {
-                            subscriptions.add(sub);
-                        }
-                    }
-                }
-            }
-            if (!subscriptions.isEmpty()) {
-                affectedSubscriptions.add(new StopDetailsAndSubscriptions(deviation, subscriptions));
+                DeviationFilter filter = DeviationFilter.of(deviation.getDeviationTypes(), deviation.isDelayedDeparture(),
+                        deviation.isDelayedArrival(), deviation.getDelayDuration());
+                matchings.add(new StopMatching(deviation, stopPattern.getStopPlace(stopPoint), candidates, filter));
             }
         }
 
         //Get subscriptions with isPushAllData=true for all stops without deviations:
-        Set<String> stopRefs = stops.keySet();
-        stopRefs.removeAll(deviations.stream().map(StopDetails::getStopPointRef).collect(Collectors.toSet()));
-        for (String stopRef : stopRefs) {
-            HashSet<Subscription> subscriptions = new HashSet<>();
-            Set<Subscription> subs = subscriptionManager.getSubscriptionsForStopPoint(stopRef, ET);
-            for (Subscription sub : subs) {
-                if (sub.isPushAllData() && validDirection(sub, stops)) {
-                    subscriptions.add(sub);
+        SubscriptionCandidates pushAllDataCandidates = candidates.withPushAllData();
+        if (!pushAllDataCandidates.isEmpty()) {
+            Set<String> deviatingStops = deviations.stream().map(StopDetails::getStopPointRef).collect(Collectors.toSet());
+            for (int i = 0; i < stopPattern.size(); i++) {
+                String stopRef = stopPattern.getStopId(i);
+                if (!deviatingStops.contains(stopRef)) {
+                    matchings.add(new StopMatching(new StopDetails(stopRef), stopPattern.getStopPlace(stopRef), pushAllDataCandidates, DeviationFilter.NO_DEVIATIONS));
                 }
             }
-            if (!subscriptions.isEmpty()) {
-                affectedSubscriptions.add(new StopDetailsAndSubscriptions(new StopDetails(stopRef), subscriptions));
-            }
         }
 
-        return affectedSubscriptions;
-    }
-
-    private boolean subscribedStopDelayed(Subscription sub, String stopPoint, StopDetails deviation) {
-        if ((sub.getFromStopPoints().contains(stopPoint) && deviation.isDelayedDeparture()) ||
-                (sub.getToStopPoints().contains(stopPoint) && deviation.isDelayedArrival())) {
-            return true;
+        long work = (long) matchings.size() * candidates.size();
+        if (parallelMatchingThreshold > 0 && matchings.size() > 1 && work >= parallelMatchingThreshold) {
+            metricsService.getMeter(MetricsService.METER_ET_PARALLEL_MATCHING).mark();
+            return getMatchingPool().submit(() -> matchings.parallelStream()
+                    .map(this::match)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())).join();
         }
-
-        if (stopPoint.startsWith("NSR:Quay:")) {
-            String stopPlaceId = quayAndStopPlaceMappingService.mapQuayToStopPlace(stopPoint);
-            if (stopPlaceId != null) {
-                return (sub.getFromStopPoints().contains(stopPlaceId) && deviation.isDelayedDeparture()) ||
-                        (sub.getToStopPoints().contains(stopPlaceId) && deviation.isDelayedArrival());
+        ArrayList<StopDetailsAndSubscriptions> affectedSubscriptions = new ArrayList<>();
+        for (StopMatching matching : matchings) {
+            StopDetailsAndSubscriptions stopDetailsAndSubscriptions = match(matching);
+            if (stopDetailsAndSubscriptions != null) {
+                affectedSubscriptions.add(stopDetailsAndSubscriptions);
             }
         }
-
-        return false;
+        return affectedSubscriptions;
     }
 
-    boolean validDirection(Subscription subscription, HashMap<String, StopData> stops) {
-        ZonedDateTime fromTime = findOne(stops, subscription.getFromStopPoints(), DIRECTION_FROM);
-        ZonedDateTime toTime = findOne(stops, subscription.getToStopPoints(), DIRECTION_TO);
-        return fromTime != null && toTime != null && fromTime.isBefore(toTime);
+    /**
+     * @return the subscriptions affected on the stop, or null if there are none
+     */
+    private StopDetailsAndSubscriptions match(StopMatching matching) {
+        String stopRef = matching.stopDetails.getStopPointRef();
+        HashSet<Subscription> subscriptions = matching.candidates.getSubscriptionsOnStop(stopRef, matching.stopPlaceId, matching.filter);
+        return subscriptions.isEmpty() ? null : new StopDetailsAndSubscriptions(matching.stopDetails, subscriptions);
     }
 
-    HashMap<String, StopData> getStopData(EstimatedVehicleJourney journey) {
-        HashMap<String, StopData> stops = new HashMap<>();
-        if (journey.getRecordedCalls() != null && journey.getRecordedCalls().getRecordedCalls() != null) {
-            for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
-                if (call.getStopPointRef() != null) {
-
-                    /*
-                     * Cannot rely only on departure-time - subscription TO last stop must also be allowed.
-                     * Using aimedArrival when aimedDeparture is not set.
-                     */
-                    ZonedDateTime time;
-                    if (call.getAimedDepartureTime() != null) {
-                        time = call.getAimedDepartureTime();
-                    } else {
-                        time = call.getAimedArrivalTime();
-                    }
-
-                    StopData data = new StopData(time);
-                    String stopPointRef = call.getStopPointRef().getValue();
-                    stops.put(stopPointRef, data);
+    /**
+     * Shuts down the pool for matching stops in parallel (if created), letting the matching in progress finish.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        ForkJoinPool pool = matchingPool;
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                if (!pool.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    logger.warn("The pool for matching ET stops in parallel did not finish within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
-        if (journey.getEstimatedCalls() != null && journey.getEstimatedCalls().getEstimatedCalls() != null) {
-            for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
-                if (call.getStopPointRef() != null) {
-
-                    /*
-                     * Cannot rely only on departure-time - subscription TO last stop must also be allowed.
-                     * Using aimedArrival when aimedDeparture is not set.
-                     */
-                    ZonedDateTime time;
-                    if (call.getAimedDepartureTime() != null) {
-                        time = call.getAimedDepartureTime();
-                    } else {
-                        time = call.getAimedArrivalTime();
-                    }
+    }
 
-                    StopData data = new StopData(time,
-                            call.getArrivalBoardingActivity(), call.getArrivalStatus(),
-                            call.getDepartureBoardingActivity(), call.getDepartureStatus());
-                    String stopPointRef = call.getStopPointRef().getValue();
-                    stops.put(stopPointRef, data);
+    private ForkJoinPool getMatchingPool() {
+        ForkJoinPool pool = matchingPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = matchingPool;
+                if (pool == null) {
+                    int parallelism = parallelMatchingThreads > 0 ? parallelMatchingThreads : Runtime.getRuntime().availableProcessors();
+                    logger.info("Creates pool with parallelism {} for matching ET stops in parallel", parallelism);
+                    pool = new ForkJoinPool(parallelism);
+                    matchingPool = pool;
                 }
             }
         }
-        HashMap<String, StopData> mappedStops = new HashMap<>();
-        for (Map.Entry<String, StopData> entry : stops.entrySet()) {
-            String stopPointId = entry.getKey();
-            if (stopPointId.startsWith("NSR:Quay:")) {
-                String stopPlaceId = quayAndStopPlaceMappingService.mapQuayToStopPlace(stopPointId);
-                if (stopPlaceId != null) {
-                    mappedStops.put(stopPlaceId, entry.getValue());
-                }
+        return pool;
+    }
+
+    /**
+     * The stops as input to the stop pair matching, ordered by aimed departure (or aimed arrival
+     * where there is no departure) and with the boarding/alighting activity of each call.
+     */
+    private StopSequence getStopSequence(StopPattern stopPattern, JourneyTimeline timeline) {
+        StopSequence sequence = new StopSequence(stopPattern.size());
+        for (int i = 0; i < stopPattern.size(); i++) {
+            int call = stopPattern.getCall(i);
+            long time = timeline.getAimedTime(call);
+            if (time != JourneyTimeline.NO_TIME) {
+                sequence.add(stopPattern.getStopId(i), time, timeline.isBoarding(call), timeline.isAlighting(call));
             }
         }
-        stops.putAll(mappedStops);
-        return stops;
+        return sequence;
     }
 
-    private List<StopDetails> getDeviations(EstimatedVehicleJourney estimatedVehicleJourney) {
-        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = estimatedVehicleJourney.getEstimatedCalls();
-        boolean cancelledJourney = Boolean.TRUE.equals(estimatedVehicleJourney.isCancellation());
+    StopSequence getStopSequence(EstimatedVehicleJourney journey) {
+        JourneyTimeline timeline = JourneyTimeline.of(journey);
+        return getStopSequence(StopPattern.of(timeline, quayAndStopPlaceMappingService), timeline);
+    }
+
+    private List<StopDetails> getDeviations(JourneyTimeline timeline, long now) {
         List<StopDetails> deviations = new ArrayList<>();
-        if (estimatedCalls != null && estimatedCalls.getEstimatedCalls() != null) {
-            for (EstimatedCall call : estimatedCalls.getEstimatedCalls()) {
-                if (futureEstimatedCall(call)) {
-                    if (cancelledJourney || Boolean.TRUE.equals(call.isCancellation())) {
-                        deviations.add(StopDetails.cancelled(getStringValue(call.getStopPointRef())));
-                    } else if (isTrackChange(call)) {
-                        deviations.add(StopDetails.trackChange(getStringValue(call.getStopPointRef())));
-                    } else {
-                        boolean delayedDeparture = call.getDepartureStatus() == CallStatusEnumeration.DELAYED || isDelayed(call.getAimedDepartureTime(), call.getExpectedDepartureTime());
-                        boolean delayedArrival = call.getArrivalStatus() == CallStatusEnumeration.DELAYED || isDelayed(call.getAimedArrivalTime(), call.getExpectedArrivalTime());
-                        if (delayedArrival && call.getArrivalStatus() == null) {
-                            call.setArrivalStatus(CallStatusEnumeration.DELAYED);
-                        }
-                        if (delayedDeparture && call.getDepartureStatus() == null) {
-                            call.setDepartureStatus(CallStatusEnumeration.DELAYED);
-                        }
-                        final Duration delayedArrivalDuration = getDelayedArrivalDuration(call.getAimedArrivalTime(), call.getExpectedArrivalTime());
-                        if (delayedArrival || delayedDeparture) {
-                            deviations.add(StopDetails.delayed(getStringValue(call.getStopPointRef()), delayedDeparture, delayedArrival, delayedArrivalDuration));
-                        }
+        for (int i = 0; i < timeline.size(); i++) {
+            if (timeline.isEstimated(i) && futureEstimatedCall(timeline, i, now)) {
+                EstimatedCall call = timeline.getEstimatedCall(i);
+                if (timeline.isCancelled(i)) {
+                    deviations.add(StopDetails.cancelled(timeline.getStopRef(i)));
+                } else if (isTrackChange(call)) {
+                    deviations.add(StopDetails.trackChange(timeline.getStopRef(i)));
+                } else {
+                    boolean delayedDeparture = timeline.isDelayedDeparture(i);
+                    boolean delayedArrival = timeline.isDelayedArrival(i);
+                    if (delayedArrival || delayedDeparture) {
+                        timeline.markDelayed(i, delayedArrival, delayedDeparture);
+                        long arrivalDelay = timeline.getArrivalDelay(i);
+                        Duration delayedArrivalDuration = arrivalDelay == JourneyTimeline.NO_TIME ? null : Duration.ofMillis(arrivalDelay);
+                        deviations.add(StopDetails.delayed(timeline.getStopRef(i), delayedDeparture, delayedArrival, delayedArrivalDuration));
                     }
                 }
             }
@@ -379,124 +453,21 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
         return false;
     }
 
-    private boolean futureEstimatedCall(EstimatedCall call) {
-        if (skipCallTimeChecks) {
-            return true;
-        }
-        ZonedDateTime now = ZonedDateTime.now();
-        ZonedDateTime expected = call.getExpectedDepartureTime();
-        ZonedDateTime aimed = call.getAimedDepartureTime();
-        if (expected == null && aimed == null) {
-            //no departure on last stop
-            expected = call.getExpectedArrivalTime();
-            aimed = call.getAimedArrivalTime();
-        }
-
-        if (expected != null) {
-            return now.isBefore(expected);
-        } else {
-            if (aimed != null) {
-                return now.isBefore(aimed);
-            } else {
-                return false;
-            }
-        }
+    private boolean futureEstimatedCall(JourneyTimeline timeline, int i, long now) {
+        return skipCallTimeChecks || timeline.isAfter(i, now);
     }
 
-    private Duration getDelayedArrivalDuration(ZonedDateTime aimed, ZonedDateTime expected) {
-        if (aimed != null && expected != null) {
-            final var isAfter = expected.isAfter(aimed);
-            if (isAfter) {
-                return Duration.between(aimed, expected);
-            }
-            return null;
-        }
-        return null;
-    }
-
-    private boolean isDelayed(ZonedDateTime aimed, ZonedDateTime expected) {
-        return aimed != null && expected != null && expected.isAfter(aimed);
-    }
-
-    private ZonedDateTime findOne(HashMap<String, StopData> stops, Set<String> fromStopPoints, int direction) {
-        for (String fromStopPoint : fromStopPoints) {
-            StopData stopData = stops.get(fromStopPoint);
-            if (stopData != null) {
-                switch (direction) {
-                    case DIRECTION_FROM:
-                        CallStatusEnumeration departureStatus = stopData.getDepartureStatus();
-                        if (departureStatus != null && departureStatus != CallStatusEnumeration.CANCELLED) {
-
-                            //Departure has NOT been cancelled - check departure-activity
-
-                            DepartureBoardingActivityEnumeration depActivity = stopData.getDepartureBoardingActivity();
-                            if (depActivity != null && depActivity != DepartureBoardingActivityEnumeration.BOARDING) {
-                                logger.debug("skips FROM StopPoint {} as it is not boarding for departure", fromStopPoint);
-                                return null;
-                            }
-                        }
-                        break;
-                    case DIRECTION_TO:
-                        CallStatusEnumeration arrivalStatus = stopData.getArrivalStatus();
-                        if (arrivalStatus != null && arrivalStatus != CallStatusEnumeration.CANCELLED) {
-
-                            //Arrival has NOT been cancelled - check arrival-activity
-
-                            ArrivalBoardingActivityEnumeration arrActivity = stopData.getArrivalBoardingActivity();
-                            if (arrActivity != null && arrActivity != ArrivalBoardingActivityEnumeration.ALIGHTING) {
-                                logger.debug("skips TO StopPoint {} as it is not alighting at arrival", fromStopPoint);
-                                return null;
-                            }
-                        }
-                        break;
-                }
-                return stopData.getAimedDepartureTime();
-            }
-        }
-        return null;
-    }
-
-    class StopData {
-        private final ZonedDateTime aimedDepartureTime;
-        private final ArrivalBoardingActivityEnumeration arrivalBoardingActivity;
-        private final CallStatusEnumeration arrivalStatus;
-        private final DepartureBoardingActivityEnumeration departureBoardingActivity;
-        private final CallStatusEnumeration departureStatus;
-
-        StopData(ZonedDateTime aimedDepartureTime) {
-            this(aimedDepartureTime, null, null, null, null);
-        }
-
-        StopData(ZonedDateTime aimedDepartureTime,
-                 ArrivalBoardingActivityEnumeration arrivalBoardingActivity,
-                 CallStatusEnumeration arrivalStatus,
-                 DepartureBoardingActivityEnumeration departureBoardingActivity,
-                 CallStatusEnumeration departureStatus) {
-            this.aimedDepartureTime = aimedDepartureTime;
-            this.arrivalBoardingActivity = arrivalBoardingActivity;
-            this.arrivalStatus = arrivalStatus;
-            this.departureBoardingActivity = departureBoardingActivity;
-            this.departureStatus = departureStatus;
-        }
-
-        ZonedDateTime getAimedDepartureTime() {
-            return aimedDepartureTime;
-        }
-
-        ArrivalBoardingActivityEnumeration getArrivalBoardingActivity() {
-            return arrivalBoardingActivity;
-        }
-
-        public CallStatusEnumeration getArrivalStatus() {
-            return arrivalStatus;
-        }
-
-        DepartureBoardingActivityEnumeration getDepartureBoardingActivity() {
-            return departureBoardingActivity;
-        }
-
-        public CallStatusEnumeration getDepartureStatus() {
-            return departureStatus;
+    private static class StopMatching {
+        private final StopDetails stopDetails;
+        private final String stopPlaceId;
+        private final SubscriptionCandidates candidates;
+        private final DeviationFilter filter;
+
+        StopMatching(StopDetails stopDetails, String stopPlaceId, SubscriptionCandidates candidates, DeviationFilter filter) {
+            this.stopDetails = stopDetails;
+            this.stopPlaceId = stopPlaceId;
+            this.candidates = candidates;
+            this.filter = filter;
         }
     }
 
@@ -0,0 +1,226 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import uk.org.siri.siri21.ArrivalBoardingActivityEnumeration;
+import uk.org.siri.siri21.CallStatusEnumeration;
+import uk.org.siri.siri21.DepartureBoardingActivityEnumeration;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * The recorded and estimated calls of an EstimatedVehicleJourney converted once to epoch millis and status codes,
+ * so the time comparisons and delay calculations done while matching don't work on ZonedDateTime/Duration objects.
+ * Recorded calls come first, in the same order as in the journey, followed by the estimated calls.
+ */
+final class JourneyTimeline {
+
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final byte NO_STATUS = -1;
+    private static final byte DELAYED = (byte) CallStatusEnumeration.DELAYED.ordinal();
+    private static final byte CANCELLED = (byte) CallStatusEnumeration.CANCELLED.ordinal();
+
+    private final boolean cancelledJourney;
+    private final int recordedCalls;
+    private final int size;
+    private final String[] stopRefs;
+    private final long[] aimedArrival;
+    private final long[] expectedArrival;
+    private final long[] aimedDeparture;
+    private final long[] expectedDeparture;
+    private final byte[] arrivalStatus;
+    private final byte[] departureStatus;
+    private final boolean[] cancelled;
+    private final boolean[] notAlighting;
+    private final boolean[] notBoarding;
+    private final EstimatedCall[] estimatedCalls;
+
+    private JourneyTimeline(boolean cancelledJourney, int recordedCalls, int size) {
+        this.cancelledJourney = cancelledJourney;
+        this.recordedCalls = recordedCalls;
+        this.size = size;
+        stopRefs = new String[size];
+        aimedArrival = new long[size];
+        expectedArrival = new long[size];
+        aimedDeparture = new long[size];
+        expectedDeparture = new long[size];
+        arrivalStatus = new byte[size];
+        departureStatus = new byte[size];
+        cancelled = new boolean[size];
+        notAlighting = new boolean[size];
+        notBoarding = new boolean[size];
+        estimatedCalls = new EstimatedCall[size - recordedCalls];
+    }
+
+    static JourneyTimeline of(EstimatedVehicleJourney journey) {
+        List<RecordedCall> recorded = null;
+        if (journey.getRecordedCalls() != null) {
+            recorded = journey.getRecordedCalls().getRecordedCalls();
+        }
+        List<EstimatedCall> estimated = null;
+        if (journey.getEstimatedCalls() != null) {
+            estimated = journey.getEstimatedCalls().getEstimatedCalls();
+        }
+        int recordedCount = recorded == null ? 0 : recorded.size();
+        int estimatedCount = estimated == null ? 0 : estimated.size();
+        JourneyTimeline timeline = new JourneyTimeline(Boolean.TRUE.equals(journey.isCancellation()), recordedCount, recordedCount + estimatedCount);
+        int i = 0;
+        for (int r = 0; r < recordedCount; r++, i++) {
+            RecordedCall call = recorded.get(r);
+            timeline.stopRefs[i] = call.getStopPointRef() == null ? null : call.getStopPointRef().getValue();
+            timeline.aimedArrival[i] = millis(call.getAimedArrivalTime());
+            timeline.expectedArrival[i] = millis(call.getExpectedArrivalTime());
+            timeline.aimedDeparture[i] = millis(call.getAimedDepartureTime());
+            timeline.expectedDeparture[i] = millis(call.getExpectedDepartureTime());
+            timeline.arrivalStatus[i] = NO_STATUS;
+            timeline.departureStatus[i] = NO_STATUS;
+            timeline.cancelled[i] = Boolean.TRUE.equals(call.isCancellation());
+        }
+        for (int e = 0; e < estimatedCount; e++, i++) {
+            EstimatedCall call = estimated.get(e);
+            timeline.estimatedCalls[e] = call;
+            timeline.stopRefs[i] = call.getStopPointRef() == null ? null : call.getStopPointRef().getValue();
+            timeline.aimedArrival[i] = millis(call.getAimedArrivalTime());
+            timeline.expectedArrival[i] = millis(call.getExpectedArrivalTime());
+            timeline.aimedDeparture[i] = millis(call.getAimedDepartureTime());
+            timeline.expectedDeparture[i] = millis(call.getExpectedDepartureTime());
+            timeline.arrivalStatus[i] = status(call.getArrivalStatus());
+            timeline.departureStatus[i] = status(call.getDepartureStatus());
+            timeline.cancelled[i] = Boolean.TRUE.equals(call.isCancellation());
+            ArrivalBoardingActivityEnumeration arrivalActivity = call.getArrivalBoardingActivity();
+            timeline.notAlighting[i] = arrivalActivity != null && arrivalActivity != ArrivalBoardingActivityEnumeration.ALIGHTING;
+            DepartureBoardingActivityEnumeration departureActivity = call.getDepartureBoardingActivity();
+            timeline.notBoarding[i] = departureActivity != null && departureActivity != DepartureBoardingActivityEnumeration.BOARDING;
+        }
+        return timeline;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEstimated(int i) {
+        return i >= recordedCalls;
+    }
+
+    /**
+     * @return the estimated call at the given index (which must be an estimated call)
+     */
+    EstimatedCall getEstimatedCall(int i) {
+        return estimatedCalls[i - recordedCalls];
+    }
+
+    String getStopRef(int i) {
+        return stopRefs[i];
+    }
+
+    /**
+     * The time used to order the stops: aimed departure, or aimed arrival on the last stop where there is no departure.
+     */
+    long getAimedTime(int i) {
+        return aimedDeparture[i] != NO_TIME ? aimedDeparture[i] : aimedArrival[i];
+    }
+
+    boolean isCancelled(int i) {
+        return cancelledJourney || cancelled[i];
+    }
+
+    /**
+     * @return true if the call departs (or arrives, if it has no departure) after the given time
+     */
+    boolean isAfter(int i, long now) {
+        long expected = expectedDeparture[i];
+        long aimed = aimedDeparture[i];
+        if (expected == NO_TIME && aimed == NO_TIME) {
+            //no departure on last stop
+            expected = expectedArrival[i];
+            aimed = aimedArrival[i];
+        }
+        if (expected != NO_TIME) {
+            return now < expected;
+        }
+        return aimed != NO_TIME && now < aimed;
+    }
+
+    boolean isDelayedArrival(int i) {
+        return arrivalStatus[i] == DELAYED || isLate(aimedArrival[i], expectedArrival[i]);
+    }
+
+    boolean isDelayedDeparture(int i) {
+        return departureStatus[i] == DELAYED || isLate(aimedDeparture[i], expectedDeparture[i]);
+    }
+
+    /**
+     * @return how many millis the expected arrival is after the aimed arrival, or {@link #NO_TIME} if not late
+     */
+    long getArrivalDelay(int i) {
+        return isLate(aimedArrival[i], expectedArrival[i]) ? expectedArrival[i] - aimedArrival[i] : NO_TIME;
+    }
+
+    /**
+     * Sets missing arrival and/or departure status to DELAYED - on the timeline as well as on the estimated call, so
+     * the pushed journey shows the delay. Must be done before the journey is handed over for pushing, as the pushes
+     * share the calls.
+     */
+    void markDelayed(int i, boolean arrival, boolean departure) {
+        EstimatedCall call = getEstimatedCall(i);
+        if (arrival && arrivalStatus[i] == NO_STATUS) {
+            arrivalStatus[i] = DELAYED;
+            call.setArrivalStatus(CallStatusEnumeration.DELAYED);
+        }
+        if (departure && departureStatus[i] == NO_STATUS) {
+            departureStatus[i] = DELAYED;
+            call.setDepartureStatus(CallStatusEnumeration.DELAYED);
+        }
+    }
+
+    /**
+     * A subscription can start here unless departure is not cancelled and departure boarding activity is set to something else than boarding.
+     */
+    boolean isBoarding(int i) {
+        byte status = departureStatus[i];
+        return status == NO_STATUS || status == CANCELLED || !notBoarding[i];
+    }
+
+    /**
+     * A subscription can end here unless arrival is not cancelled and arrival boarding activity is set to something else than alighting.
+     */
+    boolean isAlighting(int i) {
+        byte status = arrivalStatus[i];
+        return status == NO_STATUS || status == CANCELLED || !notAlighting[i];
+    }
+
+    private static boolean isLate(long aimed, long expected) {
+        return aimed != NO_TIME && expected != NO_TIME && expected > aimed;
+    }
+
+    private static byte status(CallStatusEnumeration status) {
+        return status == null ? NO_STATUS : (byte) status.ordinal();
+    }
+
+    static long millis(ZonedDateTime time) {
+        if (time == null) {
+            return NO_TIME;
+        }
+        return time.toEpochSecond() * 1000 + time.getNano() / 1_000_000;
+    }
+}
@@ -108,6 +108,7 @@ public class SXSubscriptionProcessor implements Processor {
 
         com.codahale.metrics.Timer timer = metricsService.getTimer(MetricsService.TIMER_SX_PROCESS);
         Timer.Context time = timer.time();
+        SubscriptionLookups lookups = new SubscriptionLookups(subscriptionManager, SX);
         try {
             AffectsScopeStructure.VehicleJourneys vehicleJourneys = affects.getVehicleJourneys();
             HashSet<Subscription> subscriptionsToNotify = new HashSet<>();
@@ -115,7 +116,7 @@ public class SXSubscriptionProcessor implements Processor {
             if (vehicleJourneys != null && vehicleJourneys.getAffectedVehicleJourneies() != null) {
                 List<AffectedVehicleJourneyStructure> affectedVehicleJourneies = vehicleJourneys.getAffectedVehicleJourneies();
                 numberAffectedVehicleJourneys = affectedVehicleJourneies.size();
-                HashSet<Subscription> affectedVehicleJourneySubscriptions = findAffectedSubscriptions(affectedVehicleJourneies);
+                HashSet<Subscription> affectedVehicleJourneySubscriptions = findAffectedSubscriptions(affectedVehicleJourneies, lookups);
                 subscriptionsToNotify.addAll(affectedVehicleJourneySubscriptions);
             }
             HashSet<String> affectedLineRefs = findAffectedLineRefs(affects.getNetworks());
@@ -123,10 +124,10 @@ public class SXSubscriptionProcessor implements Processor {
             logger.debug("Processes PtSituationElement ({}) - with {} StopPlaces, {} VehicleJourneys and {} LineRefs (networks)",
                     getStringValue(ptSituationElement.getSituationNumber()), affectedStopPlaceRefs.size(), numberAffectedVehicleJourneys, affectedLineRefs.size());
             for (String ref : affectedLineRefs) {
-                subscriptionsToNotify.addAll(subscriptionManager.getSubscriptionsForLineRef(ref, SX));
+                subscriptionsToNotify.addAll(lookups.getSubscriptionsForLineRef(ref));
             }
             for (String ref : affectedStopPlaceRefs) {
-                subscriptionsToNotify.addAll(subscriptionManager.getSubscriptionsForStopPoint(ref, SX));
+                subscriptionsToNotify.addAll(lookups.getSubscriptionsForStopPoint(ref));
             }
 
             String codespace = getStringValue(ptSituationElement.getParticipantRef());
@@ -139,7 +140,7 @@ public class SXSubscriptionProcessor implements Processor {
                         logger.debug("Removed {} subscriptions that has limited codespace to something other than {}", (before-after), codespace);
                     }
                 }
-                Set<Subscription> subscriptionsForCodespace = subscriptionManager.getSubscriptionsForCodespace(codespace, SX);
+                Set<Subscription> subscriptionsForCodespace = lookups.getSubscriptionsForCodespace(codespace);
                 if (!subscriptionsForCodespace.isEmpty()) {
                     logger.debug("There are {} subscriptions on codespace (ParticipantRef) {}", subscriptionsForCodespace.size(), codespace);
                     subscriptionsToNotify.addAll(subscriptionsForCodespace);
@@ -156,6 +157,8 @@ public class SXSubscriptionProcessor implements Processor {
             }
         } finally {
             long nanos = time.stop();
+            metricsService.getMeter(MetricsService.METER_SX_LOOKUP_MEMO_HIT).mark(lookups.getHits());
+            metricsService.getMeter(MetricsService.METER_SX_LOOKUP_MEMO_MISS).mark(lookups.getLookups() - lookups.getHits());
             logger.debug("Done processing PtSituationElement after {} ms", nanos/1000000);
         }
         return true;
@@ -213,6 +216,14 @@ public class SXSubscriptionProcessor implements Processor {
     }
 
     HashSet<Subscription> findAffectedSubscriptions(List<AffectedVehicleJourneyStructure> affectedVehicleJourneies) {
+        return findAffectedSubscriptions(affectedVehicleJourneies, new SubscriptionLookups(subscriptionManager, SX));
+    }
+
+    /**
+     * The same stops and lines tend to be repeated for every route of every affected journey, so the index lookups
+     * go through the lookup context of the message.
+     */
+    private HashSet<Subscription> findAffectedSubscriptions(List<AffectedVehicleJourneyStructure> affectedVehicleJourneies, SubscriptionLookups lookups) {
         HashSet<Subscription> subscriptions = new HashSet<>();
         for (AffectedVehicleJourneyStructure affectedVehicleJourney : affectedVehicleJourneies) {
             List<AffectedRouteStructure> routes = affectedVehicleJourney.getRoutes();
@@ -242,7 +253,7 @@ public class SXSubscriptionProcessor implements Processor {
                 //TODO: ideally the SX message should have all data we need to find affected subscription, but it doesn't.. Can look up against route-data (OTP does that to match SX messages with
 
                 for (String stop : orderedListOfStops) {
-                    Set<Subscription> subscriptionsForStopPoint = subscriptionManager.getSubscriptionsForStopPoint(stop, SX);
+                    Set<Subscription> subscriptionsForStopPoint = lookups.getSubscriptionsForStopPoint(stop);
                     for (Subscription subscription : subscriptionsForStopPoint) {
                         Set<String> subscribedLines = subscription.getLineRefs();
                         if (subscribedLines.isEmpty() || (StringUtils.isNotBlank(lineRef) && subscribedLines.contains(lineRef)) ) {
@@ -259,17 +270,17 @@ public class SXSubscriptionProcessor implements Processor {
                         }
                     }
                 }
-                subscriptions.addAll(findSubscriptionsOnLineOrVehicle(lineRef));
+                subscriptions.addAll(findSubscriptionsOnLineOrVehicle(lineRef, lookups));
             }
         }
 
         return subscriptions;
     }
 
-    private HashSet<Subscription> findSubscriptionsOnLineOrVehicle(String lineRef) {
+    private HashSet<Subscription> findSubscriptionsOnLineOrVehicle(String lineRef, SubscriptionLookups lookups) {
         HashSet<Subscription> subscriptions = new HashSet<>();
         if (StringUtils.isNotBlank(lineRef)) {
-            Set<Subscription> subscriptionsForLineRef = subscriptionManager.getSubscriptionsForLineRef(lineRef, SX);
+            Set<Subscription> subscriptionsForLineRef = lookups.getSubscriptionsForLineRef(lineRef);
             logger.trace("Adds {} subscriptions regarding lineRef={}", subscriptionsForLineRef.size(), lineRef);
             subscriptions.addAll(subscriptionsForLineRef);
         }
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The stops of a journey derived from its calls: each quay/stop point and the stop place it belongs to, with the
+ * call it refers to. Only depends on the stop refs of the calls and the stop place/quay mapping, so it can be reused
+ * for every update of a journey as long as none of those change.
+ */
+final class StopPattern {
+
+    private final String[] callStopRefs;
+    private final long mappingVersion;
+    private final String[] stopIds;
+    private final int[] calls;
+    private final HashMap<String, String> quayToStopPlace;
+
+    private StopPattern(String[] callStopRefs, long mappingVersion, LinkedHashMap<String, Integer> stops, HashMap<String, String> quayToStopPlace) {
+        this.callStopRefs = callStopRefs;
+        this.mappingVersion = mappingVersion;
+        this.quayToStopPlace = quayToStopPlace;
+        stopIds = new String[stops.size()];
+        calls = new int[stops.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> stop : stops.entrySet()) {
+            stopIds[i] = stop.getKey();
+            calls[i] = stop.getValue();
+            i++;
+        }
+    }
+
+    static StopPattern of(JourneyTimeline timeline, QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+        long mappingVersion = quayAndStopPlaceMappingService.getVersion();
+        String[] callStopRefs = new String[timeline.size()];
+        LinkedHashMap<String, Integer> stops = new LinkedHashMap<>();
+        for (int call = 0; call < timeline.size(); call++) {
+            String stopRef = timeline.getStopRef(call);
+            callStopRefs[call] = stopRef;
+            if (stopRef != null) {
+                //a later call to the same stop replaces the earlier (estimated calls come after the recorded)
+                stops.put(stopRef, call);
+            }
+        }
+        HashMap<String, String> quayToStopPlace = new HashMap<>();
+        ArrayList<Map.Entry<String, Integer>> stopPlaces = new ArrayList<>();
+        for (Map.Entry<String, Integer> stop : stops.entrySet()) {
+            String stopRef = stop.getKey();
+            if (stopRef.startsWith("NSR:Quay:")) {
+                String stopPlaceId = quayAndStopPlaceMappingService.mapQuayToStopPlace(stopRef);
+                if (stopPlaceId != null) {
+                    quayToStopPlace.put(stopRef, stopPlaceId);
+                    stopPlaces.add(Map.entry(stopPlaceId, stop.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> stopPlace : stopPlaces) {
+            stops.put(stopPlace.getKey(), stopPlace.getValue());
+        }
+        return new StopPattern(callStopRefs, mappingVersion, stops, quayToStopPlace);
+    }
+
+    /**
+     * @return true if the timeline has the same stops in the same order, and the mapping is the same as when the
+     * pattern was created
+     */
+    boolean matches(JourneyTimeline timeline, long mappingVersion) {
+        if (this.mappingVersion != mappingVersion || callStopRefs.length != timeline.size()) {
+            return false;
+        }
+        for (int call = 0; call < callStopRefs.length; call++) {
+            String stopRef = timeline.getStopRef(call);
+            if (stopRef == null ? callStopRefs[call] != null : !stopRef.equals(callStopRefs[call])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of stops: the quays/stop points called at and the stop places they belong to
+     */
+    int size() {
+        return stopIds.length;
+    }
+
+    String getStopId(int i) {
+        return stopIds[i];
+    }
+
+    /**
+     * @return the index of the call (in the journey's timeline) the stop refers to
+     */
+    int getCall(int i) {
+        return calls[i];
+    }
+
+    /**
+     * @return the stop place the given quay belongs to, or null if not a (known) quay
+     */
+    String getStopPlace(String stopId) {
+        return quayToStopPlace.get(stopId);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+
+/**
+ * The last {@link StopPattern} per journey, so the stops don't have to be derived (and quays mapped to stop places)
+ * again on every update of the journey. Cleared when the stop place/quay mapping changes.
+ */
+final class StopPatternCache {
+
+    private final QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
+    private final Cache<String, StopPattern> patterns;
+    private volatile long mappingVersion;
+
+    StopPatternCache(QuayAndStopPlaceMappingService quayAndStopPlaceMappingService, long maximumSize) {
+        this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
+        this.patterns = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.mappingVersion = quayAndStopPlaceMappingService.getVersion();
+    }
+
+    /**
+     * @param journeyKey identifies the journey across updates, if null the pattern is derived without caching
+     */
+    StopPattern get(String journeyKey, JourneyTimeline timeline) {
+        long version = quayAndStopPlaceMappingService.getVersion();
+        if (version != mappingVersion) {
+            mappingVersion = version;
+            patterns.invalidateAll();
+        }
+        if (journeyKey == null) {
+            return StopPattern.of(timeline, quayAndStopPlaceMappingService);
+        }
+        StopPattern pattern = patterns.getIfPresent(journeyKey);
+        if (pattern == null || !pattern.matches(timeline, version)) {
+            pattern = StopPattern.of(timeline, quayAndStopPlaceMappingService);
+            patterns.put(journeyKey, pattern);
+        }
+        return pattern;
+    }
+
+    long size() {
+        return patterns.size();
+    }
+}
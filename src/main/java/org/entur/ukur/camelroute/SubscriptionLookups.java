@@ -0,0 +1,83 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionManager;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Memoizes subscription index lookups (including the quay to stop place mapping done for stop points) while one
+ * message is processed. Create one per message and throw it away afterwards: the memo is never invalidated, so it
+ * must not outlive a change to the subscriptions. Not thread safe.
+ */
+final class SubscriptionLookups {
+
+    private final SubscriptionManager subscriptionManager;
+    private final SubscriptionTypeEnum type;
+    private final HashMap<String, Set<Subscription>> stopPoints = new HashMap<>();
+    private final HashMap<String, Set<Subscription>> lineRefs = new HashMap<>();
+    private final HashMap<String, Set<Subscription>> codespaces = new HashMap<>();
+    private int lookups = 0;
+    private int hits = 0;
+
+    SubscriptionLookups(SubscriptionManager subscriptionManager, SubscriptionTypeEnum type) {
+        this.subscriptionManager = subscriptionManager;
+        this.type = type;
+    }
+
+    Set<Subscription> getSubscriptionsForStopPoint(String stopPointRef) {
+        return lookup(stopPoints, stopPointRef, ref -> subscriptionManager.getSubscriptionsForStopPoint(ref, type));
+    }
+
+    Set<Subscription> getSubscriptionsForLineRef(String lineRef) {
+        return lookup(lineRefs, lineRef, ref -> subscriptionManager.getSubscriptionsForLineRef(ref, type));
+    }
+
+    Set<Subscription> getSubscriptionsForCodespace(String codespace) {
+        return lookup(codespaces, codespace, ref -> subscriptionManager.getSubscriptionsForCodespace(ref, type));
+    }
+
+    /**
+     * @return number of lookups done through this context
+     */
+    int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return number of lookups answered from the memo instead of the subscription index
+     */
+    int getHits() {
+        return hits;
+    }
+
+    private Set<Subscription> lookup(HashMap<String, Set<Subscription>> memo, String ref, Function<String, Set<Subscription>> loader) {
+        lookups++;
+        Set<Subscription> subscriptions = memo.get(ref);
+        if (subscriptions != null) {
+            hits++;
+            return subscriptions;
+        }
+        subscriptions = loader.apply(ref);
+        memo.put(ref, subscriptions);
+        return subscriptions;
+    }
+}
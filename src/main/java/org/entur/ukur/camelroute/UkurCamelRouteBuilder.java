@@ -170,6 +170,13 @@ public class UkurCamelRouteBuilder extends RouteBuilder {
                 })
         ;
 
+        from("direct:map.avro.et.to.message")
+                .process(p -> {
+                    p.getOut().setBody(ETMessage.decode(p.getIn().getBody(String.class)));
+                    p.getOut().setHeaders(p.getIn().getHeaders());
+                })
+        ;
+
         from("direct:map.avro.sx.to.jaxb")
                 .process(p -> {
                     p.getOut().setBody(
@@ -205,13 +212,28 @@ public class UkurCamelRouteBuilder extends RouteBuilder {
         }
 
 
-        from(config.getEtPubsubQueue())
-                .routeId("ET pubsub Listener")
-                .log(LoggingLevel.DEBUG, "About to handle ET message from queue")
-                .to("direct:map.avro.et.to.jaxb")
-                .process(ETSubscriptionProcessor)
-                .log(LoggingLevel.DEBUG, "Done handling ET message from queue")
-                .end();
+        String etMapping = config.isEtLazyConversion() ? "direct:map.avro.et.to.message" : "direct:map.avro.et.to.jaxb";
+        if (config.getEtBatchSize() > 1) {
+            //messages are acknowledged when their batch has been processed
+            from(withManualAcknowledge(config.getEtPubsubQueue()))
+                    .routeId("ET pubsub Listener")
+                    .log(LoggingLevel.DEBUG, "About to handle ET message from queue")
+                    .to(etMapping)
+                    .aggregate(constant(true), ETBatch::aggregate)
+                        .completionSize(config.getEtBatchSize())
+                        .completionTimeout(config.getEtBatchTimeoutMillis())
+                        .process(ETSubscriptionProcessor::processBatch)
+                        .log(LoggingLevel.DEBUG, "Done handling batch of ET messages from queue")
+                    .end();
+        } else {
+            from(config.getEtPubsubQueue())
+                    .routeId("ET pubsub Listener")
+                    .log(LoggingLevel.DEBUG, "About to handle ET message from queue")
+                    .to(etMapping)
+                    .process(ETSubscriptionProcessor)
+                    .log(LoggingLevel.DEBUG, "Done handling ET message from queue")
+                    .end();
+        }
 
         from(config.getSxPubsubQueue())
                 .routeId("SX pubsub Listener")
@@ -227,6 +249,17 @@ public class UkurCamelRouteBuilder extends RouteBuilder {
 
     }
 
+    /**
+     * Google Pub/Sub endpoints otherwise acknowledge the message when the exchange completes, which for aggregated
+     * messages is when they are added to the batch. Other endpoints are returned as is.
+     */
+    static String withManualAcknowledge(String uri) {
+        if (!uri.startsWith("google-pubsub:")) {
+            return uri;
+        }
+        return uri + (uri.contains("?") ? "&" : "?") + "ackMode=NONE";
+    }
+
     private void createSingletonQuartzRoute(String timerName, int repeatInterval, String triggerRouteId, String toRouteId, String toRoute) {
         String uri = "quartz://ukur/" + timerName + "?trigger.repeatInterval=" + repeatInterval;
         singletonFrom(uri, triggerRouteId)
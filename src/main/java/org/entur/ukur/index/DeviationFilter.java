@@ -0,0 +1,78 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.entur.ukur.subscription.DeviationType;
+
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * Compiled predicate for subscriptions on a stop with (or without) a deviation: the same rules as we used to apply
+ * with a chain of filters per subscription, but evaluated on the columns in {@link SubscriptionAttributes}.
+ */
+public final class DeviationFilter {
+
+    /**
+     * Accepts all subscriptions on the stop that does not require a specific deviation type.
+     */
+    public static final DeviationFilter NO_DEVIATIONS = new DeviationFilter(false, 0, false, false, null);
+
+    private static final int ALL = DeviationType.ALL.ordinal();
+    private static final long NO_DELAY = Long.MIN_VALUE;
+
+    private final boolean deviating;
+    private final int deviationTypes;
+    private final boolean delayedDeparture;
+    private final boolean delayedArrival;
+    private final long delayMillis;
+
+    private DeviationFilter(boolean deviating, int deviationTypes, boolean delayedDeparture, boolean delayedArrival, Duration delay) {
+        this.deviating = deviating;
+        this.deviationTypes = deviationTypes;
+        this.delayedDeparture = delayedDeparture;
+        this.delayedArrival = delayedArrival;
+        this.delayMillis = delay == null ? NO_DELAY : delay.toMillis();
+    }
+
+    /**
+     * Subscriptions on a stop with the given deviations. If there are no deviation types, only subscriptions
+     * departing from or arriving at a delayed stop are accepted. Subscriptions with a minimum delay must be delayed
+     * more than that, and subscriptions on a specific deviation type must have that deviation.
+     */
+    public static DeviationFilter of(Set<DeviationType> deviationTypes, boolean delayedDeparture, boolean delayedArrival, Duration delay) {
+        int mask = 0;
+        for (DeviationType deviationType : deviationTypes) {
+            mask |= 1 << deviationType.ordinal();
+        }
+        return new DeviationFilter(true, mask, delayedDeparture, delayedArrival, delay);
+    }
+
+    boolean accepts(SubscriptionAttributes attributes, int ordinal, boolean fromStop, boolean toStop) {
+        if (deviating && deviationTypes == 0 && !((fromStop && delayedDeparture) || (toStop && delayedArrival))) {
+            return false;
+        }
+        if (delayMillis != NO_DELAY) {
+            long minimumDelay = attributes.minimumDelayMillis[ordinal];
+            if (minimumDelay != SubscriptionAttributes.NO_MINIMUM_DELAY && delayMillis <= minimumDelay) {
+                return false;
+            }
+        }
+        int deviationType = attributes.deviationTypes[ordinal];
+        return deviationType == ALL || (deviationTypes & (1 << deviationType)) != 0;
+    }
+}
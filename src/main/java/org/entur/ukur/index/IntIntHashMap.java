@@ -0,0 +1,105 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative int keys to int values, e.g. quay symbol to stop place symbol.
+ * Meant to be filled once and then only read (the quay mapping is rebuilt and swapped as a whole).
+ */
+public class IntIntHashMap {
+
+    private static final int EMPTY = -1;
+
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+    private final int capacity;
+    private int size = 0;
+
+    public IntIntHashMap(int expectedSize) {
+        int tableSize = IntObjectHashMap.capacityFor(expectedSize);
+        keys = new int[tableSize];
+        Arrays.fill(keys, EMPTY);
+        values = new int[tableSize];
+        mask = tableSize - 1;
+        capacity = tableSize / 2;
+    }
+
+    /**
+     * @return the value for the given key, or missingValue if not present
+     */
+    public int get(int key, int missingValue) {
+        if (key < 0) {
+            return missingValue;
+        }
+        int i = IntObjectHashMap.hash(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == EMPTY) {
+                return missingValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key < 0) {
+            return false;
+        }
+        int i = IntObjectHashMap.hash(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Only non-negative keys are supported, got " + key);
+        }
+        int i = IntObjectHashMap.hash(key, mask);
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == EMPTY) {
+                if (size == capacity) {
+                    throw new IllegalStateException("Map is full, it was created for " + capacity + " entries");
+                }
+                values[i] = value;
+                keys[i] = key;
+                size++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
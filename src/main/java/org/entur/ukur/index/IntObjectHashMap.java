@@ -0,0 +1,227 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.index;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with non-negative int keys (symbols or ordinals) that avoids boxing the keys.
+ * Writers copy the table and publish the copy through a volatile field, so lock-free readers always see a
+ * complete table (either before or after a modification). Meant for read-mostly maps, as every write is O(capacity).
+ */
+public class IntObjectHashMap<V> {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table;
+
+    public IntObjectHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntObjectHashMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key < 0) {
+            return null;
+        }
+        Table t = table;
+        int i = t.slot(key);
+        while (true) {
+            int k = t.keys[i];
+            if (k == key) {
+                return (V) t.values[i];
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    public V getOrDefault(int key, V defaultValue) {
+        V value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Only non-negative keys are supported, got " + key);
+        }
+        if (value == null) {
+            return remove(key);
+        }
+        Table current = table;
+        int i = current.find(key);
+        if (i >= 0) {
+            Table t = current.copy(current.keys.length, current.size);
+            V previous = (V) t.values[i];
+            t.values[i] = value;
+            table = t;
+            return previous;
+        }
+        int capacity = current.keys.length;
+        if ((current.size + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table t = current.copy(capacity, current.size + 1);
+        t.insert(key, value);
+        table = t;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        if (key < 0) {
+            return null;
+        }
+        Table current = table;
+        int i = current.find(key);
+        if (i < 0) {
+            return null;
+        }
+        Table t = current.copy(current.keys.length, current.size - 1);
+        V previous = (V) t.values[i];
+        //backward shift deletion so lookups never need tombstones:
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & t.mask;
+            int k = t.keys[j];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = t.slot(k);
+            if (((j - home) & t.mask) >= ((j - gap) & t.mask)) {
+                t.values[gap] = t.values[j];
+                t.keys[gap] = k;
+                gap = j;
+            }
+        }
+        t.keys[gap] = EMPTY;
+        t.values[gap] = null;
+        table = t;
+        return previous;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<V> consumer) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            int k = t.keys[i];
+            if (k != EMPTY) {
+                consumer.accept(k, (V) t.values[i]);
+            }
+        }
+    }
+
+    static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int hash(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+        final int mask;
+        final int size;
+
+        Table(int capacity, int size) {
+            keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            values = new Object[capacity];
+            mask = capacity - 1;
+            this.size = size;
+        }
+
+        private Table(int[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.mask = keys.length - 1;
+            this.size = size;
+        }
+
+        int slot(int key) {
+            return hash(key, mask);
+        }
+
+        int find(int key) {
+            int i = slot(key);
+            while (true) {
+                int k = keys[i];
+                if (k == key) {
+                    return i;
+                }
+                if (k == EMPTY) {
+                    return -1;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        void insert(int key, Object value) {
+            int i = slot(key);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        Table copy(int capacity, int newSize) {
+            if (capacity == keys.length) {
+                return new Table(keys.clone(), values.clone(), newSize);
+            }
+            Table t = new Table(capacity, newSize);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    t.insert(keys[i], values[i]);
+                }
+            }
+            return t;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+
+/**
+ * Ordinals of subscriptions per (from stop, to stop) pair, grouped on the from stop and sorted on the to stop.
+ * Matching a journey merges each from stop's pairs with the journey's stops sorted by symbol, so the cost
+ * depends on the journey length and the number of matches rather than how many subscriptions use the stops.
+ * Updates must be serialized by the caller; the pair lists are immutable so matching needs no locking.
+ */
+class StopPairIndex {
+
+    private static final long[] NO_PAIRS = new long[0];
+
+    private final IntObjectHashMap<long[]> pairsByFrom = new IntObjectHashMap<>();
+
+    void add(int from, int to, int ordinal) {
+        long[] pairs = pairsByFrom.getOrDefault(from, NO_PAIRS);
+        long pair = pair(to, ordinal);
+        int i = Arrays.binarySearch(pairs, pair);
+        if (i < 0) {
+            int insertAt = -i - 1;
+            long[] updated = new long[pairs.length + 1];
+            System.arraycopy(pairs, 0, updated, 0, insertAt);
+            updated[insertAt] = pair;
+            System.arraycopy(pairs, insertAt, updated, insertAt + 1, pairs.length - insertAt);
+            pairsByFrom.put(from, updated);
+        }
+    }
+
+    void remove(int from, int to, int ordinal) {
+        long[] pairs = pairsByFrom.get(from);
+        if (pairs == null) {
+            return;
+        }
+        int i = Arrays.binarySearch(pairs, pair(to, ordinal));
+        if (i >= 0) {
+            if (pairs.length == 1) {
+                pairsByFrom.remove(from);
+            } else {
+                long[] updated = new long[pairs.length - 1];
+                System.arraycopy(pairs, 0, updated, 0, i);
+                System.arraycopy(pairs, i + 1, updated, i, pairs.length - i - 1);
+                pairsByFrom.put(from, updated);
+            }
+        }
+    }
+
+    /**
+     * Adds the ordinals of all pairs where the from stop is boarding and comes before an alighting to stop.
+     * The arrays are indexed by position in the journey and each symbol must occur at most once.
+     */
+    void match(int[] symbols, long[] times, boolean[] boarding, boolean[] alighting, int n, RoaringBitmap result) {
+        //journey positions sorted on symbol, packed as symbol in the high and position in the low bits
+        long[] sortedStops = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedStops[i] = pair(symbols[i], i);
+        }
+        Arrays.sort(sortedStops);
+        for (int from = 0; from < n; from++) {
+            if (!boarding[from]) {
+                continue;
+            }
+            long[] pairs = pairsByFrom.get(symbols[from]);
+            if (pairs == null) {
+                continue;
+            }
+            if (pairs.length <= n) {
+                mergeMatch(pairs, sortedStops, times, alighting, times[from], result);
+            } else {
+                searchMatch(pairs, sortedStops, times, alighting, times[from], result);
+            }
+        }
+    }
+
+    private static void mergeMatch(long[] pairs, long[] sortedStops, long[] times, boolean[] alighting, long fromTime, RoaringBitmap result) {
+        int p = 0;
+        int s = 0;
+        while (p < pairs.length && s < sortedStops.length) {
+            int to = high(pairs[p]);
+            int stop = high(sortedStops[s]);
+            if (to < stop) {
+                p++;
+            } else if (to > stop) {
+                s++;
+            } else {
+                int position = low(sortedStops[s]);
+                if (alighting[position] && fromTime < times[position]) {
+                    result.add(low(pairs[p]));
+                }
+                p++;
+            }
+        }
+    }
+
+    private static void searchMatch(long[] pairs, long[] sortedStops, long[] times, boolean[] alighting, long fromTime, RoaringBitmap result) {
+        int p = 0;
+        for (long sortedStop : sortedStops) {
+            int position = low(sortedStop);
+            if (!alighting[position] || fromTime >= times[position]) {
+                continue;
+            }
+            int to = high(sortedStop);
+            p = lowerBound(pairs, p, pair(to, 0));
+            while (p < pairs.length && high(pairs[p]) == to) {
+                result.add(low(pairs[p]));
+                p++;
+            }
+        }
+    }
+
+    private static int lowerBound(long[] values, int fromIndex, long key) {
+        int i = Arrays.binarySearch(values, fromIndex, values.length, key);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    private static long pair(int high, int low) {
+        return ((long) high << 32) | low;
+    }
+
+    private static int high(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    private static int low(long pair) {
+        return (int) pair;
+    }
+}
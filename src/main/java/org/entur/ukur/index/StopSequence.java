@@ -0,0 +1,103 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import java.util.Arrays;
+
+/**
+ * The stops of a journey as input to {@link SubscriptionIndex#getSubscriptionsForStopsInOrder(StopSequence, org.entur.ukur.subscription.SubscriptionTypeEnum)}:
+ * each stop (quay or stop place) with the time used to order it, and whether it can be used as the from stop
+ * (boarding) and to stop (alighting) of a subscription.
+ */
+public class StopSequence {
+
+    private String[] stopRefs;
+    private long[] times;
+    private boolean[] boarding;
+    private boolean[] alighting;
+    private int size = 0;
+
+    public StopSequence(int expectedSize) {
+        int capacity = Math.max(expectedSize, 4);
+        stopRefs = new String[capacity];
+        times = new long[capacity];
+        boarding = new boolean[capacity];
+        alighting = new boolean[capacity];
+    }
+
+    public void add(String stopRef, long time, boolean boarding, boolean alighting) {
+        if (size == stopRefs.length) {
+            int capacity = size * 2;
+            stopRefs = Arrays.copyOf(stopRefs, capacity);
+            times = Arrays.copyOf(times, capacity);
+            this.boarding = Arrays.copyOf(this.boarding, capacity);
+            this.alighting = Arrays.copyOf(this.alighting, capacity);
+        }
+        stopRefs[size] = stopRef;
+        times[size] = time;
+        this.boarding[size] = boarding;
+        this.alighting[size] = alighting;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    String getStopRef(int i) {
+        return stopRefs[i];
+    }
+
+    long getTime(int i) {
+        return times[i];
+    }
+
+    boolean isBoarding(int i) {
+        return boarding[i];
+    }
+
+    boolean isAlighting(int i) {
+        return alighting[i];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StopSequence)) {
+            return false;
+        }
+        StopSequence other = (StopSequence) o;
+        return size == other.size &&
+                Arrays.equals(times, 0, size, other.times, 0, size) &&
+                Arrays.equals(boarding, 0, size, other.boarding, 0, size) &&
+                Arrays.equals(alighting, 0, size, other.alighting, 0, size) &&
+                Arrays.equals(stopRefs, 0, size, other.stopRefs, 0, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = size;
+        for (int i = 0; i < size; i++) {
+            h = 31 * h + stopRefs[i].hashCode();
+            h = 31 * h + Long.hashCode(times[i]);
+            h = 31 * h + (boarding[i] ? 1 : 0) + (alighting[i] ? 2 : 0);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * The attributes matched subscriptions are filtered on, in parallel arrays indexed by ordinal. Filters read these
+ * instead of the subscriptions, and so never allocates or follows pointers per candidate.
+ * <p>
+ * Slots are written once by the (single) index writer, before their ordinal is published, and never changed after
+ * that. The arrays never grow in place: {@link #copyOf(int)} is used and the copy is published instead.
+ */
+final class SubscriptionAttributes {
+
+    static final long NO_MINIMUM_DELAY = Long.MIN_VALUE;
+
+    final byte[] types;
+    final byte[] deviationTypes;
+    final long[] minimumDelayMillis;
+    final int[][] fromStops;
+    final int[][] toStops;
+    final int[][] lineRefs;
+    final int[][] codespaces;
+
+    SubscriptionAttributes(int capacity) {
+        this(new byte[capacity], new byte[capacity], new long[capacity],
+                new int[capacity][], new int[capacity][], new int[capacity][], new int[capacity][]);
+    }
+
+    private SubscriptionAttributes(byte[] types, byte[] deviationTypes, long[] minimumDelayMillis,
+                                   int[][] fromStops, int[][] toStops, int[][] lineRefs, int[][] codespaces) {
+        this.types = types;
+        this.deviationTypes = deviationTypes;
+        this.minimumDelayMillis = minimumDelayMillis;
+        this.fromStops = fromStops;
+        this.toStops = toStops;
+        this.lineRefs = lineRefs;
+        this.codespaces = codespaces;
+    }
+
+    int capacity() {
+        return types.length;
+    }
+
+    SubscriptionAttributes copyOf(int capacity) {
+        return new SubscriptionAttributes(Arrays.copyOf(types, capacity), Arrays.copyOf(deviationTypes, capacity),
+                Arrays.copyOf(minimumDelayMillis, capacity),
+                Arrays.copyOf(fromStops, capacity), Arrays.copyOf(toStops, capacity),
+                Arrays.copyOf(lineRefs, capacity), Arrays.copyOf(codespaces, capacity));
+    }
+
+    void set(int ordinal, Subscription subscription, int[] fromStops, int[] toStops, int[] lineRefs, int[] codespaces) {
+        this.types[ordinal] = (byte) subscription.getType().ordinal();
+        this.deviationTypes[ordinal] = (byte) subscription.getDeviationType().ordinal();
+        this.minimumDelayMillis[ordinal] = minimumDelayMillis(subscription);
+        this.fromStops[ordinal] = fromStops;
+        this.toStops[ordinal] = toStops;
+        this.lineRefs[ordinal] = lineRefs;
+        this.codespaces[ordinal] = codespaces;
+    }
+
+    /**
+     * True if the slot already holds what {@link #set} would write for the subscription (the stops are compared
+     * through the index entry).
+     */
+    boolean isSame(int ordinal, Subscription subscription, int[] lineRefs, int[] codespaces) {
+        return types[ordinal] == subscription.getType().ordinal() &&
+                deviationTypes[ordinal] == subscription.getDeviationType().ordinal() &&
+                minimumDelayMillis[ordinal] == minimumDelayMillis(subscription) &&
+                Arrays.equals(this.lineRefs[ordinal], lineRefs) &&
+                Arrays.equals(this.codespaces[ordinal], codespaces);
+    }
+
+    private static long minimumDelayMillis(Subscription subscription) {
+        Duration minimumDelay = subscription.getMinimumDelay();
+        return minimumDelay == null ? NO_MINIMUM_DELAY : minimumDelay.toMillis();
+    }
+
+    boolean hasType(int ordinal, SubscriptionTypeEnum type) {
+        int subscriptionType = types[ordinal];
+        return subscriptionType == SubscriptionTypeEnum.ALL.ordinal() || subscriptionType == type.ordinal();
+    }
+
+    /**
+     * True if the subscription has no restriction on the given values, or the symbol is among them (the symbols are
+     * sorted).
+     */
+    static boolean allows(int[] restrictions, int symbol) {
+        return restrictions.length == 0 || (symbol >= 0 && Arrays.binarySearch(restrictions, symbol) >= 0);
+    }
+
+    static boolean contains(int[] sortedSymbols, int symbol) {
+        return symbol >= 0 && Arrays.binarySearch(sortedSymbols, symbol) >= 0;
+    }
+}
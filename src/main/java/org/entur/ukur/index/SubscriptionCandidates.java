@@ -0,0 +1,143 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * Ordinals of subscriptions matched on a message, with the index snapshot they were matched in. Narrowing the
+ * candidates runs over the ordinals and the attribute columns only - subscriptions are not touched before they are
+ * selected.
+ */
+public final class SubscriptionCandidates {
+
+    private final SymbolTable symbols;
+    private final SubscriptionIndex.Entry[] entries;
+    private final SubscriptionAttributes attributes;
+    private final RoaringBitmap ordinals;
+    //pushAllData subscriptions on the matched stops, from their own postings
+    private final RoaringBitmap pushAllData;
+
+    SubscriptionCandidates(SymbolTable symbols, SubscriptionIndex.Entry[] entries, SubscriptionAttributes attributes,
+                           RoaringBitmap ordinals, RoaringBitmap pushAllData) {
+        this.symbols = symbols;
+        this.entries = entries;
+        this.attributes = attributes;
+        this.ordinals = ordinals;
+        this.pushAllData = pushAllData;
+    }
+
+    public boolean isEmpty() {
+        return ordinals.isEmpty();
+    }
+
+    public int size() {
+        return ordinals.getCardinality();
+    }
+
+    public Set<Subscription> getSubscriptions() {
+        HashSet<Subscription> subscriptions = new HashSet<>(ordinals.getCardinality());
+        IntIterator iterator = ordinals.getIntIterator();
+        while (iterator.hasNext()) {
+            add(subscriptions, iterator.next());
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Removes subscriptions restricted to other lines or codespaces. Blank values are not restricting.
+     */
+    public SubscriptionCandidates onLineRefAndCodespace(String lineRef, String codespace) {
+        boolean anyLine = StringUtils.isBlank(lineRef);
+        boolean anyCodespace = StringUtils.isBlank(codespace);
+        if (anyLine && anyCodespace) {
+            return this;
+        }
+        int line = anyLine ? SymbolTable.NO_SYMBOL : symbols.lookup(lineRef);
+        int codespaceSymbol = anyCodespace ? SymbolTable.NO_SYMBOL : symbols.lookup(codespace);
+        return retain(ordinal -> (anyLine || SubscriptionAttributes.allows(attributes.lineRefs[ordinal], line)) &&
+                (anyCodespace || SubscriptionAttributes.allows(attributes.codespaces[ordinal], codespaceSymbol)));
+    }
+
+    /**
+     * Intersects with the pushAllData postings of the matched stops, so it is cheap (and empty) when none of them has
+     * pushAllData subscriptions.
+     */
+    public SubscriptionCandidates withPushAllData() {
+        if (pushAllData.isEmpty()) {
+            return new SubscriptionCandidates(symbols, entries, attributes, pushAllData, pushAllData);
+        }
+        RoaringBitmap retained = RoaringBitmap.and(ordinals, pushAllData);
+        return retained.getCardinality() == ordinals.getCardinality() ? this : new SubscriptionCandidates(symbols, entries, attributes, retained, pushAllData);
+    }
+
+    /**
+     * The candidates with the stop or its stop place as a from or to stop, that are accepted by the filter.
+     */
+    public HashSet<Subscription> getSubscriptionsOnStop(String stopPointRef, String stopPlaceId, DeviationFilter filter) {
+        int stopPoint = symbols.lookup(stopPointRef);
+        int stopPlace = symbols.lookup(stopPlaceId);
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        if (stopPoint == SymbolTable.NO_SYMBOL && stopPlace == SymbolTable.NO_SYMBOL) {
+            return subscriptions;
+        }
+        IntIterator iterator = ordinals.getIntIterator();
+        while (iterator.hasNext()) {
+            int ordinal = iterator.next();
+            int[] from = attributes.fromStops[ordinal];
+            int[] to = attributes.toStops[ordinal];
+            boolean fromStop = SubscriptionAttributes.contains(from, stopPoint) || SubscriptionAttributes.contains(from, stopPlace);
+            boolean toStop = SubscriptionAttributes.contains(to, stopPoint) || SubscriptionAttributes.contains(to, stopPlace);
+            if ((fromStop || toStop) && filter.accepts(attributes, ordinal, fromStop, toStop)) {
+                add(subscriptions, ordinal);
+            }
+        }
+        return subscriptions;
+    }
+
+    SubscriptionCandidates ofType(SubscriptionTypeEnum type) {
+        return retain(ordinal -> ordinal < entries.length && entries[ordinal] != null && attributes.hasType(ordinal, type));
+    }
+
+    private void add(Set<Subscription> subscriptions, int ordinal) {
+        //ordinals are published after their entry, so this only guards against misuse of the snapshot
+        SubscriptionIndex.Entry entry = entries[ordinal];
+        if (entry != null) {
+            subscriptions.add(entry.subscription);
+        }
+    }
+
+    private SubscriptionCandidates retain(IntPredicate predicate) {
+        RoaringBitmap retained = new RoaringBitmap();
+        IntIterator iterator = ordinals.getIntIterator();
+        while (iterator.hasNext()) {
+            int ordinal = iterator.next();
+            if (predicate.test(ordinal)) {
+                retained.add(ordinal);
+            }
+        }
+        return retained.getCardinality() == ordinals.getCardinality() ? this : new SubscriptionCandidates(symbols, entries, attributes, retained, pushAllData);
+    }
+}
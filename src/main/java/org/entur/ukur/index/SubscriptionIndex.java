@@ -0,0 +1,522 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of subscriptions. Each subscription gets a dense ordinal, and stops, lines and codespaces
+ * have compressed bitmaps (posting lists) of ordinals - one per {@link SubscriptionTypeEnum} we can be asked for.
+ * <p>
+ * Updates are serialized and copy the bitmaps they touch before publishing them, so lookups never lock and
+ * never see a bitmap being modified. The entry and attributes of an ordinal are written once, before the ordinal is
+ * published in any posting: a subscription updated with other keys or attributes gets a new ordinal, and a removed
+ * one keeps its row until the index is rebuilt. A lookup racing with an update or removal therefore sees the
+ * subscription as it was before or after, never a partly written row. Lookups must read {@link #rows} after the
+ * postings, as rows published before the postings may not have grown to include the ordinal.
+ */
+public class SubscriptionIndex {
+
+    private static final RoaringBitmap EMPTY_BITMAP = new RoaringBitmap();
+    private static final SubscriptionTypeEnum[] TYPES = SubscriptionTypeEnum.values();
+
+    private final SymbolTable symbols;
+    private final ConcurrentHashMap<String, Integer> idToOrdinal = new ConcurrentHashMap<>();
+    private volatile Rows rows = new Rows(new Entry[64], new SubscriptionAttributes(64));
+    private int nextOrdinal = 0;
+
+    private final IntObjectHashMap<Postings> stops = new IntObjectHashMap<>();
+    //the subset of stops with subscriptions that want all data, so the no-deviation sweep can skip the others:
+    private final IntObjectHashMap<Postings> pushAllDataStops = new IntObjectHashMap<>();
+    private final IntObjectHashMap<Postings> linesNoStops = new IntObjectHashMap<>();
+    private final IntObjectHashMap<Postings> codespacesNoStops = new IntObjectHashMap<>();
+    private final StopPairIndex stopPairs = new StopPairIndex();
+    //subscriptions without stops that does not restrict on line or codespace, used to intersect line and codespace:
+    private volatile Postings anyLineNoStops = Postings.EMPTY;
+    private volatile Postings anyCodespaceNoStops = Postings.EMPTY;
+
+    public SubscriptionIndex() {
+        this(SymbolTable.nsr());
+    }
+
+    public SubscriptionIndex(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * What {@link #addOrUpdate(Subscription)} published. The rows are republished on every call, so anything built
+     * from the subscriptions or their attributes must be refreshed whatever the change is.
+     */
+    public enum Change {
+        /**
+         * Only the rows: the subscription instance or attributes it is filtered on (like minimum delay and deviation
+         * type) may have changed, but it is indexed on the same keys as before.
+         */
+        ROWS,
+        /**
+         * The subscription is new or indexed on other keys or type than before, so the postings have changed as well.
+         */
+        KEYS
+    }
+
+    public synchronized Change addOrUpdate(Subscription subscription) {
+        Entry entry = new Entry(subscription, symbols);
+        int[] lineRefs = entry.noStops ? entry.lineRefs : intern(subscription.getLineRefs(), symbols);
+        int[] codespaces = entry.noStops ? entry.codespaces : intern(subscription.getCodespaces(), symbols);
+        Integer existing = idToOrdinal.get(subscription.getId());
+        Rows current = rows;
+        if (existing != null) {
+            int ordinal = existing;
+            Entry previous = current.entries[ordinal];
+            if (previous.sameKeys(entry) && current.attributes.isSame(ordinal, subscription, lineRefs, codespaces)) {
+                //nothing we match or filter on has changed, only the subscription instance needs replacing
+                Entry[] entries = current.entries.clone();
+                entries[ordinal] = entry;
+                rows = new Rows(entries, current.attributes);
+                return Change.ROWS;
+            }
+        }
+        int ordinal = nextOrdinal++;
+        if (ordinal >= current.entries.length) {
+            int capacity = current.entries.length * 2;
+            current = new Rows(Arrays.copyOf(current.entries, capacity), current.attributes.copyOf(capacity));
+        }
+        //the slot has never been published, so it can be written in place before the ordinal is indexed
+        current.attributes.set(ordinal, subscription, entry.fromStops, entry.toStops, lineRefs, codespaces);
+        current.entries[ordinal] = entry;
+        rows = current;
+        index(ordinal, entry);
+        Entry previous = null;
+        if (existing != null) {
+            previous = current.entries[existing];
+            unindex(existing, previous, null);
+        }
+        idToOrdinal.put(subscription.getId(), ordinal);
+        return previous == null || !previous.sameKeys(entry) ? Change.KEYS : Change.ROWS;
+    }
+
+    /**
+     * @return true if the subscription was indexed
+     */
+    public synchronized boolean remove(String subscriptionId) {
+        Integer ordinal = idToOrdinal.remove(subscriptionId);
+        if (ordinal == null) {
+            return false;
+        }
+        unindex(ordinal, rows.entries[ordinal], null);
+        return true;
+    }
+
+    public Subscription get(String subscriptionId) {
+        Integer ordinal = idToOrdinal.get(subscriptionId);
+        if (ordinal == null) {
+            return null;
+        }
+        Entry entry = rows.entries[ordinal];
+        return entry == null ? null : entry.subscription;
+    }
+
+    public Collection<Subscription> getSubscriptions() {
+        List<Subscription> subscriptions = new ArrayList<>(idToOrdinal.size());
+        for (Entry entry : liveEntries()) {
+            subscriptions.add(entry.subscription);
+        }
+        return subscriptions;
+    }
+
+    public int size() {
+        return idToOrdinal.size();
+    }
+
+    /**
+     * All stops, lines and codespaces referred to by subscriptions found with the given type.
+     */
+    public Set<String> getSubscribedKeys(SubscriptionTypeEnum type) {
+        HashSet<Integer> keys = new HashSet<>();
+        for (Entry entry : liveEntries()) {
+            if (matches(entry.type, type)) {
+                for (int stop : entry.stops) {
+                    keys.add(stop);
+                }
+                for (int lineRef : entry.lineRefs) {
+                    keys.add(lineRef);
+                }
+                for (int codespace : entry.codespaces) {
+                    keys.add(codespace);
+                }
+            }
+        }
+        HashSet<String> names = new HashSet<>(keys.size());
+        for (Integer key : keys) {
+            names.add(symbols.name(key));
+        }
+        return names;
+    }
+
+    public Set<Subscription> getSubscriptionsForStopPoint(String stopPointRef, SubscriptionTypeEnum type) {
+        return toSubscriptions(bitmap(stops, stopPointRef, type));
+    }
+
+    public Set<Subscription> getSubscriptionsForLineRefAndNoStops(String lineRef, SubscriptionTypeEnum type) {
+        return toSubscriptions(bitmap(linesNoStops, lineRef, type));
+    }
+
+    public Set<Subscription> getSubscriptionsForCodespaceAndNoStops(String codespace, SubscriptionTypeEnum type) {
+        return toSubscriptions(bitmap(codespacesNoStops, codespace, type));
+    }
+
+    /**
+     * Finds subscriptions without stops that are on the given line and have no codespace or the given codespace,
+     * and those on the given codespace that have no line or the given line. Blank values are not restricting.
+     */
+    public Set<Subscription> getSubscriptionsForLineRefOrCodespaceAndNoStops(String lineRef, String codespace, SubscriptionTypeEnum type) {
+        boolean hasLineRef = StringUtils.isNotBlank(lineRef);
+        boolean hasCodespace = StringUtils.isNotBlank(codespace);
+        RoaringBitmap onLine = hasLineRef ? bitmap(linesNoStops, lineRef, type) : EMPTY_BITMAP;
+        RoaringBitmap onCodespace = hasCodespace ? bitmap(codespacesNoStops, codespace, type) : EMPTY_BITMAP;
+        if (!hasLineRef || !hasCodespace) {
+            return toSubscriptions(RoaringBitmap.or(onLine, onCodespace));
+        }
+        RoaringBitmap matches = RoaringBitmap.or(
+                RoaringBitmap.and(onLine, onCodespace),
+                RoaringBitmap.and(onLine, anyCodespaceNoStops.get(type)),
+                RoaringBitmap.and(onCodespace, anyLineNoStops.get(type)));
+        return toSubscriptions(matches);
+    }
+
+    /**
+     * Finds subscriptions with at least one of their from stops before one of their to stops in the given
+     * sequence, where the from stop is boarding and the to stop alighting.
+     */
+    public Set<Subscription> getSubscriptionsForStopsInOrder(StopSequence stops, SubscriptionTypeEnum type) {
+        return getCandidatesForStopsInOrder(stops, type).getSubscriptions();
+    }
+
+    /**
+     * Same as {@link #getSubscriptionsForStopsInOrder(StopSequence, SubscriptionTypeEnum)}, but as candidates that
+     * can be narrowed further before the subscriptions are collected.
+     */
+    public SubscriptionCandidates getCandidatesForStopsInOrder(StopSequence stops, SubscriptionTypeEnum type) {
+        int n = stops.size();
+        int[] symbolsInJourney = new int[n];
+        long[] times = new long[n];
+        boolean[] boarding = new boolean[n];
+        boolean[] alighting = new boolean[n];
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            int symbol = symbols.lookup(stops.getStopRef(i));
+            if (symbol != SymbolTable.NO_SYMBOL) {
+                symbolsInJourney[found] = symbol;
+                times[found] = stops.getTime(i);
+                boarding[found] = stops.isBoarding(i);
+                alighting[found] = stops.isAlighting(i);
+                found++;
+            }
+        }
+        RoaringBitmap ordinals = new RoaringBitmap();
+        RoaringBitmap pushAllData = EMPTY_BITMAP;
+        if (found > 1) {
+            stopPairs.match(symbolsInJourney, times, boarding, alighting, found, ordinals);
+            pushAllData = pushAllDataOnStops(symbolsInJourney, found, type);
+        }
+        Rows current = rows;
+        return new SubscriptionCandidates(symbols, current.entries, current.attributes, ordinals, pushAllData).ofType(type);
+    }
+
+    private RoaringBitmap pushAllDataOnStops(int[] stopSymbols, int n, SubscriptionTypeEnum type) {
+        if (pushAllDataStops.isEmpty()) {
+            return EMPTY_BITMAP;
+        }
+        RoaringBitmap pushAllData = null;
+        for (int i = 0; i < n; i++) {
+            Postings postings = pushAllDataStops.get(stopSymbols[i]);
+            if (postings != null) {
+                if (pushAllData == null) {
+                    pushAllData = new RoaringBitmap();
+                }
+                pushAllData.or(postings.get(type));
+            }
+        }
+        return pushAllData == null ? EMPTY_BITMAP : pushAllData;
+    }
+
+    private RoaringBitmap bitmap(IntObjectHashMap<Postings> postings, String ref, SubscriptionTypeEnum type) {
+        Postings found = postings.get(symbols.lookup(ref));
+        return found == null ? EMPTY_BITMAP : found.get(type);
+    }
+
+    private Set<Subscription> toSubscriptions(RoaringBitmap ordinals) {
+        Entry[] current = rows.entries;
+        HashSet<Subscription> subscriptions = new HashSet<>(ordinals.getCardinality());
+        IntIterator iterator = ordinals.getIntIterator();
+        while (iterator.hasNext()) {
+            int ordinal = iterator.next();
+            Entry entry = ordinal < current.length ? current[ordinal] : null;
+            if (entry != null) {
+                subscriptions.add(entry.subscription);
+            }
+        }
+        return subscriptions;
+    }
+
+    private List<Entry> liveEntries() {
+        Entry[] current = rows.entries;
+        List<Entry> live = new ArrayList<>(idToOrdinal.size());
+        for (int ordinal : idToOrdinal.values()) {
+            if (ordinal < current.length && current[ordinal] != null) {
+                live.add(current[ordinal]);
+            }
+        }
+        return live;
+    }
+
+    private void index(int ordinal, Entry entry) {
+        if (entry.noStops) {
+            add(linesNoStops, entry.lineRefs, ordinal, entry.type);
+            add(codespacesNoStops, entry.codespaces, ordinal, entry.type);
+            if (entry.lineRefs.length == 0) {
+                anyLineNoStops = anyLineNoStops.with(ordinal, entry.type);
+            }
+            if (entry.codespaces.length == 0) {
+                anyCodespaceNoStops = anyCodespaceNoStops.with(ordinal, entry.type);
+            }
+        } else {
+            add(stops, entry.stops, ordinal, entry.type);
+            if (entry.pushAllData) {
+                add(pushAllDataStops, entry.stops, ordinal, entry.type);
+            }
+            for (int from : entry.fromStops) {
+                for (int to : entry.toStops) {
+                    if (from != to) {
+                        stopPairs.add(from, to, ordinal);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the ordinal from postings of the previous entry that it is not (or no longer) indexed under.
+     */
+    private void unindex(int ordinal, Entry previous, Entry current) {
+        if (previous.noStops) {
+            boolean stillNoStops = current != null && current.noStops;
+            remove(linesNoStops, previous.lineRefs, stillNoStops ? current.lineRefs : null, ordinal);
+            remove(codespacesNoStops, previous.codespaces, stillNoStops ? current.codespaces : null, ordinal);
+            if (previous.lineRefs.length == 0 && !(stillNoStops && current.lineRefs.length == 0)) {
+                anyLineNoStops = anyLineNoStops.without(ordinal);
+            }
+            if (previous.codespaces.length == 0 && !(stillNoStops && current.codespaces.length == 0)) {
+                anyCodespaceNoStops = anyCodespaceNoStops.without(ordinal);
+            }
+        } else {
+            boolean stillStops = current != null && !current.noStops;
+            remove(stops, previous.stops, stillStops ? current.stops : null, ordinal);
+            if (previous.pushAllData) {
+                remove(pushAllDataStops, previous.stops, stillStops && current.pushAllData ? current.stops : null, ordinal);
+            }
+            for (int from : previous.fromStops) {
+                for (int to : previous.toStops) {
+                    if (!stillStops || !contains(current.fromStops, from) || !contains(current.toStops, to)) {
+                        stopPairs.remove(from, to, ordinal);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(IntObjectHashMap<Postings> postings, int[] keys, int ordinal, SubscriptionTypeEnum type) {
+        for (int key : keys) {
+            Postings existing = postings.getOrDefault(key, Postings.EMPTY);
+            Postings updated = existing.with(ordinal, type);
+            if (updated != existing) {
+                postings.put(key, updated);
+            }
+        }
+    }
+
+    private static void remove(IntObjectHashMap<Postings> postings, int[] keys, int[] keep, int ordinal) {
+        for (int key : keys) {
+            if (keep != null && contains(keep, key)) {
+                continue;
+            }
+            Postings existing = postings.get(key);
+            if (existing != null) {
+                Postings updated = existing.without(ordinal);
+                if (updated.isEmpty()) {
+                    postings.remove(key);
+                } else {
+                    postings.put(key, updated);
+                }
+            }
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(SubscriptionTypeEnum subscriptionType, SubscriptionTypeEnum queryType) {
+        return subscriptionType == SubscriptionTypeEnum.ALL || subscriptionType == queryType;
+    }
+
+    private static int[] intern(Collection<String> refs, SymbolTable symbols) {
+        return refs.stream().filter(StringUtils::isNotBlank).mapToInt(symbols::intern).distinct().sorted().toArray();
+    }
+
+    private static final class Rows {
+        final Entry[] entries;
+        final SubscriptionAttributes attributes;
+
+        Rows(Entry[] entries, SubscriptionAttributes attributes) {
+            this.entries = entries;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * What a subscription was indexed with, so it can be unindexed even if the subscription instance is modified.
+     */
+    static final class Entry {
+        final Subscription subscription;
+        final SubscriptionTypeEnum type;
+        final boolean noStops;
+        final boolean pushAllData;
+        final int[] stops;
+        final int[] fromStops;
+        final int[] toStops;
+        final int[] lineRefs;
+        final int[] codespaces;
+
+        Entry(Subscription subscription, SymbolTable symbols) {
+            this.subscription = subscription;
+            this.type = subscription.getType() == null ? SubscriptionTypeEnum.ALL : subscription.getType();
+            this.noStops = subscription.hasNoStops();
+            this.pushAllData = !noStops && subscription.isPushAllData();
+            if (noStops) {
+                this.stops = new int[0];
+                this.fromStops = new int[0];
+                this.toStops = new int[0];
+                this.lineRefs = intern(subscription.getLineRefs(), symbols);
+                this.codespaces = intern(subscription.getCodespaces(), symbols);
+            } else {
+                HashSet<String> allStops = new HashSet<>(subscription.getFromStopPoints());
+                allStops.addAll(subscription.getToStopPoints());
+                this.stops = intern(allStops, symbols);
+                this.fromStops = intern(subscription.getFromStopPoints(), symbols);
+                this.toStops = intern(subscription.getToStopPoints(), symbols);
+                this.lineRefs = new int[0];
+                this.codespaces = new int[0];
+            }
+        }
+
+        boolean sameKeys(Entry other) {
+            return type == other.type && noStops == other.noStops && pushAllData == other.pushAllData &&
+                    Arrays.equals(fromStops, other.fromStops) && Arrays.equals(toStops, other.toStops) &&
+                    Arrays.equals(lineRefs, other.lineRefs) && Arrays.equals(codespaces, other.codespaces);
+        }
+    }
+
+    /**
+     * Immutable posting lists for one key, with one bitmap per type we look up with (a subscription with type
+     * ALL is found with all types).
+     */
+    private static final class Postings {
+        static final Postings EMPTY = empty();
+
+        private final RoaringBitmap[] byType;
+
+        private Postings(RoaringBitmap[] byType) {
+            this.byType = byType;
+        }
+
+        private static Postings empty() {
+            RoaringBitmap[] byType = new RoaringBitmap[TYPES.length];
+            Arrays.fill(byType, EMPTY_BITMAP);
+            return new Postings(byType);
+        }
+
+        RoaringBitmap get(SubscriptionTypeEnum type) {
+            return byType[type.ordinal()];
+        }
+
+        boolean isEmpty() {
+            for (RoaringBitmap bitmap : byType) {
+                if (!bitmap.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return postings where the ordinal is in exactly the bitmaps matching the type (this if unchanged)
+         */
+        Postings with(int ordinal, SubscriptionTypeEnum subscriptionType) {
+            RoaringBitmap[] updated = null;
+            for (SubscriptionTypeEnum queryType : TYPES) {
+                int i = queryType.ordinal();
+                boolean shouldContain = matches(subscriptionType, queryType);
+                if (byType[i].contains(ordinal) != shouldContain) {
+                    if (updated == null) {
+                        updated = byType.clone();
+                    }
+                    RoaringBitmap copy = byType[i].clone();
+                    if (shouldContain) {
+                        copy.add(ordinal);
+                    } else {
+                        copy.remove(ordinal);
+                    }
+                    updated[i] = copy;
+                }
+            }
+            return updated == null ? this : new Postings(updated);
+        }
+
+        Postings without(int ordinal) {
+            RoaringBitmap[] updated = null;
+            for (int i = 0; i < byType.length; i++) {
+                if (byType[i].contains(ordinal)) {
+                    if (updated == null) {
+                        updated = byType.clone();
+                    }
+                    RoaringBitmap copy = byType[i].clone();
+                    copy.remove(ordinal);
+                    updated[i] = copy;
+                }
+            }
+            return updated == null ? this : new Postings(updated);
+        }
+    }
+}
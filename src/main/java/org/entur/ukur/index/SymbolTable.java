@@ -0,0 +1,91 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.index;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps string references (stop places, quays, lines, codespaces) to dense int symbols so the indexes
+ * can be keyed on primitives. Symbols are never released, so only ids we index (from subscriptions and
+ * the stop place/quay mapping) should be interned - message processing uses {@link #lookup(String)}
+ * which never grows the table.
+ */
+public class SymbolTable {
+
+    public static final int NO_SYMBOL = -1;
+
+    private static final SymbolTable NSR = new SymbolTable();
+
+    private final ConcurrentHashMap<String, Integer> symbols = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[1024];
+    private int next = 0;
+
+    /**
+     * The table shared by the subscription index and the stop place/quay mapping.
+     */
+    public static SymbolTable nsr() {
+        return NSR;
+    }
+
+    /**
+     * @return the symbol for the given reference, assigning a new one if it has not been seen before
+     */
+    public int intern(String ref) {
+        Integer symbol = symbols.get(ref);
+        if (symbol != null) {
+            return symbol;
+        }
+        synchronized (this) {
+            symbol = symbols.get(ref);
+            if (symbol != null) {
+                return symbol;
+            }
+            int newSymbol = next++;
+            String[] current = names;
+            if (newSymbol == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[newSymbol] = ref;
+            names = current;
+            symbols.put(ref, newSymbol);
+            return newSymbol;
+        }
+    }
+
+    /**
+     * @return the symbol for the given reference or {@link #NO_SYMBOL} if it is not interned (or null)
+     */
+    public int lookup(String ref) {
+        if (ref == null) {
+            return NO_SYMBOL;
+        }
+        Integer symbol = symbols.get(ref);
+        return symbol == null ? NO_SYMBOL : symbol;
+    }
+
+    public String name(int symbol) {
+        String[] current = names;
+        if (symbol < 0 || symbol >= current.length) {
+            return null;
+        }
+        return current[symbol];
+    }
+
+    public int size() {
+        return symbols.size();
+    }
+}
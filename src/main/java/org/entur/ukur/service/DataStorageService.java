@@ -16,6 +16,8 @@
 package org.entur.ukur.service;
 
 import com.google.cloud.Timestamp;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.cloud.datastore.BooleanValue;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.Entity;
@@ -31,6 +33,9 @@ import com.hazelcast.topic.ITopic;
 import com.hazelcast.topic.Message;
 import com.hazelcast.topic.MessageListener;
 import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionCandidates;
+import org.entur.ukur.index.SubscriptionIndex;
 import org.entur.ukur.subscription.DeviationType;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionTypeEnum;
@@ -45,9 +50,7 @@ import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -55,6 +58,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class DataStorageService implements MessageListener<String> {
@@ -63,23 +67,31 @@ public class DataStorageService implements MessageListener<String> {
     private static final String SUBSCRIPTION_ACTION_ADDED = "ADDED";
     private static final String SUBSCRIPTION_ACTION_UPDATED = "UPDATED";
     private static final String SUBSCRIPTION_ACTION_REMOVED = "REMOVED";
+    //weight is number of candidates plus stops per cached match
+    private static final long MAX_CACHED_CANDIDATES_WEIGHT = 5_000_000;
     Logger logger = LoggerFactory.getLogger(this.getClass());
     private final Datastore datastore;
     private final KeyFactory subscriptionkeyFactory;
     private ITopic<String> subscriptionCacheRenewerTopic;
 
-    private HashMap<String, Subscription> idToSubscription = new HashMap<>();
-    private HashMap<String, Set<String>> stopToSubscription = new HashMap<>();
-    private HashMap<String, Set<String>> lineNoStopsToSubscription = new HashMap<>();
-    private HashMap<String, Set<String>> codespaceNoStopsToSubscription = new HashMap<>();
+    private volatile SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+    private final AtomicLong subscriptionKeysVersion = new AtomicLong();
+    private final AtomicLong subscriptionsVersion = new AtomicLong();
+    private final Cache<CandidatesKey, SubscriptionCandidates> candidatesCache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_CANDIDATES_WEIGHT)
+            .weigher((CandidatesKey key, SubscriptionCandidates candidates) -> key.stops.size() + candidates.size())
+            .recordStats()
+            .build();
+    private final AtomicLong candidatesCacheInvalidations = new AtomicLong();
     private long lastReloadedTime = 0;
-    private static final int CONCURRENTMODIFICATION_ATTEMPTS = 3;
     private final String serviceId = UUID.randomUUID().toString();
-    public DataStorageService(Datastore datastore, ITopic<String> subscriptionCacheRenewerTopic) {
+    public DataStorageService(Datastore datastore, ITopic<String> subscriptionCacheRenewerTopic, MetricsService metricsService) {
         this.datastore = datastore;
         this.subscriptionkeyFactory = datastore.newKeyFactory().setKind(KIND_SUBSCRIPTIONS);
         this.subscriptionCacheRenewerTopic = subscriptionCacheRenewerTopic;
         this.subscriptionCacheRenewerTopic.addMessageListener(this);
+        metricsService.registerGauge(MetricsService.GAUGE_MATCH_CACHE_HIT_RATIO, this::getCandidatesCacheHitRatio);
+        metricsService.registerGauge(MetricsService.GAUGE_MATCH_CACHE_INVALIDATIONS, this::getCandidatesCacheInvalidations);
         //To support that subscriptions are changed from the console (or we get out of sync...)
         Executors.newScheduledThreadPool(1).scheduleWithFixedDelay(() -> {
             try {
@@ -116,113 +128,119 @@ public class DataStorageService implements MessageListener<String> {
         Set<Subscription> subscriptions = convertSubscription(entities);
         logger.info("Converted to {} subscriptions", subscriptions.size());
 
-        HashMap<String, Subscription> idToSubscription = new HashMap<>();
-        HashMap<String, Set<String>> stopToSubscription = new HashMap<>();
-        HashMap<String, Set<String>> lineNoStopsToSubscription = new HashMap<>();
-        HashMap<String, Set<String>> codespaceNoStopsToSubscription = new HashMap<>();
+        SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
         for (Subscription subscription : subscriptions) {
-            addOrUpdateSubscriptionInLocalStorage(idToSubscription, stopToSubscription, lineNoStopsToSubscription, codespaceNoStopsToSubscription, subscription);
+            subscriptionIndex.addOrUpdate(subscription);
         }
-        updateSubscriptionCache(idToSubscription, stopToSubscription, lineNoStopsToSubscription, codespaceNoStopsToSubscription);
+        updateSubscriptionCache(subscriptionIndex);
         logger.info("Cache updated");
     }
 
-    private void addOrUpdateSubscriptionInLocalStorage(HashMap<String, Subscription> idToSubscription, HashMap<String, Set<String>> stopToSubscription, HashMap<String, Set<String>> lineNoStopsToSubscription, HashMap<String, Set<String>> codespaceNoStopsToSubscription, Subscription subscription) {
-        idToSubscription.put(subscription.getId(), subscription);
-        if (subscription.hasNoStops()) {
-            for (String lineref : subscription.getLineRefs()) {
-                add(subscription, lineref, lineNoStopsToSubscription);
-            }
-            for (String codespace : subscription.getCodespaces()) {
-                add(subscription, codespace, codespaceNoStopsToSubscription);
-            }
-        } else {
-            HashSet<String> stops = new HashSet<>();
-            stops.addAll(subscription.getFromStopPoints());
-            stops.addAll(subscription.getToStopPoints());
-            for (String stop : stops) {
-                add(subscription, stop, stopToSubscription);
-            }
+    private void addOrUpdateSubscriptionInLocalStorage(Subscription subscription) {
+        if (subscriptionIndex.addOrUpdate(subscription) == SubscriptionIndex.Change.KEYS) {
+            subscriptionKeysVersion.incrementAndGet();
         }
+        //the rows are republished on every update, with the subscription instance and the attributes we filter on
+        subscriptionsChanged();
     }
 
-    private void addOrUpdateSubscriptionInLocalStorage(Subscription subscription) {
-        addOrUpdateSubscriptionInLocalStorage(idToSubscription, stopToSubscription, lineNoStopsToSubscription, codespaceNoStopsToSubscription, subscription);
+    private void removeSubscriptionFromLocalStorage(String subscriptionId) {
+        if (subscriptionIndex.remove(subscriptionId)) {
+            subscriptionKeysVersion.incrementAndGet();
+            subscriptionsChanged();
+        }
     }
 
-    private void removeSubscriptionFromLocalStorage(String subscriptionId) {
-        idToSubscription.remove(subscriptionId);
+    private synchronized void updateSubscriptionCache(SubscriptionIndex subscriptionIndex) {
+        this.subscriptionIndex = subscriptionIndex;
+        subscriptionKeysVersion.incrementAndGet();
+        subscriptionsChanged();
+    }
+
+    private void subscriptionsChanged() {
+        subscriptionsVersion.incrementAndGet();
+        //entries are keyed on the version as well, this is to free them right away
+        candidatesCache.invalidateAll();
+        candidatesCacheInvalidations.incrementAndGet();
+    }
+
+    /**
+     * Changes whenever a subscription is added or removed, or updated with other stops, lines, codespaces or type.
+     */
+    public long getSubscriptionKeysVersion() {
+        return subscriptionKeysVersion.get();
     }
 
-    private synchronized void updateSubscriptionCache(HashMap<String, Subscription> idToSubscription, HashMap<String, Set<String>> stopToSubscription,
-                                                      HashMap<String, Set<String>> lineNoStopsToSubscription, HashMap<String, Set<String>> codespaceNoStopsToSubscription) {
-        this.idToSubscription  = idToSubscription;
-        this.stopToSubscription  = stopToSubscription;
-        this.lineNoStopsToSubscription  = lineNoStopsToSubscription;
-        this.codespaceNoStopsToSubscription  = codespaceNoStopsToSubscription;
+    /**
+     * Changes whenever a subscription is added, updated (in any way) or removed.
+     */
+    public long getSubscriptionsVersion() {
+        return subscriptionsVersion.get();
     }
 
+    public Set<String> getSubscribedKeys(SubscriptionTypeEnum type) {
+        return subscriptionIndex.getSubscribedKeys(type);
+    }
+
+
+    public Subscription getSubscription(String subscriptionId) {
+        return subscriptionIndex.get(subscriptionId);
+    }
 
     public Collection<Subscription> getSubscriptions() {
-        for (int i = 0; i< CONCURRENTMODIFICATION_ATTEMPTS; i++) {
-            try {
-                return new HashSet<>(idToSubscription.values());
-            } catch (ConcurrentModificationException e) {
-                //will attempt several times
-                logger.debug("Got an ConcurrentModificationException while getting all subscriptions");
-            }
-        }
-        logger.error("Could not get all subscriptions due to ConcurrentModificationExceptions - attempted {} times", CONCURRENTMODIFICATION_ATTEMPTS);
-        return Collections.emptySet();
+        return new HashSet<>(subscriptionIndex.getSubscriptions());
     }
 
     public Set<Subscription> getSubscriptionsForStopPoint(String stopPointRef, SubscriptionTypeEnum type) {
-        Set<String> subscriptionIds = getSubscriptionIds(stopPointRef, stopToSubscription);
-        Set<Subscription> subscriptions = getSubscriptions(subscriptionIds, type);
-        logger.trace("Found {} unique subscriptions containing '{}' in to/from stops",stopPointRef, subscriptions.size());
+        Set<Subscription> subscriptions = subscriptionIndex.getSubscriptionsForStopPoint(stopPointRef, type);
+        logger.trace("Found {} unique subscriptions containing '{}' in to/from stops", subscriptions.size(), stopPointRef);
         return subscriptions;
     }
 
     public Set<Subscription> getSubscriptionsForLineRefAndNoStops(String lineRef, SubscriptionTypeEnum type) {
-        Set<String> subscriptionIds = getSubscriptionIds(lineRef, lineNoStopsToSubscription);
-        Set<Subscription> subscriptions = getSubscriptions(subscriptionIds, type);
+        Set<Subscription> subscriptions = subscriptionIndex.getSubscriptionsForLineRefAndNoStops(lineRef, type);
         logger.trace("Found {} unique subscriptions containing '{}' in lineRefs", subscriptions.size(), lineRef);
         return subscriptions;
     }
 
     public Set<Subscription> getSubscriptionsForCodespaceAndNoStops(String codespace, SubscriptionTypeEnum type) {
-        Set<String> subscriptionIds = getSubscriptionIds(codespace, codespaceNoStopsToSubscription);
-        Set<Subscription> subscriptions = getSubscriptions(subscriptionIds, type);
+        Set<Subscription> subscriptions = subscriptionIndex.getSubscriptionsForCodespaceAndNoStops(codespace, type);
         logger.trace("Found {} unique subscriptions containing '{}' in codespaces", subscriptions.size(), codespace);
         return subscriptions;
     }
 
-    private HashSet<String> getSubscriptionIds(String key, HashMap<String, Set<String>> set) {
-        for (int i = 0; i< CONCURRENTMODIFICATION_ATTEMPTS; i++) {
-            try {
-                return new HashSet<>(set.getOrDefault(key, Collections.emptySet()));
-            } catch (ConcurrentModificationException e) {
-                //will attempt several times
-                logger.debug("Got an ConcurrentModificationException while getting all subscriptions");
-            }
-        }
-        logger.error("Could not get all subscriptionIds due to ConcurrentModificationExceptions - attempted {} times", CONCURRENTMODIFICATION_ATTEMPTS);
-        return new HashSet<>();
+    /**
+     * Subscriptions without stops on the lineRef (and codespace if they have any) or on the codespace (and lineRef if they have any).
+     */
+    public Set<Subscription> getSubscriptionsForLineRefOrCodespaceAndNoStops(String lineRef, String codespace, SubscriptionTypeEnum type) {
+        Set<Subscription> subscriptions = subscriptionIndex.getSubscriptionsForLineRefOrCodespaceAndNoStops(lineRef, codespace, type);
+        logger.trace("Found {} unique subscriptions with lineRef '{}' or codespace '{}'", subscriptions.size(), lineRef, codespace);
+        return subscriptions;
     }
 
-    private Set<Subscription> getSubscriptions(Set<String> subscriptionIds, SubscriptionTypeEnum type) {
-        HashSet<Subscription> subscriptions = new HashSet<>(subscriptionIds.size());
-        for (Iterator<String> idIterator = subscriptionIds.iterator(); idIterator.hasNext(); ) {
-            String id = idIterator.next();
-            Subscription subscription = idToSubscription.get(id);
-            if (subscription == null) {
-                //this happens quite often (after a subscription is removed on an other pod until the periodic populateSubscriptionCacheFromDatastore)
-                idIterator.remove();
-            } else if (subscription.getType() == SubscriptionTypeEnum.ALL || subscription.getType() == type){
-                subscriptions.add(subscription);
-            }
+    /**
+     * The result is cached per stop sequence until subscriptions are added, updated or removed, as journeys most often
+     * are updated with the same stops and aimed times. The candidates hold the subscriptions and the attributes they
+     * are filtered on as they were when found, so any update invalidates them. The sequence must not be modified
+     * afterwards.
+     */
+    public SubscriptionCandidates getCandidatesForStopsInOrder(StopSequence stops, SubscriptionTypeEnum type) {
+        CandidatesKey key = new CandidatesKey(stops, type, subscriptionsVersion.get());
+        SubscriptionCandidates candidates = candidatesCache.getIfPresent(key);
+        if (candidates == null) {
+            candidates = subscriptionIndex.getCandidatesForStopsInOrder(stops, type);
+            candidatesCache.put(key, candidates);
         }
-        return subscriptions;
+        logger.trace("Found {} unique subscriptions with from and to stops in order among {} stops", candidates.size(), stops.size());
+        return candidates;
+    }
+
+    public double getCandidatesCacheHitRatio() {
+        return candidatesCache.stats().hitRate();
+    }
+
+    public long getCandidatesCacheInvalidations() {
+        return candidatesCacheInvalidations.get();
     }
 
     public Subscription addSubscription(Subscription subscription) {
@@ -255,19 +273,19 @@ public class DataStorageService implements MessageListener<String> {
             transaction.rollback();
             return false;
         }
-        addOrUpdateSubscriptionInLocalStorage(idToSubscription, stopToSubscription, lineNoStopsToSubscription, codespaceNoStopsToSubscription, subscription);
+        addOrUpdateSubscriptionInLocalStorage(subscription);
         publish(SUBSCRIPTION_ACTION_UPDATED, subscription.getId());
         return true;
     }
 
     public long getNumberOfSubscriptions() {
-        return idToSubscription.size();
+        return subscriptionIndex.size();
     }
 
     public Subscription getSubscriptionByName(String name) {
         if (StringUtils.isNotBlank(name)) {
             //TODO: won't scale to well, but sufficient for now
-            for (Subscription subscription : idToSubscription.values()) {
+            for (Subscription subscription : subscriptionIndex.getSubscriptions()) {
                 if (name.equals(subscription.getName())) {
                     return subscription;
                 }
@@ -284,13 +302,20 @@ public class DataStorageService implements MessageListener<String> {
                 .set("pushAddress", StringValue.newBuilder(s.getPushAddress()).setExcludeFromIndexes(true).build())
                 .set("failedPushCounter", LongValue.newBuilder(s.getFailedPushCounter()).setExcludeFromIndexes(true).build())
                 .set("pushAllData", BooleanValue.of(s.isPushAllData()))
-                .set("siriSubscriptionModel", BooleanValue.of(s.isUseSiriSubscriptionModel()));
+                .set("siriSubscriptionModel", BooleanValue.of(s.isUseSiriSubscriptionModel()))
+                .set("gzip", BooleanValue.of(s.isUseGzip()));
         if (s.getHeartbeatInterval() != null) {
             builder.set("heartbeatInterval", StringValue.of(s.getHeartbeatInterval().toString()));
         }
         if (s.getMinimumDelay() != null) {
             builder.set("minimumDelay", StringValue.of(s.getMinimumDelay().toString()));
         }
+        if (s.getCoalesceMaxDelay() != null) {
+            builder.set("coalesceMaxDelay", StringValue.of(s.getCoalesceMaxDelay().toString()));
+        }
+        if (s.getCoalesceMaxSize() != null) {
+            builder.set("coalesceMaxSize", LongValue.of(s.getCoalesceMaxSize()));
+        }
         if (s.getInitialTerminationTime() != null) {
             Date date = Date.from(s.getInitialTerminationTime().toInstant());
             builder.set("initialTerminationTime", Timestamp.of(date));
@@ -337,6 +362,9 @@ public class DataStorageService implements MessageListener<String> {
         if (entity.contains("siriSubscriptionModel")) {
             subscription.setUseSiriSubscriptionModel(entity.getBoolean("siriSubscriptionModel"));
         }
+        if (entity.contains("gzip")) {
+            subscription.setUseGzip(entity.getBoolean("gzip"));
+        }
         if (entity.contains("pushAllData")) {
             subscription.setPushAllData(entity.getBoolean("pushAllData"));
         }
@@ -348,6 +376,12 @@ public class DataStorageService implements MessageListener<String> {
             String minimumDelay = entity.getString("minimumDelay");
             subscription.setMinimumDelay(toDuration(minimumDelay));
         }
+        if (entity.contains("coalesceMaxDelay")) {
+            subscription.setCoalesceMaxDelay(toDuration(entity.getString("coalesceMaxDelay")));
+        }
+        if (entity.contains("coalesceMaxSize")) {
+            subscription.setCoalesceMaxSize((int) entity.getLong("coalesceMaxSize"));
+        }
         if (entity.contains("initialTerminationTime")) {
             Timestamp initialTerminationTime = entity.getTimestamp("initialTerminationTime");
             subscription.setInitialTerminationTime(ZonedDateTime.ofInstant(initialTerminationTime.toSqlTimestamp().toInstant(), ZoneId.systemDefault()));
@@ -410,12 +444,6 @@ public class DataStorageService implements MessageListener<String> {
         return Collections.emptySet();
     }
 
-    private void add(Subscription subscription, String key, HashMap<String, Set<String>> map) {
-        Set<String> subscriptions = map.getOrDefault(key, new HashSet<>());
-        subscriptions.add(subscription.getId());
-        map.put(key, subscriptions);
-    }
-
     private void publish(String action, String subscriptionId) {
         String message = action + " " + subscriptionId + " " + serviceId;
         logger.debug("Publish '{}' on subscriptionCacheRenewerTopic", message);
@@ -468,4 +496,35 @@ public class DataStorageService implements MessageListener<String> {
             logger.debug("Ignores reload as received message PublishTime ({}) is older than or equal to the last reload ({})", message.getPublishTime(), lastReloadedTime);
         }
     }
+
+    private static final class CandidatesKey {
+        private final StopSequence stops;
+        private final SubscriptionTypeEnum type;
+        private final long version;
+        private final int hash;
+
+        private CandidatesKey(StopSequence stops, SubscriptionTypeEnum type, long version) {
+            this.stops = stops;
+            this.type = type;
+            this.version = version;
+            this.hash = 31 * (31 * stops.hashCode() + type.hashCode()) + Long.hashCode(version);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CandidatesKey)) {
+                return false;
+            }
+            CandidatesKey other = (CandidatesKey) o;
+            return version == other.version && type == other.type && stops.equals(other.stops);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
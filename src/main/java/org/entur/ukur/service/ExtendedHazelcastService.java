@@ -17,11 +17,15 @@ package org.entur.ukur.service;
 
 import com.hazelcast.cluster.Cluster;
 import com.hazelcast.cluster.Member;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.map.IMap;
 import com.hazelcast.topic.ITopic;
 import org.entur.ukur.setup.UkurConfiguration;
 import org.entur.ukur.subscription.MessageIdentifierKey;
+import org.entur.ukur.subscription.PushCircuit;
 import org.rutebanken.hazelcasthelper.service.HazelCastService;
 import org.rutebanken.hazelcasthelper.service.KubernetesService;
 import org.slf4j.Logger;
@@ -44,6 +48,7 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     private static final String NODE_NAME_SETTER_LOCK = "nodeNameSetter";
     static final String NODENUMBER_PREFIX = "nodenumber.";
+    private static final String PUSH_CIRCUITS = "ukur.pushCircuits";
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     public ExtendedHazelcastService(@Autowired KubernetesService kubernetesService, @Autowired UkurConfiguration cfg) {
@@ -54,6 +59,21 @@ public class ExtendedHazelcastService extends HazelCastService {
         return hazelcast;
     }
 
+    /**
+     * The push circuits are read on every push, and nearly always hold nothing for the host - the near cache answers
+     * those reads locally and is invalidated when another node opens or closes a circuit.
+     */
+    @Override
+    public List<MapConfig> getAdditionalMapConfigurations() {
+        List<MapConfig> mapConfigs = super.getAdditionalMapConfigurations();
+        NearCacheConfig nearCacheConfig = new NearCacheConfig()
+                .setInMemoryFormat(InMemoryFormat.OBJECT)
+                .setInvalidateOnChange(true)
+                .setCacheLocalEntries(true);
+        mapConfigs.add(new MapConfig(PUSH_CIRCUITS).setNearCacheConfig(nearCacheConfig));
+        return mapConfigs;
+    }
+
     @Bean
     public Map<String, String> healthCheckMap() {
         return hazelcast.getMap("ukur.healthcheck");
@@ -68,6 +88,11 @@ public class ExtendedHazelcastService extends HazelCastService {
         return hazelcast.getMap("ukur.messageChecksum");
     }
 
+    @Bean
+    public IMap<String, PushCircuit> pushCircuits() {
+        return hazelcast.getMap(PUSH_CIRCUITS);
+    }
+
     @Bean
     public IMap<String, String> sharedProperties() {
         return hazelcast.getMap("ukur.sharedProperties");
@@ -0,0 +1,241 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.StopAssignmentStructure;
+
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+
+/**
+ * Remembers a fingerprint per call of the last version we processed of each journey, so stop matching can be skipped
+ * for journeys re-sent without changes to the calls (times, statuses, boarding and quay assignments). Only what stop
+ * matching depends on is fingerprinted: full messages to line and codespace subscriptions must not be skipped on it.
+ * The cache is bounded by the total number of calls (8 bytes each plus the key and entry overhead per journey).
+ */
+@Service
+public class JourneyChangeDetector {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final MetricsService metricsService;
+    private final DataStorageService dataStorageService;
+    private final QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
+    private final Cache<String, JourneyState> journeyStates;
+
+    @Autowired
+    public JourneyChangeDetector(MetricsService metricsService,
+                                 DataStorageService dataStorageService,
+                                 QuayAndStopPlaceMappingService quayAndStopPlaceMappingService,
+                                 @Value("${ukur.camel.et.delta.max-calls:2000000}") long maxCalls,
+                                 @Value("${ukur.camel.et.delta.expire-hours:12}") long expireHours) {
+        this.metricsService = metricsService;
+        this.dataStorageService = dataStorageService;
+        this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
+        this.journeyStates = CacheBuilder.newBuilder()
+                .maximumWeight(maxCalls)
+                .weigher((String key, JourneyState state) -> state.fingerprints.length)
+                .expireAfterWrite(expireHours, TimeUnit.HOURS)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE || notification.getCause() == RemovalCause.EXPIRED) {
+                        metricsService.getMeter(MetricsService.METER_ET_DELTA_EVICTED).mark();
+                    }
+                })
+                .build();
+        metricsService.registerGauge(MetricsService.GAUGE_ET_DELTA_JOURNEYS, journeyStates::size);
+        logger.info("Keeps call fingerprints for up to {} calls for {} hours", maxCalls, expireHours);
+    }
+
+    /**
+     * Fingerprints this version of the journey, to compare with the last version processed.
+     *
+     * @return the version, or null if the journey has no ref to compare on
+     */
+    public JourneyVersion getVersion(EstimatedVehicleJourney journey) {
+        String key = journeyKey(journey);
+        if (key == null) {
+            return null;
+        }
+        return new JourneyVersion(key, new JourneyState(fingerprint(journey), dataStorageService.getSubscriptionsVersion(),
+                quayAndStopPlaceMappingService.getVersion()));
+    }
+
+    /**
+     * @return true if we have processed a version of this journey with the same calls, and the subscriptions and stop
+     * places are unchanged since then
+     */
+    public boolean isUnchanged(JourneyVersion version) {
+        JourneyState previous = journeyStates.getIfPresent(version.key);
+        if (previous != null && previous.sameAs(version.state)) {
+            metricsService.getMeter(MetricsService.METER_ET_DELTA_UNCHANGED).mark();
+            return true;
+        }
+        metricsService.getMeter(MetricsService.METER_ET_DELTA_CHANGED).mark();
+        return false;
+    }
+
+    /**
+     * Registers the version as the last one processed. Should only be called when processing succeeded, so a failed
+     * version is processed again when re-sent.
+     */
+    public void processed(JourneyVersion version) {
+        journeyStates.put(version.key, version.state);
+    }
+
+    /**
+     * Identifies the journey across versions: the data source and DatedVehicleJourneyRef (or FramedVehicleJourneyRef).
+     * @return the key, or null if the journey has no ref
+     */
+    public static String journeyKey(EstimatedVehicleJourney journey) {
+        String datedVehicleJourneyRef = getStringValue(journey.getDatedVehicleJourneyRef());
+        if (StringUtils.isBlank(datedVehicleJourneyRef) && journey.getFramedVehicleJourneyRef() != null) {
+            datedVehicleJourneyRef = journey.getFramedVehicleJourneyRef().getDatedVehicleJourneyRef();
+            if (journey.getFramedVehicleJourneyRef().getDataFrameRef() != null) {
+                datedVehicleJourneyRef = journey.getFramedVehicleJourneyRef().getDataFrameRef().getValue() + ":" + datedVehicleJourneyRef;
+            }
+        }
+        if (StringUtils.isBlank(datedVehicleJourneyRef)) {
+            return null;
+        }
+        return journey.getDataSource() + ":" + datedVehicleJourneyRef;
+    }
+
+    /**
+     * One fingerprint for the journey itself followed by one per recorded and estimated call.
+     */
+    static long[] fingerprint(EstimatedVehicleJourney journey) {
+        List<RecordedCall> recordedCalls = journey.getRecordedCalls() == null ? null : journey.getRecordedCalls().getRecordedCalls();
+        List<EstimatedCall> estimatedCalls = journey.getEstimatedCalls() == null ? null : journey.getEstimatedCalls().getEstimatedCalls();
+        int numberOfRecordedCalls = recordedCalls == null ? 0 : recordedCalls.size();
+        int numberOfEstimatedCalls = estimatedCalls == null ? 0 : estimatedCalls.size();
+        long[] fingerprints = new long[1 + numberOfRecordedCalls + numberOfEstimatedCalls];
+        long h = 17;
+        h = mix(h, getStringValue(journey.getLineRef()));
+        h = mix(h, getStringValue(journey.getOperatorRef()));
+        h = mix(h, journey.isCancellation());
+        h = mix(h, journey.isExtraJourney());
+        h = mix(h, numberOfRecordedCalls);
+        fingerprints[0] = h;
+        int i = 1;
+        for (int j = 0; j < numberOfRecordedCalls; j++) {
+            RecordedCall call = recordedCalls.get(j);
+            h = mix(17, getStringValue(call.getStopPointRef()));
+            h = mix(h, call.getAimedArrivalTime());
+            h = mix(h, call.getActualArrivalTime());
+            h = mix(h, call.getExpectedArrivalTime());
+            h = mix(h, call.getAimedDepartureTime());
+            h = mix(h, call.getActualDepartureTime());
+            h = mix(h, call.getExpectedDepartureTime());
+            h = mix(h, call.isCancellation());
+            fingerprints[i++] = h;
+        }
+        for (int j = 0; j < numberOfEstimatedCalls; j++) {
+            EstimatedCall call = estimatedCalls.get(j);
+            h = mix(31, getStringValue(call.getStopPointRef()));
+            h = mix(h, call.getAimedArrivalTime());
+            h = mix(h, call.getExpectedArrivalTime());
+            h = mix(h, call.getAimedDepartureTime());
+            h = mix(h, call.getExpectedDepartureTime());
+            h = mix(h, call.getArrivalStatus());
+            h = mix(h, call.getDepartureStatus());
+            h = mix(h, call.getArrivalBoardingActivity());
+            h = mix(h, call.getDepartureBoardingActivity());
+            h = mix(h, call.isCancellation());
+            h = mixQuayRefs(h, call.getArrivalStopAssignments());
+            h = mixQuayRefs(h, call.getDepartureStopAssignments());
+            fingerprints[i++] = h;
+        }
+        return fingerprints;
+    }
+
+    private static long mix(long h, long value) {
+        h ^= value;
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Only for values with value based hash codes (String and Boolean) - JAXB structures compare on identity.
+     */
+    private static long mix(long h, Object value) {
+        return mix(h, value == null ? 0 : value.hashCode());
+    }
+
+    private static long mix(long h, Enum<?> value) {
+        return mix(h, value == null ? -1 : value.ordinal());
+    }
+
+    private static long mix(long h, ZonedDateTime time) {
+        return mix(h, time == null ? Long.MIN_VALUE : time.toInstant().toEpochMilli());
+    }
+
+    private static long mixQuayRefs(long h, List<StopAssignmentStructure> stopAssignments) {
+        if (stopAssignments == null) {
+            return mix(h, 0);
+        }
+        for (StopAssignmentStructure stopAssignment : stopAssignments) {
+            h = mix(h, getStringValue(stopAssignment.getAimedQuayRef()));
+            h = mix(h, getStringValue(stopAssignment.getExpectedQuayRef()));
+        }
+        return mix(h, stopAssignments.size());
+    }
+
+    /**
+     * A fingerprinted version of a journey, see {@link #getVersion(EstimatedVehicleJourney)}.
+     */
+    public static final class JourneyVersion {
+        private final String key;
+        private final JourneyState state;
+
+        private JourneyVersion(String key, JourneyState state) {
+            this.key = key;
+            this.state = state;
+        }
+    }
+
+    private static final class JourneyState {
+        private final long[] fingerprints;
+        private final long subscriptionsVersion;
+        private final long stopPlacesVersion;
+
+        private JourneyState(long[] fingerprints, long subscriptionsVersion, long stopPlacesVersion) {
+            this.fingerprints = fingerprints;
+            this.subscriptionsVersion = subscriptionsVersion;
+            this.stopPlacesVersion = stopPlacesVersion;
+        }
+
+        private boolean sameAs(JourneyState other) {
+            return subscriptionsVersion == other.subscriptionsVersion && stopPlacesVersion == other.stopPlacesVersion &&
+                    Arrays.equals(fingerprints, other.fingerprints);
+        }
+    }
+}
@@ -42,6 +42,7 @@ import java.util.concurrent.TimeUnit;
 @Configuration
 public class MetricsService {
     public static final String TIMER_PUSH                  = "timer.push.http";
+    public static final String TIMER_PUSH_PREPARE          = "timer.push.prepare";
     public static final String TIMER_ET_PROCESS            = "timer.process.EstimatedVehicleJourney";
     public static final String TIMER_SX_PROCESS            = "timer.process.PtSituationElement";
     public static final String TIMER_ET_UNMARSHALL         = "timer.unmarshall.EstimatedVehicleJourney";
@@ -49,11 +50,41 @@ public class MetricsService {
     public static final String GAUGE_SUBSCRIPTIONS         = "gauge.subscriptions";
     public static final String GAUGE_STOPPLACES            = "gauge.stopPlaces";
     public static final String GAUGE_PUSH_QUEUE            = "gauge.pushQueue";
+    public static final String GAUGE_PUSH_IN_FLIGHT        = "gauge.pushInFlight";
+    public static final String GAUGE_PUSH_PENDING          = "gauge.pushPending";
+    public static final String GAUGE_PUSH_PENDING_BYTES    = "gauge.pushPendingBytes";
+    public static final String GAUGE_PUSH_CIRCUITS_OPEN    = "gauge.pushCircuitsOpen";
+    public static final String GAUGE_OUTBOX_ENTRIES        = "gauge.outboxEntries";
+    public static final String GAUGE_OUTBOX_BYTES          = "gauge.outboxBytes";
+    public static final String GAUGE_PREPARE_QUEUE         = "gauge.prepareQueue";
+    public static final String GAUGE_COALESCING_WINDOWS    = "gauge.coalescingWindows";
+    public static final String GAUGE_ET_DELTA_JOURNEYS     = "gauge.et-delta-journeys";
+    public static final String GAUGE_MATCH_CACHE_HIT_RATIO = "gauge.match-cache-hit-ratio";
+    public static final String GAUGE_MATCH_CACHE_INVALIDATIONS = "gauge.match-cache-invalidations";
     public static final String METER_ET_IGNORED            = "message.et-ignored";
     public static final String METER_ET_WITHOUT_DEVIATIONS = "message.et-without-deviations";
     public static final String METER_ET_WITH_DEVIATIONS    = "message.et-with-deviations";
+    public static final String METER_ET_FILTER_HIT         = "message.et-filter-hit";
+    public static final String METER_ET_FILTER_MISS        = "message.et-filter-miss";
+    public static final String METER_ET_DELTA_UNCHANGED    = "message.et-delta-unchanged";
+    public static final String METER_ET_DELTA_CHANGED      = "message.et-delta-changed";
+    public static final String METER_ET_DELTA_EVICTED      = "message.et-delta-evicted";
+    public static final String METER_ET_PARALLEL_MATCHING  = "message.et-parallel-matching";
+    public static final String METER_SX_LOOKUP_MEMO_HIT    = "message.sx-lookup-memo-hit";
+    public static final String METER_SX_LOOKUP_MEMO_MISS   = "message.sx-lookup-memo-miss";
+    public static final String METER_PUSH_CONFLATED        = "message.push-conflated";
+    public static final String METER_PUSH_DROPPED          = "message.push-dropped";
+    public static final String METER_PUSH_CIRCUIT_OPEN     = "message.push-circuit-open";
+    public static final String METER_OUTBOX_ADDED          = "message.outbox-added";
+    public static final String METER_OUTBOX_GIVEN_UP       = "message.outbox-given-up";
     public static final String HISTOGRAM_RECEIVED_DELAY    = "histogram.received_delay";
     public static final String HISTOGRAM_PROCESSED_DELAY   = "histogram.processed_delay";
+    public static final String HISTOGRAM_ET_BATCH_SIZE     = "histogram.et_batch_size";
+    public static final String HISTOGRAM_ET_BATCH_LATENCY  = "histogram.et_batch_latency";
+    public static final String HISTOGRAM_ET_BATCH_DEDUP    = "histogram.et_batch_dedup_percent";
+    public static final String HISTOGRAM_PUSH_SUBSCRIPTIONS = "histogram.push_subscriptions";
+    public static final String HISTOGRAM_PUSH_PAYLOADS     = "histogram.push_payloads";
+    public static final String HISTOGRAM_PUSH_COALESCED    = "histogram.push_coalesced";
     public static final String SUBSCRIPTION_ADD            = "subscription.add";
     public static final String SUBSCRIPTION_UPDATE         = "subscription.update";
     public static final String SUBSCRIPTION_DELETE         = "subscription.delete";
@@ -109,6 +140,10 @@ public class MetricsService {
         prometheusMetricsService.registerIncomingData(messageClass.getSimpleName(), 1);
     }
 
+    public Histogram getHistogram(String name) {
+        return metrics.histogram(name, () -> new Histogram(getReservoir()));
+    }
+
     public Timer getTimer(String name) {
         return metrics.timer(name, () -> new Timer(getReservoir()));
     }
@@ -16,6 +16,7 @@
 package org.entur.ukur.service;
 
 import com.google.common.collect.Maps;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Tag;
@@ -31,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 @Component
 public class PrometheusMetricsService extends PrometheusMeterRegistry {
@@ -46,6 +48,11 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     private final String DATA_SUBSCRIPTION_ADDED_COUNTER_NAME = METRICS_PREFIX + "subscription.added";
     private final String DATA_SUBSCRIPTION_REMOVED_COUNTER_NAME = METRICS_PREFIX + "subscription.removed";
     private final String DATA_SUBSCRIPTION_TOTAL_GAUGE_NAME = METRICS_PREFIX + "subscription";
+    private final String DATA_ACTIVE_PUSHES_GAUGE_NAME = METRICS_PREFIX + "push.active";
+    private final String DATA_PUSH_RESPONSES_COUNTER_NAME = METRICS_PREFIX + "push.responses";
+    private final String DATA_PUSH_CIRCUIT_COUNTER_NAME = METRICS_PREFIX + "push.circuit";
+    private final String DATA_PUSH_BYTES_UNCOMPRESSED_COUNTER_NAME = METRICS_PREFIX + "push.bytes.uncompressed";
+    private final String DATA_PUSH_BYTES_SENT_COUNTER_NAME = METRICS_PREFIX + "push.bytes.sent";
 
 
     public PrometheusMetricsService() {
@@ -110,6 +117,23 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         super.counter(DATA_SUBSCRIPTION_REMOVED_COUNTER_NAME, "subscriber", subscriberHost).increment(count);
     }
 
+    public void registerActivePushes(String subscriberHost, Supplier<Number> activePushes) {
+        Gauge.builder(DATA_ACTIVE_PUSHES_GAUGE_NAME, activePushes).tag("subscriber", subscriberHost).register(this);
+    }
+
+    public void registerPushResponse(String subscriberHost, String protocol) {
+        super.counter(DATA_PUSH_RESPONSES_COUNTER_NAME, "subscriber", subscriberHost, "protocol", protocol).increment();
+    }
+
+    public void registerPushCircuit(String subscriberHost, String event) {
+        super.counter(DATA_PUSH_CIRCUIT_COUNTER_NAME, "subscriber", subscriberHost, "event", event).increment();
+    }
+
+    public void registerPushBytes(String subscriberHost, long uncompressed, long sent) {
+        super.counter(DATA_PUSH_BYTES_UNCOMPRESSED_COUNTER_NAME, "subscriber", subscriberHost).increment(uncompressed);
+        super.counter(DATA_PUSH_BYTES_SENT_COUNTER_NAME, "subscriber", subscriberHost).increment(sent);
+    }
+
     public void totalSubscriptions(String subscriberHost, BigInteger count) {
         if (count.intValue() > 0) {
             List<Tag> counterTags = new ArrayList<>();
@@ -15,6 +15,9 @@
 
 package org.entur.ukur.service;
 
+import org.entur.ukur.index.IntIntHashMap;
+import org.entur.ukur.index.IntObjectHashMap;
+import org.entur.ukur.index.SymbolTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,14 +28,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class QuayAndStopPlaceMappingService {
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private final MetricsService metricsService;
-    private HashMap<String, Collection<String>> stopPlaceIdToQuayIds = new HashMap<>();
-    private HashMap<String, String> quayIdToStopPlaceId = new HashMap<>();
+    private final SymbolTable symbols = SymbolTable.nsr();
+    private IntObjectHashMap<Collection<String>> stopPlaceIdToQuayIds = new IntObjectHashMap<>();
+    private IntIntHashMap quayIdToStopPlaceId = new IntIntHashMap(0);
+    private final AtomicLong version = new AtomicLong();
 
     @Autowired
     public QuayAndStopPlaceMappingService(MetricsService metricsService) {
@@ -45,27 +51,50 @@ public class QuayAndStopPlaceMappingService {
     }
 
     public void updateStopsAndQuaysMap(Map<String, Collection<String>> stopPlacesAndQuays) {
-        HashMap<String, Collection<String>> newStopPlaceIdToQuayIds = new HashMap<>(stopPlacesAndQuays);
-        HashMap<String, String> newQuayIdToStopPlaceId = new HashMap<>();
-        for (Map.Entry<String, Collection<String>> stopAndQuays : newStopPlaceIdToQuayIds.entrySet()) {
+        IntObjectHashMap<Collection<String>> newStopPlaceIdToQuayIds = new IntObjectHashMap<>(stopPlacesAndQuays.size());
+        int numberOfQuays = 0;
+        for (Collection<String> quayIds : stopPlacesAndQuays.values()) {
+            numberOfQuays += quayIds.size();
+        }
+        IntIntHashMap newQuayIdToStopPlaceId = new IntIntHashMap(numberOfQuays);
+        for (Map.Entry<String, Collection<String>> stopAndQuays : stopPlacesAndQuays.entrySet()) {
+            int stopPlace = symbols.intern(stopAndQuays.getKey());
+            newStopPlaceIdToQuayIds.put(stopPlace, stopAndQuays.getValue());
             for (String quayId : stopAndQuays.getValue()) {
-                newQuayIdToStopPlaceId.put(quayId, stopAndQuays.getKey());
+                newQuayIdToStopPlaceId.put(symbols.intern(quayId), stopPlace);
             }
         }
         stopPlaceIdToQuayIds = newStopPlaceIdToQuayIds;
         quayIdToStopPlaceId = newQuayIdToStopPlaceId;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Changes every time the stop places and quays are updated.
+     */
+    public long getVersion() {
+        return version.get();
     }
 
     public String mapQuayToStopPlace(String quayId) {
-        String stopPlaceid = quayIdToStopPlaceId.get(quayId);
-        if (stopPlaceid == null) {
+        int stopPlace = mapQuayToStopPlace(symbols.lookup(quayId));
+        if (stopPlace == SymbolTable.NO_SYMBOL) {
             logger.warn("Did not find quayId '{}' on any stopplace", quayId);
+            return null;
         }
-        return stopPlaceid;
+        return symbols.name(stopPlace);
+    }
+
+    /**
+     * Symbol based variant of {@link #mapQuayToStopPlace(String)} that does not log when no stop place is found.
+     * @return the stop place symbol or {@link SymbolTable#NO_SYMBOL}
+     */
+    public int mapQuayToStopPlace(int quaySymbol) {
+        return quayIdToStopPlaceId.get(quaySymbol, SymbolTable.NO_SYMBOL);
     }
 
     public Collection<String> mapStopPlaceToQuays(String stopPlaceId) {
-        Collection<String> quayIds = stopPlaceIdToQuayIds.get(stopPlaceId);
+        Collection<String> quayIds = stopPlaceIdToQuayIds.get(symbols.lookup(stopPlaceId));
         if (quayIds == null) {
             logger.warn("Did not find any stopPlace with stopPlaceId '{}'", stopPlaceId);
             return Collections.emptySet();
@@ -78,14 +107,16 @@ public class QuayAndStopPlaceMappingService {
     }
 
     public boolean isValidStopPlace(String stopPlace) {
-        return stopPlaceIdToQuayIds.containsKey(stopPlace);
+        return stopPlaceIdToQuayIds.containsKey(symbols.lookup(stopPlace));
     }
 
     public boolean isValidQuayId(String quayId) {
-        return quayIdToStopPlaceId.containsKey(quayId);
+        return quayIdToStopPlaceId.containsKey(symbols.lookup(quayId));
     }
 
     public HashMap<String, Collection<String>> getAllStopPlaces() {
-        return new HashMap<>(stopPlaceIdToQuayIds);
+        HashMap<String, Collection<String>> stopPlaces = new HashMap<>();
+        stopPlaceIdToQuayIds.forEach((stopPlace, quayIds) -> stopPlaces.put(symbols.name(stopPlace), quayIds));
+        return stopPlaces;
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.service;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a bloom filter per subscription type with every stop, line and codespace subscribed upon (and the quays of
+ * subscribed stop places), so messages that can't match any subscription can be skipped after a single pass over
+ * their refs. The filter is rebuilt when subscriptions or the stop places change.
+ */
+@Service
+public class SubscriptionFilterService {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final DataStorageService dataStorageService;
+    private final QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
+    private final EnumMap<SubscriptionTypeEnum, Filter> filters = new EnumMap<>(SubscriptionTypeEnum.class);
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+
+    @Autowired
+    public SubscriptionFilterService(DataStorageService dataStorageService, QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+        this.dataStorageService = dataStorageService;
+        this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
+    }
+
+    /**
+     * @return a filter with all keys for subscriptions found with the given type, or null if it is not up to date with
+     * the subscriptions (and everything must be treated as possibly subscribed upon)
+     */
+    public BloomFilter<CharSequence> getFilter(SubscriptionTypeEnum type) {
+        long subscriptionsVersion = dataStorageService.getSubscriptionKeysVersion();
+        long stopPlacesVersion = quayAndStopPlaceMappingService.getVersion();
+        Filter filter;
+        synchronized (filters) {
+            filter = filters.get(type);
+        }
+        if (filter != null && filter.subscriptionsVersion == subscriptionsVersion && filter.stopPlacesVersion == stopPlacesVersion) {
+            return filter.bloomFilter;
+        }
+        //only one thread rebuilds, the others don't wait but use no filter in the meantime
+        if (rebuildLock.tryLock()) {
+            try {
+                filter = new Filter(createBloomFilter(type), subscriptionsVersion, stopPlacesVersion);
+                synchronized (filters) {
+                    filters.put(type, filter);
+                }
+                return filter.bloomFilter;
+            } finally {
+                rebuildLock.unlock();
+            }
+        }
+        return null;
+    }
+
+    private BloomFilter<CharSequence> createBloomFilter(SubscriptionTypeEnum type) {
+        long start = System.currentTimeMillis();
+        Set<String> keys = new HashSet<>(dataStorageService.getSubscribedKeys(type));
+        for (String key : new HashSet<>(keys)) {
+            if (key.startsWith("NSR:StopPlace:") && quayAndStopPlaceMappingService.isValidStopPlace(key)) {
+                //messages refer to quays, so these must pass as well
+                keys.addAll(quayAndStopPlaceMappingService.mapStopPlaceToQuays(key));
+            }
+        }
+        BloomFilter<CharSequence> bloomFilter = BloomFilter.create(Funnels.unencodedCharsFunnel(), Math.max(keys.size(), 1000), FALSE_POSITIVE_PROBABILITY);
+        for (String key : keys) {
+            bloomFilter.put(key);
+        }
+        logger.info("Created {} subscription filter with {} keys in {} ms", type, keys.size(), System.currentTimeMillis() - start);
+        return bloomFilter;
+    }
+
+    private static final class Filter {
+        private final BloomFilter<CharSequence> bloomFilter;
+        private final long subscriptionsVersion;
+        private final long stopPlacesVersion;
+
+        private Filter(BloomFilter<CharSequence> bloomFilter, long subscriptionsVersion, long stopPlacesVersion) {
+            this.bloomFilter = bloomFilter;
+            this.subscriptionsVersion = subscriptionsVersion;
+            this.stopPlacesVersion = stopPlacesVersion;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.testing.LocalDatastoreHelper;
 import com.hazelcast.topic.ITopic;
 import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.MetricsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,10 +37,13 @@ import java.io.IOException;
 public class DataStorageConfiguration {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private ITopic<String> subscriptionCacheRenewerTopic;
+    private MetricsService metricsService;
 
     @Autowired
-    public DataStorageConfiguration(@Qualifier("subscriptionCacheRenewerTopic") ITopic<String> subscriptionCacheRenewerTopic) {
+    public DataStorageConfiguration(@Qualifier("subscriptionCacheRenewerTopic") ITopic<String> subscriptionCacheRenewerTopic,
+                                    MetricsService metricsService) {
         this.subscriptionCacheRenewerTopic = subscriptionCacheRenewerTopic;
+        this.metricsService = metricsService;
     }
 
     @Bean
@@ -51,7 +55,8 @@ public class DataStorageConfiguration {
         logger.info("Creates a DataStorageService on Google Datastore");
         DataStorageService dataStorageService = new DataStorageService(
                 service,
-                subscriptionCacheRenewerTopic);
+                subscriptionCacheRenewerTopic,
+                metricsService);
         logger.info("DataStorageService created");
         return dataStorageService;
     }
@@ -76,6 +81,7 @@ public class DataStorageConfiguration {
 
         return  new DataStorageService(
                 service,
-                subscriptionCacheRenewerTopic);
+                subscriptionCacheRenewerTopic,
+                metricsService);
     }
 }
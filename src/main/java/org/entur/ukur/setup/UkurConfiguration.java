@@ -56,6 +56,15 @@ public class UkurConfiguration {
     @Value("${ukur.camel.subscription-heartbeat-check.interval:10000}")
     private int heartbeatCheckInterval;
 
+    @Value("${ukur.camel.et.batch.size:0}")
+    private int etBatchSize;
+
+    @Value("${ukur.camel.et.batch.timeout:100}")
+    private long etBatchTimeoutMillis;
+
+    @Value("${ukur.camel.et.lazy-conversion:true}")
+    private boolean etLazyConversion;
+
     public String getEtPubsubQueue() {
         return etPubsubQueue;
     }
@@ -98,4 +107,22 @@ public class UkurConfiguration {
     public int getHeartbeatCheckInterval() {
         return heartbeatCheckInterval;
     }
+
+    /**
+     * Max number of ET messages processed together, 0 or 1 to process them one by one.
+     */
+    public int getEtBatchSize() {
+        return etBatchSize;
+    }
+
+    public long getEtBatchTimeoutMillis() {
+        return etBatchTimeoutMillis;
+    }
+
+    /**
+     * Whether ET messages are converted to JAXB only when they might be subscribed upon.
+     */
+    public boolean isEtLazyConversion() {
+        return etLazyConversion;
+    }
 }
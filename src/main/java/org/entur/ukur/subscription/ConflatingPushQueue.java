@@ -0,0 +1,104 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Push bodies waiting to be sent, at most one per subscription and journey (or situation). A newer body replaces
+ * the one waiting for the same key, so a subscriber that falls behind gets the latest version instead of every
+ * version in between. New keys are dropped when the queue holds max entries or max bytes, while replacing a waiting
+ * body is always allowed - it never adds an entry, and keeping the older version would be the wrong choice. The
+ * bodies are the bytes that will be sent, so they are built once and nothing else is held on to while waiting.
+ */
+final class ConflatingPushQueue {
+
+    enum Offer {
+        /** a new entry, that must be taken by a push */
+        QUEUED,
+        /** replaced a waiting body that will be pushed instead */
+        CONFLATED,
+        /** the queue is full */
+        DROPPED
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final HashMap<MessageIdentifierKey, Pending> pending = new HashMap<>();
+    private long bytes = 0;
+
+    ConflatingPushQueue(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Offer offer(MessageIdentifierKey key, String pushAddress, byte[] body) {
+        Pending waiting = pending.get(key);
+        if (waiting != null) {
+            bytes += body.length - waiting.body.length;
+            pending.put(key, new Pending(pushAddress, body));
+            return Offer.CONFLATED;
+        }
+        if (pending.size() >= maxEntries || bytes + body.length > maxBytes) {
+            return Offer.DROPPED;
+        }
+        pending.put(key, new Pending(pushAddress, body));
+        bytes += body.length;
+        return Offer.QUEUED;
+    }
+
+    /**
+     * @return the latest body offered for the key since it was last taken, or null if there is none (also after the
+     * queue is drained)
+     */
+    synchronized byte[] take(MessageIdentifierKey key) {
+        Pending waiting = pending.remove(key);
+        if (waiting == null) {
+            return null;
+        }
+        bytes -= waiting.body.length;
+        return waiting.body;
+    }
+
+    /**
+     * Empties the queue, for pushes that will never be taken.
+     */
+    synchronized Map<MessageIdentifierKey, Pending> drain() {
+        HashMap<MessageIdentifierKey, Pending> drained = new HashMap<>(pending);
+        pending.clear();
+        bytes = 0;
+        return drained;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    static final class Pending {
+        final String pushAddress;
+        final byte[] body;
+
+        private Pending(String pushAddress, byte[] body) {
+            this.pushAddress = pushAddress;
+            this.body = body;
+        }
+    }
+}
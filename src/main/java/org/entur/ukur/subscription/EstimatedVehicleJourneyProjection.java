@@ -0,0 +1,155 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+
+import java.util.BitSet;
+import java.util.Set;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+
+/**
+ * Builds the view of an EstimatedVehicleJourney pushed to a stop subscription without deep copying it: the
+ * projection is a shallow copy that shares all JAXB sub-objects with the original, except for new call containers
+ * with only the subscribed calls. Building it does not modify the original, but the calls are shared - so the
+ * journey must be complete (like the DELAYED statuses set while matching) before it is projected, and neither the
+ * original nor the projection may be modified afterwards.
+ */
+final class EstimatedVehicleJourneyProjection {
+
+    private EstimatedVehicleJourneyProjection() {
+    }
+
+    static EstimatedVehicleJourney onStops(EstimatedVehicleJourney journey, Set<String> subscribedStops) {
+        return onCalls(journey, subscribedCalls(journey, subscribedStops));
+    }
+
+    /**
+     * @return the positions of the calls on the subscribed stops, recorded calls first - subscriptions with the same
+     * calls get the same projection
+     */
+    static BitSet subscribedCalls(EstimatedVehicleJourney journey, Set<String> subscribedStops) {
+        BitSet calls = new BitSet();
+        int position = 0;
+        if (journey.getRecordedCalls() != null) {
+            for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                calls.set(position++, subscribedStops.contains(getStringValue(call.getStopPointRef())));
+            }
+        }
+        if (journey.getEstimatedCalls() != null) {
+            for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                calls.set(position++, subscribedStops.contains(getStringValue(call.getStopPointRef())));
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @param calls as found with {@link #subscribedCalls(EstimatedVehicleJourney, Set)}
+     */
+    static EstimatedVehicleJourney onCalls(EstimatedVehicleJourney journey, BitSet calls) {
+        EstimatedVehicleJourney projection = copyAllButCalls(journey);
+        int position = 0;
+        EstimatedVehicleJourney.RecordedCalls recordedCalls = journey.getRecordedCalls();
+        if (recordedCalls != null) {
+            EstimatedVehicleJourney.RecordedCalls subscribedCalls = new EstimatedVehicleJourney.RecordedCalls();
+            for (RecordedCall call : recordedCalls.getRecordedCalls()) {
+                if (calls.get(position++)) {
+                    subscribedCalls.getRecordedCalls().add(call);
+                }
+            }
+            projection.setRecordedCalls(subscribedCalls);
+        }
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = journey.getEstimatedCalls();
+        if (estimatedCalls != null) {
+            EstimatedVehicleJourney.EstimatedCalls subscribedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+            for (EstimatedCall call : estimatedCalls.getEstimatedCalls()) {
+                if (calls.get(position++)) {
+                    subscribedCalls.getEstimatedCalls().add(call);
+                }
+            }
+            projection.setEstimatedCalls(subscribedCalls);
+        }
+        projection.setIsCompleteStopSequence(false); //since we have tampered with the calls!
+        return projection;
+    }
+
+    /**
+     * Copies the properties by reference, while list properties get lists of their own with the same elements. The
+     * list getters create an empty list on the original where it has none, which doesn't change what it marshals to.
+     */
+    private static EstimatedVehicleJourney copyAllButCalls(EstimatedVehicleJourney journey) {
+        EstimatedVehicleJourney copy = new EstimatedVehicleJourney();
+        copy.setRecordedAtTime(journey.getRecordedAtTime());
+        copy.setLineRef(journey.getLineRef());
+        copy.setDirectionRef(journey.getDirectionRef());
+        copy.setFramedVehicleJourneyRef(journey.getFramedVehicleJourneyRef());
+        copy.setDatedVehicleJourneyRef(journey.getDatedVehicleJourneyRef());
+        copy.setDatedVehicleJourneyIndirectRef(journey.getDatedVehicleJourneyIndirectRef());
+        copy.setEstimatedVehicleJourneyCode(journey.getEstimatedVehicleJourneyCode());
+        copy.setExtraJourney(journey.isExtraJourney());
+        copy.setCancellation(journey.isCancellation());
+        copy.setJourneyPatternRef(journey.getJourneyPatternRef());
+        copy.setJourneyPatternName(journey.getJourneyPatternName());
+        copy.getVehicleModes().addAll(journey.getVehicleModes());
+        copy.setRouteRef(journey.getRouteRef());
+        copy.getPublishedLineNames().addAll(journey.getPublishedLineNames());
+        copy.setGroupOfLinesRef(journey.getGroupOfLinesRef());
+        copy.getDirectionNames().addAll(journey.getDirectionNames());
+        copy.setExternalLineRef(journey.getExternalLineRef());
+        copy.setOriginRef(journey.getOriginRef());
+        copy.getOriginNames().addAll(journey.getOriginNames());
+        copy.getOriginShortNames().addAll(journey.getOriginShortNames());
+        copy.getDestinationDisplayAtOrigins().addAll(journey.getDestinationDisplayAtOrigins());
+        copy.getVias().addAll(journey.getVias());
+        copy.setDestinationRef(journey.getDestinationRef());
+        copy.getDestinationNames().addAll(journey.getDestinationNames());
+        copy.getDestinationShortNames().addAll(journey.getDestinationShortNames());
+        copy.getOriginDisplayAtDestinations().addAll(journey.getOriginDisplayAtDestinations());
+        copy.setOperatorRef(journey.getOperatorRef());
+        copy.setProductCategoryRef(journey.getProductCategoryRef());
+        copy.getServiceFeatureReves().addAll(journey.getServiceFeatureReves());
+        copy.getVehicleFeatureReves().addAll(journey.getVehicleFeatureReves());
+        copy.getVehicleJourneyNames().addAll(journey.getVehicleJourneyNames());
+        copy.getJourneyNotes().addAll(journey.getJourneyNotes());
+        copy.setPublicContact(journey.getPublicContact());
+        copy.setOperationsContact(journey.getOperationsContact());
+        copy.setHeadwayService(journey.isHeadwayService());
+        copy.setOriginAimedDepartureTime(journey.getOriginAimedDepartureTime());
+        copy.setDestinationAimedArrivalTime(journey.getDestinationAimedArrivalTime());
+        copy.setFirstOrLastJourney(journey.getFirstOrLastJourney());
+        copy.setMonitored(journey.isMonitored());
+        copy.getMonitoringErrors().addAll(journey.getMonitoringErrors());
+        copy.setPredictionInaccurate(journey.isPredictionInaccurate());
+        copy.setDataSource(journey.getDataSource());
+        copy.setConfidenceLevel(journey.getConfidenceLevel());
+        copy.setOccupancy(journey.getOccupancy());
+        copy.setBlockRef(journey.getBlockRef());
+        copy.setCourseOfJourneyRef(journey.getCourseOfJourneyRef());
+        copy.setVehicleRef(journey.getVehicleRef());
+        copy.getAdditionalVehicleJourneyReves().addAll(journey.getAdditionalVehicleJourneyReves());
+        copy.setDriverRef(journey.getDriverRef());
+        copy.setDriverName(journey.getDriverName());
+        copy.setTrainNumbers(journey.getTrainNumbers());
+        copy.setJourneyParts(journey.getJourneyParts());
+        copy.setJourneyRelations(journey.getJourneyRelations());
+        copy.setExtensions(journey.getExtensions());
+        return copy;
+    }
+}
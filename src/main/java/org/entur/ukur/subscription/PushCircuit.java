@@ -0,0 +1,56 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Consecutive failed pushes to a push host, shared across the cluster by {@link PushCircuitBreaker}. Immutable, so
+ * it can be swapped with a compare-and-set on the shared map.
+ */
+public class PushCircuit implements Serializable {
+    final int failures;
+    //when the open circuit lets the next probe through (0 while closed):
+    final long openUntil;
+
+    PushCircuit(int failures, long openUntil) {
+        this.failures = failures;
+        this.openUntil = openUntil;
+    }
+
+    boolean isClosed() {
+        return openUntil == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PushCircuit that = (PushCircuit) o;
+        return failures == that.failures && openUntil == that.openUntil;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(failures, openUntil);
+    }
+
+    @Override
+    public String toString() {
+        return "PushCircuit{failures=" + failures + ", openUntil=" + openUntil + '}';
+    }
+}
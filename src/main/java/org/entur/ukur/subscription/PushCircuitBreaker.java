@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker per push host. The circuit opens after a number of consecutive failed pushes, and while it is
+ * open pushes to the host are skipped instead of waiting for a dead endpoint. When the open duration has passed,
+ * one push is let through as a probe: the circuit closes if it succeeds and stays open for another period if it
+ * fails. The circuits live in a (Hazelcast) map so every node sees the same state and only one of them probes.
+ */
+final class PushCircuitBreaker {
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final ConcurrentMap<String, PushCircuit> circuits;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    PushCircuitBreaker(ConcurrentMap<String, PushCircuit> circuits, int failureThreshold, Duration openDuration, LongSupplier clock) {
+        this.circuits = circuits;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openDuration.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if the push may be sent: the circuit is closed, or this push is the probe of a half-open circuit
+     */
+    boolean allow(String host) {
+        PushCircuit circuit = circuits.get(host);
+        if (circuit == null || circuit.isClosed()) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        if (now < circuit.openUntil) {
+            return false;
+        }
+        //the node that moves openUntil sends the probe, others wait for its outcome (or for it to time out):
+        return circuits.replace(host, circuit, new PushCircuit(circuit.failures, now + openMillis));
+    }
+
+    void onSuccess(String host) {
+        //read first, as nearly all pushes go to hosts without failures:
+        if (circuits.get(host) != null) {
+            circuits.remove(host);
+        }
+    }
+
+    /**
+     * @return true if this failure opened the circuit
+     */
+    boolean onFailure(String host) {
+        long now = clock.getAsLong();
+        PushCircuit circuit = circuits.compute(host, (h, previous) -> {
+            int failures = previous == null ? 1 : previous.failures + 1;
+            return new PushCircuit(failures, failures >= failureThreshold ? now + openMillis : 0);
+        });
+        return circuit.failures == failureThreshold;
+    }
+
+    State getState(String host) {
+        PushCircuit circuit = circuits.get(host);
+        if (circuit == null || circuit.isClosed()) {
+            return State.CLOSED;
+        }
+        return clock.getAsLong() < circuit.openUntil ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /**
+     * @return number of push hosts with an open (or half-open) circuit
+     */
+    int getOpen() {
+        int open = 0;
+        for (PushCircuit circuit : circuits.values()) {
+            if (!circuit.isClosed()) {
+                open++;
+            }
+        }
+        return open;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The outbound http client for pushes. One client is shared by all pushes, so connections are kept alive and reused
+ * per host (and multiplexed when HTTP/2 is enabled and a subscriber negotiates it). Push addresses are parsed once and cached.
+ */
+class PushClient {
+
+    static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int MAX_CACHED_URIS = 100_000;
+
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final Cache<String, URI> uris = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_URIS)
+            .build();
+
+    PushClient(boolean http2, Duration connectTimeout, Duration requestTimeout) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .build();
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * @param gzipped whether the body is gzipped (and sent with Content-Encoding: gzip)
+     */
+    CompletableFuture<HttpResponse<Void>> post(String pushAddress, byte[] body, boolean gzipped) {
+        HttpRequest.Builder post = HttpRequest.newBuilder(uri(pushAddress))
+                .timeout(requestTimeout)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .header("Content-Type", "application/xml");
+        if (gzipped) {
+            post.header("Content-Encoding", "gzip");
+        }
+        return httpClient.sendAsync(post.build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    HttpClient.Version getVersion() {
+        return httpClient.version();
+    }
+
+    URI uri(String pushAddress) {
+        try {
+            return uris.get(pushAddress, () -> URI.create(pushAddress));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            //URI.create throws IllegalArgumentException, which the cache wraps in UncheckedExecutionException
+            throw new IllegalArgumentException("Invalid push address " + pushAddress, e.getCause());
+        }
+    }
+}
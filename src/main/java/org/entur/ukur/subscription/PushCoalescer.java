@@ -0,0 +1,136 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Holds back payloads to subscriptions with a coalescing window, so several journeys and situations are pushed in
+ * one ServiceDelivery. A window is flushed when it holds the subscription's max size, or at its max delay after the
+ * first payload was added. A journey or situation added again before its window is flushed replaces the earlier one.
+ */
+final class PushCoalescer {
+
+    static final int DEFAULT_MAX_SIZE = 200;
+
+    private final ScheduledExecutorService scheduler;
+    private final BiConsumer<Subscription, List<PushPayload>> flush;
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    PushCoalescer(ScheduledExecutorService scheduler, BiConsumer<Subscription, List<PushPayload>> flush) {
+        this.scheduler = scheduler;
+        this.flush = flush;
+    }
+
+    /**
+     * Only SIRI model subscriptions get a ServiceDelivery that can hold more than one element.
+     */
+    static boolean isCoalescing(Subscription subscription) {
+        Duration maxDelay = subscription.getCoalesceMaxDelay();
+        return subscription.isUseSiriSubscriptionModel() && maxDelay != null && !maxDelay.isNegative() && !maxDelay.isZero();
+    }
+
+    void add(Subscription subscription, PushPayload payload) {
+        Window[] created = new Window[1];
+        Window[] full = new Window[1];
+        windows.compute(subscription.getId(), (id, window) -> {
+            if (window == null) {
+                window = new Window(subscription);
+                created[0] = window;
+            }
+            window.add(payload);
+            if (window.size() >= maxSize(subscription)) {
+                full[0] = window;
+                return null;
+            }
+            return window;
+        });
+        if (full[0] != null) {
+            flush.accept(full[0].subscription, full[0].getPayloads());
+        } else if (created[0] != null) {
+            //scheduled outside compute so the timeout never runs before the window is in the map:
+            Window window = created[0];
+            scheduler.schedule(() -> flushExpired(subscription.getId(), window),
+                    subscription.getCoalesceMaxDelay().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    int getWaiting() {
+        return windows.size();
+    }
+
+    /**
+     * Removes every window without flushing it, for payloads that will not be pushed from here. Their timeouts do
+     * nothing.
+     */
+    Map<Subscription, List<PushPayload>> drain() {
+        HashMap<Subscription, List<PushPayload>> drained = new HashMap<>();
+        for (String subscriptionId : windows.keySet()) {
+            Window window = windows.remove(subscriptionId);
+            if (window != null) {
+                drained.put(window.subscription, window.getPayloads());
+            }
+        }
+        return drained;
+    }
+
+    private void flushExpired(String subscriptionId, Window window) {
+        if (windows.remove(subscriptionId, window)) {
+            flush.accept(window.subscription, window.getPayloads());
+        }
+    }
+
+    private static int maxSize(Subscription subscription) {
+        Integer maxSize = subscription.getCoalesceMaxSize();
+        return maxSize == null || maxSize < 1 ? DEFAULT_MAX_SIZE : maxSize;
+    }
+
+    /**
+     * Only touched inside compute on the windows map, or after it has been removed from it.
+     */
+    private static final class Window {
+        private final Subscription subscription;
+        private final LinkedHashMap<Object, PushPayload> payloads = new LinkedHashMap<>();
+
+        Window(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        void add(PushPayload payload) {
+            String messageIdentifier = payload.getMessageIdentifier();
+            Object key = messageIdentifier == null ? payload : payload.getSiriElement().getClass().getSimpleName() + ":" + messageIdentifier;
+            payloads.remove(key);
+            payloads.put(key, payload);
+        }
+
+        int size() {
+            return payloads.size();
+        }
+
+        List<PushPayload> getPayloads() {
+            return new ArrayList<>(payloads.values());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips push bodies with pooled deflaters, as a Deflater holds native memory that is costly to allocate per push
+ * and is only released when it is ended.
+ */
+final class PushCompression {
+
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private PushCompression() {
+    }
+
+    static byte[] gzip(byte[] data) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, data.length);
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return true if the data starts with the gzip magic number (an XML body never does)
+     */
+    static boolean isGzipped(byte[] data) {
+        return data.length >= GZIP_HEADER.length && data[0] == GZIP_HEADER[0] && data[1] == GZIP_HEADER[1];
+    }
+
+    /**
+     * @return the size of the gzipped data before it was compressed, from the gzip trailer
+     */
+    static int uncompressedSize(byte[] gzipped) {
+        int i = gzipped.length - 4;
+        return (gzipped[i] & 0xff) | (gzipped[i + 1] & 0xff) << 8 | (gzipped[i + 2] & 0xff) << 16 | (gzipped[i + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
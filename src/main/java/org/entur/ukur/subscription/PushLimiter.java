@@ -0,0 +1,131 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Limits the number of pushes in flight, in total and per push host. Pushes over the limits wait in a queue per
+ * host instead of holding a thread, and hosts take turns when the total limit is what holds them back - so a slow
+ * subscriber only delays its own pushes. A started push must call {@link #release(String)} with the same host
+ * when it completes, however it completes.
+ */
+final class PushLimiter {
+
+    private final int maxInFlight;
+    private final int maxInFlightPerHost;
+    private final Executor executor;
+    private final HashMap<String, Host> hosts = new HashMap<>();
+    //hosts with waiting pushes that are only held back by the total limit:
+    private final ArrayDeque<Host> readyHosts = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int waiting = 0;
+
+    /**
+     * @param executor runs the pushes, so that a push is never started inside the completion of another
+     */
+    PushLimiter(int maxInFlight, int maxInFlightPerHost, Executor executor) {
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.executor = executor;
+    }
+
+    void submit(String host, Runnable push) {
+        synchronized (this) {
+            Host h = hosts.computeIfAbsent(host, k -> new Host());
+            if (h.inFlight >= maxInFlightPerHost || inFlight >= maxInFlight) {
+                h.waiting.add(push);
+                waiting++;
+                markReady(h);
+                return;
+            }
+            h.inFlight++;
+            inFlight++;
+        }
+        executor.execute(push);
+    }
+
+    void release(String host) {
+        Runnable next;
+        synchronized (this) {
+            Host h = hosts.get(host);
+            if (h == null || h.inFlight == 0) {
+                throw new IllegalStateException("No push in flight to " + host);
+            }
+            h.inFlight--;
+            inFlight--;
+            if (h.waiting.isEmpty()) {
+                if (h.inFlight == 0) {
+                    hosts.remove(host);
+                }
+            } else {
+                markReady(h);
+            }
+            next = pollReady();
+        }
+        if (next != null) {
+            executor.execute(next);
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return pushes to the host that are in flight or waiting
+     */
+    synchronized int getActive(String host) {
+        Host h = hosts.get(host);
+        return h == null ? 0 : h.inFlight + h.waiting.size();
+    }
+
+    private void markReady(Host h) {
+        if (!h.ready && !h.waiting.isEmpty() && h.inFlight < maxInFlightPerHost) {
+            h.ready = true;
+            readyHosts.add(h);
+        }
+    }
+
+    private Runnable pollReady() {
+        while (inFlight < maxInFlight && !readyHosts.isEmpty()) {
+            Host h = readyHosts.poll();
+            h.ready = false;
+            if (h.waiting.isEmpty() || h.inFlight >= maxInFlightPerHost) {
+                continue;
+            }
+            Runnable push = h.waiting.poll();
+            waiting--;
+            h.inFlight++;
+            inFlight++;
+            markReady(h);
+            return push;
+        }
+        return null;
+    }
+
+    private static final class Host {
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight = 0;
+        private boolean ready = false;
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Pushes to retry, kept in append-only segment files (memory mapped) on local disk so they survive a restart
+ * without the bodies being held on the heap. Only the latest version per subscription and message identifier is
+ * retried: a newer version, or a successful push of one, supersedes it. Retries back off exponentially and are
+ * given up after {@link #MAX_ATTEMPTS}. The pushes are polled in the order they are due, from a schedule where a
+ * superseded or rescheduled push is skipped when its turn comes instead of being searched for and removed.
+ * <p>
+ * Records are only ever appended, and delivered pushes are marked with a tombstone. Segments are compacted from the
+ * oldest one, by moving its few live records to the active segment and deleting it - so a tombstone never outlives
+ * an older record it hides.
+ */
+final class PushOutbox implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int MAX_ATTEMPTS = 10;
+    static final long FIRST_RETRY_MILLIS = 1_000;
+    static final long MAX_RETRY_MILLIS = 5 * 60_000;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final byte PUSH = 1;
+    private static final byte DELIVERED = 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final LongSupplier clock;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final HashMap<MessageIdentifierKey, Location> index = new HashMap<>();
+    //by due time, and in the order scheduled for the same time:
+    private final PriorityQueue<Scheduled> schedule = new PriorityQueue<>(
+            Comparator.<Scheduled>comparingLong(scheduled -> scheduled.due).thenComparingLong(scheduled -> scheduled.order));
+    private Segment active;
+    private long nextSequence = 0;
+    private long bytes = 0;
+    private long scheduled = 0;
+
+    /**
+     * Recovers the pushes left in the directory by an earlier instance.
+     */
+    PushOutbox(Path directory, int segmentSize, long maxBytes, LongSupplier clock) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, map(file, Files.size(file)));
+            segments.add(segment);
+            bytes += segment.buffer.capacity();
+            recover(segment);
+            nextSequence = sequence + 1;
+            active = segment;
+        }
+        for (Location location : index.values()) {
+            schedule.add(new Scheduled(location, scheduled++));
+        }
+    }
+
+    /**
+     * Adds a push to retry, replacing any earlier version of it.
+     *
+     * @return false if the outbox is full
+     */
+    synchronized boolean add(String subscriptionId, String pushAddress, String messageIdentifier, byte[] body) throws IOException {
+        MessageIdentifierKey key = new MessageIdentifierKey(subscriptionId, messageIdentifier);
+        Location location = new Location(key, pushAddress, 0, clock.getAsLong() + backoff(0));
+        if (!write(location, body)) {
+            return false;
+        }
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            previous.segment.live--;
+        }
+        schedule.add(new Scheduled(location, scheduled++));
+        return true;
+    }
+
+    /**
+     * Takes the pushes that are due for a retry. Each of them must be handed back with {@link #delivered(Entry)} or
+     * {@link #retryLater(Entry)}, and is not returned again until then.
+     */
+    synchronized List<Entry> pollDue(int max) {
+        long now = clock.getAsLong();
+        List<Entry> due = new ArrayList<>();
+        while (due.size() < max && !schedule.isEmpty() && schedule.peek().due <= now) {
+            Scheduled next = schedule.poll();
+            Location location = next.location;
+            if (next.isCurrent() && index.get(location.key) == location) {
+                location.inRetry = true;
+                due.add(new Entry(location, readBody(location)));
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Backs off another period, or gives up the push after {@link #MAX_ATTEMPTS}. Does nothing if a newer version
+     * has been added meanwhile.
+     *
+     * @return false if the push was given up (or superseded)
+     */
+    synchronized boolean retryLater(Entry entry) throws IOException {
+        Location location = entry.location;
+        if (index.get(location.key) != location) {
+            return false;
+        }
+        location.inRetry = false;
+        int attempt = location.attempt + 1;
+        if (attempt >= MAX_ATTEMPTS) {
+            remove(location.key);
+            return false;
+        }
+        Segment previous = location.segment;
+        location.attempt = attempt;
+        location.due = clock.getAsLong() + backoff(attempt);
+        //keeps the old record if there is no room for the new attempt:
+        if (write(location, entry.body)) {
+            previous.live--;
+        }
+        schedule.add(new Scheduled(location, scheduled++));
+        return true;
+    }
+
+    /**
+     * Removes the push, unless a newer version has been added meanwhile.
+     */
+    synchronized void delivered(Entry entry) throws IOException {
+        if (index.get(entry.location.key) == entry.location) {
+            remove(entry.location.key);
+        }
+    }
+
+    /**
+     * Removes any version of the push, as a newer one has been delivered.
+     */
+    synchronized void remove(String subscriptionId, String messageIdentifier) throws IOException {
+        MessageIdentifierKey key = new MessageIdentifierKey(subscriptionId, messageIdentifier);
+        if (index.containsKey(key)) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments as long as they hold no live pushes, and moves the live pushes out of the oldest
+     * segment when less than a quarter of its records are live.
+     */
+    synchronized void compact() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.peekFirst();
+            if (oldest.live == 0 && (oldest != active || index.isEmpty())) {
+                delete(oldest);
+            } else if (oldest != active && oldest.live * 4 < oldest.records) {
+                for (Location location : index.values()) {
+                    if (location.segment == oldest) {
+                        if (!write(location, readBody(location))) {
+                            return;
+                        }
+                        oldest.live--;
+                    }
+                }
+                delete(oldest);
+            } else {
+                return;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    static long backoff(int attempt) {
+        return Math.min(MAX_RETRY_MILLIS, FIRST_RETRY_MILLIS << Math.min(attempt, 30));
+    }
+
+    private void remove(MessageIdentifierKey key) throws IOException {
+        Location location = index.remove(key);
+        location.segment.live--;
+        ByteBuffer tombstone = ByteBuffer.allocate(1 + length(key.subscriptionId) + length(key.messageIdentifier));
+        tombstone.put(DELIVERED);
+        putString(tombstone, key.subscriptionId);
+        putString(tombstone, key.messageIdentifier);
+        Segment segment = append(tombstone.array());
+        if (segment == null) {
+            //the record is kept, so it is retried once more after a restart
+            return;
+        }
+        segment.records++;
+    }
+
+    /**
+     * Appends the push to the active segment and points the location to it.
+     */
+    private boolean write(Location location, byte[] body) throws IOException {
+        MessageIdentifierKey key = location.key;
+        ByteBuffer record = ByteBuffer.allocate(1 + length(key.subscriptionId) + length(key.messageIdentifier)
+                + 8 + 4 + length(location.pushAddress) + 4 + body.length);
+        record.put(PUSH);
+        putString(record, key.subscriptionId);
+        putString(record, key.messageIdentifier);
+        record.putLong(location.due);
+        record.putInt(location.attempt);
+        putString(record, location.pushAddress);
+        record.putInt(body.length);
+        record.put(body);
+        Segment segment = append(record.array());
+        if (segment == null) {
+            return false;
+        }
+        location.segment = segment;
+        location.bodyOffset = segment.position - body.length;
+        location.bodyLength = body.length;
+        segment.records++;
+        segment.live++;
+        return true;
+    }
+
+    /**
+     * Writes length, checksum and content - followed by a zero length that ends the segment until the next record
+     * is appended.
+     *
+     * @return the segment written to, or null if the outbox is full
+     */
+    private Segment append(byte[] content) throws IOException {
+        int size = 8 + content.length;
+        if (active == null || active.buffer.capacity() - active.position < size + 4) {
+            int capacity = Math.max(segmentSize, size + 4);
+            if (bytes + capacity > maxBytes) {
+                return null;
+            }
+            Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX));
+            active = new Segment(file, map(file, capacity));
+            nextSequence++;
+            segments.add(active);
+            bytes += capacity;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(active.position);
+        buffer.putInt(content.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(content);
+        buffer.putInt(0);
+        active.position += size;
+        return active;
+    }
+
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + 8 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 8 + length > buffer.capacity()) {
+                break;
+            }
+            byte[] content = new byte[length];
+            buffer.position(position + 8);
+            buffer.get(content);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(content);
+            byte kind = record.get();
+            MessageIdentifierKey key = new MessageIdentifierKey(getString(record), getString(record));
+            Location previous;
+            if (kind == PUSH) {
+                long due = record.getLong();
+                int attempt = record.getInt();
+                Location location = new Location(key, getString(record), attempt, due);
+                location.bodyLength = record.getInt();
+                location.bodyOffset = position + 8 + record.position();
+                location.segment = segment;
+                segment.live++;
+                previous = index.put(key, location);
+            } else {
+                previous = index.remove(key);
+            }
+            if (previous != null) {
+                previous.segment.live--;
+            }
+            segment.records++;
+            position += 8 + length;
+        }
+        segment.position = position;
+    }
+
+    private byte[] readBody(Location location) {
+        byte[] body = new byte[location.bodyLength];
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.bodyOffset);
+        buffer.get(body);
+        return body;
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment);
+        if (segment == active) {
+            active = null;
+        }
+        bytes -= segment.buffer.capacity();
+        //the mapping is released when the buffer is collected
+        Files.deleteIfExists(segment.file);
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int length(String value) {
+        return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A push taken for a retry.
+     */
+    static final class Entry {
+        private final Location location;
+        private final byte[] body;
+
+        private Entry(Location location, byte[] body) {
+            this.location = location;
+            this.body = body;
+        }
+
+        String getSubscriptionId() {
+            return location.key.subscriptionId;
+        }
+
+        String getMessageIdentifier() {
+            return location.key.messageIdentifier;
+        }
+
+        String getPushAddress() {
+            return location.pushAddress;
+        }
+
+        int getAttempt() {
+            return location.attempt;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Where the latest version of a push is, and when it is retried.
+     */
+    private static final class Location {
+        private final MessageIdentifierKey key;
+        private final String pushAddress;
+        private int attempt;
+        private long due;
+        private Segment segment;
+        private int bodyOffset;
+        private int bodyLength;
+        private boolean inRetry = false;
+
+        Location(MessageIdentifierKey key, String pushAddress, int attempt, long due) {
+            this.key = key;
+            this.pushAddress = pushAddress;
+            this.attempt = attempt;
+            this.due = due;
+        }
+    }
+
+    /**
+     * When a push was scheduled for, which is out of date once the push is taken for a retry or rescheduled.
+     */
+    private static final class Scheduled {
+        private final Location location;
+        private final long due;
+        private final int attempt;
+        private final long order;
+
+        Scheduled(Location location, long order) {
+            this.location = location;
+            this.due = location.due;
+            this.attempt = location.attempt;
+            this.order = order;
+        }
+
+        boolean isCurrent() {
+            return !location.inRetry && location.attempt == attempt && location.due == due;
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int records = 0;
+        private int live = 0;
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
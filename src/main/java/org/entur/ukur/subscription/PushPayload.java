@@ -0,0 +1,198 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import jakarta.xml.bind.DatatypeConverter;
+import jakarta.xml.bind.JAXBException;
+import org.entur.ukur.xml.SiriMarshaller;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.entur.ukur.subscription.SiriXMLSubscriptionHandler.SIRI_VERSION;
+
+/**
+ * A push body shared by all subscriptions that should receive the same SIRI element. The message (with or without
+ * the Siri root, depending on the subscription model) is built and marshalled at most once per variant, by the first
+ * push that needs it, and the checksum is taken of the marshalled body. The element must not be modified after the
+ * payload is created.
+ */
+final class PushPayload {
+
+    private final Object siriElement;
+    private final ZonedDateTime timestamp;
+    private final SiriMarshaller siriMarshaller;
+    private final Variant plain = new Variant(false);
+    private final Variant withSiriRoot = new Variant(true);
+
+    PushPayload(Object siriElement, ZonedDateTime timestamp, SiriMarshaller siriMarshaller) {
+        this.siriElement = siriElement;
+        this.timestamp = timestamp;
+        this.siriMarshaller = siriMarshaller;
+    }
+
+    Object getSiriElement() {
+        return siriElement;
+    }
+
+    /**
+     * @return the DatedVehicleJourneyRef or SituationNumber the element is about, if any
+     */
+    String getMessageIdentifier() {
+        if (siriElement instanceof EstimatedVehicleJourney) {
+            EstimatedVehicleJourney journey = (EstimatedVehicleJourney) siriElement;
+            return journey.getDatedVehicleJourneyRef() == null ? null : journey.getDatedVehicleJourneyRef().getValue();
+        } else if (siriElement instanceof PtSituationElement) {
+            PtSituationElement situation = (PtSituationElement) siriElement;
+            return situation.getSituationNumber() == null ? null : situation.getSituationNumber().getValue();
+        }
+        return null;
+    }
+
+    byte[] getBody(boolean useSiriSubscriptionModel) throws JAXBException {
+        return variant(useSiriSubscriptionModel).getBody();
+    }
+
+    /**
+     * @param gzip for the body gzipped, which is also done at most once per variant
+     */
+    byte[] getBody(boolean useSiriSubscriptionModel, boolean gzip) throws JAXBException {
+        return gzip ? variant(useSiriSubscriptionModel).getGzippedBody() : variant(useSiriSubscriptionModel).getBody();
+    }
+
+    /**
+     * @return the MD5 of the body, which is marshalled for it if it hasn't been already
+     */
+    String getChecksum(boolean useSiriSubscriptionModel) throws JAXBException, NoSuchAlgorithmException {
+        return variant(useSiriSubscriptionModel).getChecksum();
+    }
+
+    private Variant variant(boolean useSiriSubscriptionModel) {
+        return useSiriSubscriptionModel ? withSiriRoot : plain;
+    }
+
+    /**
+     * Marshalls the elements of the payloads into one Siri message, with all journeys in one EstimatedVersionFrame
+     * and all situations in one SituationExchangeDelivery.
+     */
+    static byte[] getCoalescedBody(List<PushPayload> payloads, SiriMarshaller siriMarshaller) throws JAXBException {
+        List<Object> siriElements = new ArrayList<>(payloads.size());
+        ZonedDateTime timestamp = null;
+        for (PushPayload payload : payloads) {
+            siriElements.add(payload.siriElement);
+            if (timestamp == null || (payload.timestamp != null && payload.timestamp.isAfter(timestamp))) {
+                timestamp = payload.timestamp;
+            }
+        }
+        return siriMarshaller.marshall(createSiri(siriElements, timestamp)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Object createMessage(boolean useSiriSubscriptionModel) {
+        if (!useSiriSubscriptionModel) {
+            return siriElement;
+        }
+        return createSiri(Collections.singletonList(siriElement), timestamp);
+    }
+
+    static Siri createSiri(List<Object> siriElements, ZonedDateTime timestamp) {
+        Siri siri = new Siri();
+        siri.setVersion(SIRI_VERSION);
+        siri.setServiceDelivery(new ServiceDelivery());
+        siri.getServiceDelivery().setResponseTimestamp(timestamp);
+        RequestorRef producer = null;
+        EstimatedVersionFrameStructure estimatedVersionFrameStructure = null;
+        SituationExchangeDeliveryStructure.Situations situations = null;
+        for (Object siriElement : siriElements) {
+            if (siriElement instanceof EstimatedVehicleJourney) {
+                if (producer == null) {
+                    producer = new RequestorRef();
+                    producer.setValue(((EstimatedVehicleJourney) siriElement).getDataSource());
+                }
+                if (estimatedVersionFrameStructure == null) {
+                    EstimatedTimetableDeliveryStructure estimatedTimetableDeliveryStructure = new EstimatedTimetableDeliveryStructure();
+                    estimatedVersionFrameStructure = new EstimatedVersionFrameStructure();
+                    estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().add(estimatedVersionFrameStructure);
+                    siri.getServiceDelivery().getEstimatedTimetableDeliveries().add(estimatedTimetableDeliveryStructure);
+                }
+                estimatedVersionFrameStructure.getEstimatedVehicleJourneies().add((EstimatedVehicleJourney) siriElement);
+            } else if (siriElement instanceof PtSituationElement) {
+                if (producer == null) {
+                    producer = new RequestorRef();
+                    producer.setValue(((PtSituationElement) siriElement).getParticipantRef().getValue());
+                }
+                if (situations == null) {
+                    SituationExchangeDeliveryStructure situationExchangeDeliveryStructure = new SituationExchangeDeliveryStructure();
+                    situations = new SituationExchangeDeliveryStructure.Situations();
+                    situationExchangeDeliveryStructure.setSituations(situations);
+                    siri.getServiceDelivery().getSituationExchangeDeliveries().add(situationExchangeDeliveryStructure);
+                }
+                situations.getPtSituationElements().add((PtSituationElement) siriElement);
+            }
+        }
+        siri.getServiceDelivery().setProducerRef(producer != null ? producer : new RequestorRef());
+        return siri;
+    }
+
+    private static String checksum(byte[] body) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        return DatatypeConverter.printHexBinary(md.digest(body));
+    }
+
+    private final class Variant {
+        private final boolean useSiriSubscriptionModel;
+        private byte[] body;
+        private byte[] gzippedBody;
+        private String checksum;
+
+        Variant(boolean useSiriSubscriptionModel) {
+            this.useSiriSubscriptionModel = useSiriSubscriptionModel;
+        }
+
+        synchronized byte[] getBody() throws JAXBException {
+            if (body == null) {
+                body = siriMarshaller.marshall(createMessage(useSiriSubscriptionModel)).getBytes(StandardCharsets.UTF_8);
+            }
+            return body;
+        }
+
+        synchronized byte[] getGzippedBody() throws JAXBException {
+            if (gzippedBody == null) {
+                gzippedBody = PushCompression.gzip(getBody());
+            }
+            return gzippedBody;
+        }
+
+        synchronized String getChecksum() throws JAXBException, NoSuchAlgorithmException {
+            if (checksum == null) {
+                checksum = checksum(getBody());
+            }
+            return checksum;
+        }
+    }
+}
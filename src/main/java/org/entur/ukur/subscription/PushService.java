@@ -0,0 +1,732 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.codahale.metrics.Timer;
+import jakarta.annotation.PreDestroy;
+import jakarta.xml.bind.JAXBException;
+import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.PrometheusMetricsService;
+import org.entur.ukur.xml.SiriMarshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import static org.entur.ukur.service.MetricsService.GAUGE_COALESCING_WINDOWS;
+import static org.entur.ukur.service.MetricsService.GAUGE_OUTBOX_BYTES;
+import static org.entur.ukur.service.MetricsService.GAUGE_OUTBOX_ENTRIES;
+import static org.entur.ukur.service.MetricsService.GAUGE_PREPARE_QUEUE;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_CIRCUITS_OPEN;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_IN_FLIGHT;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_PENDING;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_PENDING_BYTES;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_QUEUE;
+
+/**
+ * Sends push messages to subscribers: prepares them on a bounded stage, skips messages equal to the last one sent
+ * for the same journey or situation, coalesces, conflates and limits pushes per host, and retries failed pushes from
+ * the outbox. What to do with a subscription after a push is left to the {@link ResponseHandler}.
+ */
+@Service
+public class PushService {
+
+    static final int PREPARE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int DEFAULT_PREPARE_QUEUE_CAPACITY = 10_000;
+    static final int DEFAULT_PUSH_THREADS = 16;
+    static final int DEFAULT_MAX_PUSHES_IN_FLIGHT = 2_000;
+    static final int DEFAULT_MAX_PUSHES_IN_FLIGHT_PER_HOST = 50;
+    static final int DEFAULT_MAX_PENDING_PUSHES = 100_000;
+    static final long DEFAULT_MAX_PENDING_PUSH_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_OUTBOX_RETRIES_PER_ROUND = 500;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    @Autowired
+    PrometheusMetricsService prometheusMetricsService;
+
+    private final DataStorageService dataStorageService;
+    private final SiriMarshaller siriMarshaller;
+    private final MetricsService metricsService;
+    private final Map<MessageIdentifierKey, String> lastMessageChecksum;
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    //Only prepares requests and handles responses, the http client does not hold a thread while waiting for a response:
+    private volatile ExecutorService pushExecutor = Executors.newFixedThreadPool(DEFAULT_PUSH_THREADS);
+    private final AtomicInteger pushTasks = new AtomicInteger();
+    private volatile PushLimiter pushLimiter = new PushLimiter(DEFAULT_MAX_PUSHES_IN_FLIGHT, DEFAULT_MAX_PUSHES_IN_FLIGHT_PER_HOST, this::executePush);
+    //Latest payload per subscription and journey/situation, while waiting for the push limiter:
+    private volatile ConflatingPushQueue pushQueue = new ConflatingPushQueue(DEFAULT_MAX_PENDING_PUSHES, DEFAULT_MAX_PENDING_PUSH_BYTES);
+    private final Set<String> pushHostsWithGauge = ConcurrentHashMap.newKeySet();
+    //Groups, projects and clones for the matched subscriptions so the message consumer can move on (runs in the caller when full):
+    private volatile ThreadPoolExecutor prepareExecutor = newPrepareExecutor(DEFAULT_PREPARE_QUEUE_CAPACITY);
+    //Only times out coalescing windows and takes due retries from the outbox, the pushes are sent on the push executor:
+    private final ScheduledExecutorService pushScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final PushCoalescer pushCoalescer = new PushCoalescer(pushScheduler, this::pushCoalesced);
+    volatile PushOutbox pushOutbox;
+    volatile PushClient pushClient = new PushClient(false, PushClient.DEFAULT_CONNECT_TIMEOUT, PushClient.DEFAULT_REQUEST_TIMEOUT);
+    private volatile PushCircuitBreaker pushCircuitBreaker = new PushCircuitBreaker(new ConcurrentHashMap<>(),
+            PushCircuitBreaker.DEFAULT_FAILURE_THRESHOLD, PushCircuitBreaker.DEFAULT_OPEN_DURATION, System::currentTimeMillis);
+    private volatile ResponseHandler responseHandler = (responseStatus, subscription, pushAddress) -> { };
+    LongSupplier clock = System::currentTimeMillis;
+
+    @Autowired
+    public PushService(DataStorageService dataStorageService,
+                       SiriMarshaller siriMarshaller,
+                       MetricsService metricsService,
+                       @Qualifier("lastMessageChecksum") Map<MessageIdentifierKey, String> lastMessageChecksum) {
+        this.dataStorageService = dataStorageService;
+        this.siriMarshaller = siriMarshaller;
+        this.metricsService = metricsService;
+        this.lastMessageChecksum = lastMessageChecksum;
+        metricsService.registerGauge(GAUGE_PUSH_QUEUE, this::getActivePushQueueSize);
+        metricsService.registerGauge(GAUGE_PUSH_IN_FLIGHT, () -> pushLimiter.getInFlight());
+        metricsService.registerGauge(GAUGE_PUSH_PENDING, () -> pushQueue.size());
+        metricsService.registerGauge(GAUGE_PUSH_PENDING_BYTES, () -> pushQueue.getBytes());
+        metricsService.registerGauge(GAUGE_PUSH_CIRCUITS_OPEN, () -> pushCircuitBreaker.getOpen());
+        metricsService.registerGauge(GAUGE_OUTBOX_ENTRIES, () -> pushOutbox == null ? 0 : pushOutbox.size());
+        metricsService.registerGauge(GAUGE_OUTBOX_BYTES, () -> pushOutbox == null ? 0 : pushOutbox.getBytes());
+        metricsService.registerGauge(GAUGE_PREPARE_QUEUE, () -> prepareExecutor.getQueue().size());
+        metricsService.registerGauge(GAUGE_COALESCING_WINDOWS, pushCoalescer::getWaiting);
+    }
+
+    /**
+     * Gets the status of every push of a message or notification that is sent (not of retries from the outbox, or of
+     * pushes skipped while the circuit to the push host is open).
+     */
+    void setResponseHandler(ResponseHandler responseHandler) {
+        this.responseHandler = responseHandler;
+    }
+
+    private int getActivePushQueueSize() {
+        ExecutorService executor = pushExecutor;
+        int queued = executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+        return queued + pushLimiter.getWaiting();
+    }
+
+    /**
+     * @return number of pushes being prepared, waiting to be sent, in flight or having their response handled
+     */
+    int getActivePushes() {
+        PushLimiter limiter = pushLimiter;
+        return pushTasks.get() + limiter.getWaiting() + limiter.getInFlight();
+    }
+
+    /**
+     * Replaces the push executor before anything is pushed. With virtual threads, push preparation and response
+     * handling runs on a new virtual thread per task instead of the fixed pool, so blocking calls made there (like
+     * storing a failed push counter) never run out of threads. Requires Java 21 - keeps the fixed pool otherwise.
+     */
+    @Autowired
+    void configurePushExecutor(@Value("${ukur.push.virtual-threads:false}") boolean virtualPushThreads,
+                               @Value("${ukur.push.threads:16}") int pushThreads) {
+        ExecutorService executor = null;
+        if (virtualPushThreads) {
+            try {
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.info("Pushes on virtual threads");
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not available on Java {} - pushes on {} platform threads", Runtime.version().feature(), pushThreads);
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(pushThreads);
+        }
+        ExecutorService previous = pushExecutor;
+        pushExecutor = executor;
+        previous.shutdown();
+    }
+
+    /**
+     * Replaces the push limiter and the pending pushes before anything is pushed.
+     */
+    @Autowired
+    void configurePushLimits(@Value("${ukur.push.max-in-flight:2000}") int maxInFlight,
+                             @Value("${ukur.push.max-in-flight-per-host:50}") int maxInFlightPerHost,
+                             @Value("${ukur.push.pending.max-entries:100000}") int maxPendingPushes,
+                             @Value("${ukur.push.pending.max-size:256MB}") DataSize maxPendingSize) {
+        pushLimiter = new PushLimiter(maxInFlight, maxInFlightPerHost, this::executePush);
+        pushQueue = new ConflatingPushQueue(maxPendingPushes, maxPendingSize.toBytes());
+        logger.info("Pushes at most {} at a time ({} per host), with up to {} pushes ({}) waiting", maxInFlight,
+                maxInFlightPerHost, maxPendingPushes, maxPendingSize);
+    }
+
+    /**
+     * Replaces the prepare executor before anything is pushed.
+     */
+    @Autowired
+    void configurePrepareStage(@Value("${ukur.push.prepare.queue-capacity:10000}") int queueCapacity) {
+        ThreadPoolExecutor previous = prepareExecutor;
+        prepareExecutor = newPrepareExecutor(queueCapacity);
+        previous.shutdown();
+    }
+
+    private static ThreadPoolExecutor newPrepareExecutor(int queueCapacity) {
+        return new ThreadPoolExecutor(PREPARE_THREADS, PREPARE_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Replaces the push client before anything is pushed. Pushes use HTTP/1.1 on kept-alive connections by default.
+     * With ukur.push.http2=true, HTTP/2 is negotiated with subscribers that support it, but plain http subscribers
+     * then get an h2c upgrade request on every push.
+     */
+    @Autowired
+    void configurePushClient(@Value("${ukur.push.http2:false}") boolean http2,
+                             @Value("${ukur.push.connect-timeout:10s}") Duration connectTimeout,
+                             @Value("${ukur.push.request-timeout:30s}") Duration requestTimeout) {
+        pushClient = new PushClient(http2, connectTimeout, requestTimeout);
+        logger.info("Pushes with {} (connect timeout {}, request timeout {})", pushClient.getVersion(), connectTimeout, requestTimeout);
+    }
+
+    /**
+     * Shares the push circuits with the rest of the cluster, instead of keeping them on this node.
+     */
+    @Autowired
+    void configurePushCircuitBreaker(@Qualifier("pushCircuits") ConcurrentMap<String, PushCircuit> pushCircuits,
+                                     @Value("${ukur.push.circuit.failure-threshold:5}") int failureThreshold,
+                                     @Value("${ukur.push.circuit.open-duration:30s}") Duration openDuration) {
+        pushCircuitBreaker = new PushCircuitBreaker(pushCircuits, failureThreshold, openDuration, clock);
+        logger.info("Opens the push circuit to a host after {} consecutive failures, for {} between probes", failureThreshold, openDuration);
+    }
+
+    /**
+     * Keeps failed pushes in the given directory and retries them from there, also after a restart. Without a
+     * directory failed pushes are only sent again if the journey or situation changes.
+     */
+    @Autowired
+    void configurePushOutbox(@Value("${ukur.push.outbox.directory:}") String directory,
+                             @Value("${ukur.push.outbox.max-size:1GB}") DataSize maxSize) {
+        if (StringUtils.isBlank(directory)) {
+            logger.info("No push outbox directory configured - failed pushes are not retried");
+            return;
+        }
+        try {
+            pushOutbox = new PushOutbox(Paths.get(directory), PushOutbox.DEFAULT_SEGMENT_SIZE, maxSize.toBytes(), clock);
+            logger.info("Retries failed pushes from the outbox in {} ({} pushes recovered)", directory, pushOutbox.size());
+            pushScheduler.scheduleWithFixedDelay(this::retryFromOutbox, 1, 1, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            logger.error("Could not open the push outbox in {} - failed pushes are not retried", directory, e);
+        }
+    }
+
+    /**
+     * Lets the pushes being prepared finish, stops the push executor and scheduler, and moves the pushes still
+     * waiting in a coalescing window or for the push limiter to the outbox, so they are sent after a restart. Without
+     * an outbox they are forgotten, so they are not taken for duplicates when the next version is pushed. Responses
+     * that arrive after the push executor is stopped are not handled.
+     */
+    @PreDestroy
+    void shutdown() {
+        ThreadPoolExecutor preparing = prepareExecutor;
+        preparing.shutdown();
+        awaitTermination(preparing, "prepare");
+        ExecutorService pushing = pushExecutor;
+        pushing.shutdown();
+        awaitTermination(pushing, "push");
+        pushScheduler.shutdownNow();
+        int waiting = 0;
+        for (Map.Entry<Subscription, List<PushPayload>> window : pushCoalescer.drain().entrySet()) {
+            Subscription subscription = window.getKey();
+            addToOutbox(subscription, subscription.getPushAddress(), window.getValue());
+            waiting += window.getValue().size();
+        }
+        for (Map.Entry<MessageIdentifierKey, ConflatingPushQueue.Pending> push : pushQueue.drain().entrySet()) {
+            MessageIdentifierKey key = push.getKey();
+            Subscription subscription = dataStorageService.getSubscription(key.subscriptionId);
+            if (subscription != null && !addToOutbox(subscription, push.getValue().pushAddress, key.messageIdentifier, push.getValue().body)) {
+                lastMessageChecksum.remove(key);
+            }
+            waiting++;
+        }
+        PushOutbox outbox = pushOutbox;
+        if (outbox != null) {
+            outbox.close();
+            logger.info("Moved {} waiting pushes to the outbox, which holds {} pushes", waiting, outbox.size());
+        } else if (waiting > 0) {
+            logger.info("Dropped {} waiting pushes as there is no outbox", waiting);
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor, String name) {
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("The {} executor did not finish within {} seconds", name, SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void executePush(Runnable task) {
+        pushTasks.incrementAndGet();
+        try {
+            pushExecutor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pushTasks.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            pushTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the preparation of push messages on the prepare stage, or in the caller when the stage is full.
+     */
+    void prepare(Runnable preparation) {
+        long queued = System.nanoTime();
+        prepareExecutor.execute(() -> {
+            try {
+                preparation.run();
+            } catch (Exception e) {
+                logger.error("Got exception while preparing push messages", e);
+            } finally {
+                metricsService.getTimer(MetricsService.TIMER_PUSH_PREPARE).update(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    /**
+     * Forgets what was last pushed to the subscription.
+     */
+    void forget(String subscriptionId) {
+        List<MessageIdentifierKey> messageKeysForSubscription = lastMessageChecksum.keySet().stream().filter(key -> key.subscriptionId.equals(subscriptionId)).collect(Collectors.toList());
+        for (MessageIdentifierKey keyToRemove : messageKeysForSubscription) {
+            lastMessageChecksum.remove(keyToRemove);
+        }
+    }
+
+    void pushNotification(Subscription subscription, Siri siri, String type) {
+        executePush(() -> {
+            try {
+                post(subscription, subscription.getPushAddress(), () -> gzipIfWanted(subscription, siriMarshaller.marshall(siri).getBytes(StandardCharsets.UTF_8)), responseStatus -> {
+                    logger.info("POST {} to {}: {}", type, subscription.getId(), responseStatus);
+                    responseHandler.handle(responseStatus, subscription, subscription.getPushAddress());
+                });
+            } catch (Exception e) {
+                logger.error("Got exception while pushing message", e);
+            }
+        });
+    }
+
+    void push(Subscription subscription, PushPayload payload) {
+        executePush(() -> {
+            try {
+                String pushAddress = getPushAddress(subscription, payload);
+                String messageIdentifier = payload.getMessageIdentifier();
+                if (hasMessageBeenUpdated(subscription, messageIdentifier, payload)) {
+                    if (PushCoalescer.isCoalescing(subscription)) {
+                        pushCoalescer.add(subscription, payload);
+                    } else if (messageIdentifier == null) {
+                        String address = pushAddress;
+                        if (!post(subscription, address, () -> getBody(subscription, payload),
+                                responseStatus -> responseHandler.handle(responseStatus, subscription, address))) {
+                            forgetChecksum(subscription, null);
+                        }
+                    } else {
+                        queuePush(subscription, pushAddress, messageIdentifier, payload);
+                    }
+                } else {
+                    logger.info("Ignoring push to {} since data for key [{}] has not changed since last push-attempt.", subscription, messageIdentifier);
+                }
+            } catch (Exception e) {
+                logger.error("Got exception while pushing message", e);
+            }
+        });
+    }
+
+    /**
+     * The body for the subscription's model and encoding, built once per payload.
+     */
+    private static byte[] getBody(Subscription subscription, PushPayload payload) throws JAXBException {
+        return payload.getBody(subscription.isUseSiriSubscriptionModel(), subscription.isUseGzip());
+    }
+
+    private static byte[] gzipIfWanted(Subscription subscription, byte[] body) {
+        return subscription.isUseGzip() ? PushCompression.gzip(body) : body;
+    }
+
+    private String getPushAddress(Subscription subscription, PushPayload payload) {
+        String pushAddress = subscription.getPushAddress();
+        if (!subscription.isUseSiriSubscriptionModel()) {
+            if (payload.getSiriElement() instanceof EstimatedVehicleJourney) {
+                pushAddress += "/et";
+            } else if (payload.getSiriElement() instanceof PtSituationElement) {
+                pushAddress += "/sx";
+            }
+        }
+        return pushAddress;
+    }
+
+    /**
+     * Only posts when there is no push waiting for the same journey or situation to the subscription - that push
+     * sends the latest payload instead, whenever the push limiter lets it through.
+     */
+    private void queuePush(Subscription subscription, String pushAddress, String messageIdentifier, PushPayload payload) throws JAXBException {
+        ConflatingPushQueue queue = pushQueue;
+        MessageIdentifierKey key = new MessageIdentifierKey(subscription.getId(), messageIdentifier);
+        byte[] body = getBody(subscription, payload);
+        ConflatingPushQueue.Offer offer = queue.offer(key, pushAddress, body);
+        if (offer == ConflatingPushQueue.Offer.QUEUED) {
+            if (!post(subscription, pushAddress, () -> queue.take(key),
+                    responseStatus -> {
+                        responseHandler.handle(responseStatus, subscription, pushAddress);
+                        if (HttpStatus.OK.equals(responseStatus)) {
+                            removeFromOutbox(subscription, messageIdentifier);
+                        }
+                    },
+                    sent -> {
+                        if (!addToOutbox(subscription, pushAddress, messageIdentifier, sent)) {
+                            forgetChecksum(subscription, messageIdentifier);
+                        }
+                    })) {
+                byte[] latest = queue.take(key);
+                if (!addToOutbox(subscription, pushAddress, messageIdentifier, latest != null ? latest : body)) {
+                    forgetChecksum(subscription, messageIdentifier);
+                }
+            }
+        } else if (offer == ConflatingPushQueue.Offer.CONFLATED) {
+            metricsService.getMeter(MetricsService.METER_PUSH_CONFLATED).mark();
+        } else {
+            metricsService.getMeter(MetricsService.METER_PUSH_DROPPED).mark();
+            if (!addToOutbox(subscription, pushAddress, messageIdentifier, body)) {
+                forgetChecksum(subscription, messageIdentifier);
+            }
+            logger.debug("Pending pushes are full - drops push of [{}] to {}", messageIdentifier, subscription);
+        }
+    }
+
+    private void pushCoalesced(Subscription subscription, List<PushPayload> payloads) {
+        executePush(() -> {
+            try {
+                metricsService.getHistogram(MetricsService.HISTOGRAM_PUSH_COALESCED).update(payloads.size());
+                String pushAddress = subscription.getPushAddress();
+                if (!post(subscription, pushAddress, () -> gzipIfWanted(subscription, PushPayload.getCoalescedBody(payloads, siriMarshaller)),
+                        responseStatus -> {
+                            responseHandler.handle(responseStatus, subscription, pushAddress);
+                            if (HttpStatus.OK.equals(responseStatus)) {
+                                for (PushPayload payload : payloads) {
+                                    removeFromOutbox(subscription, payload.getMessageIdentifier());
+                                }
+                            }
+                        },
+                        sent -> addToOutbox(subscription, pushAddress, payloads))) {
+                    addToOutbox(subscription, pushAddress, payloads);
+                }
+            } catch (Exception e) {
+                logger.error("Got exception while pushing message", e);
+            }
+        });
+    }
+
+    /**
+     * Each element of a coalesced push is retried on its own, so it can be superseded by a newer version.
+     */
+    private void addToOutbox(Subscription subscription, String pushAddress, List<PushPayload> payloads) {
+        for (PushPayload payload : payloads) {
+            try {
+                if (!addToOutbox(subscription, pushAddress, payload.getMessageIdentifier(), payload.getBody(true, subscription.isUseGzip()))) {
+                    forgetChecksum(subscription, payload.getMessageIdentifier());
+                }
+            } catch (JAXBException e) {
+                logger.warn("Could not add push to the outbox", e);
+            }
+        }
+    }
+
+    /**
+     * @return false if the push can't be retried from the outbox
+     */
+    private boolean addToOutbox(Subscription subscription, String pushAddress, String messageIdentifier, byte[] body) {
+        PushOutbox outbox = pushOutbox;
+        if (outbox == null || messageIdentifier == null) {
+            return false;
+        }
+        try {
+            if (outbox.add(subscription.getId(), pushAddress, messageIdentifier, body)) {
+                metricsService.getMeter(MetricsService.METER_OUTBOX_ADDED).mark();
+                return true;
+            }
+            logger.warn("The push outbox is full - can't retry push of [{}] to {}", messageIdentifier, subscription);
+        } catch (IOException e) {
+            logger.warn("Could not add push to the outbox", e);
+        }
+        metricsService.getMeter(MetricsService.METER_OUTBOX_GIVEN_UP).mark();
+        return false;
+    }
+
+    private void removeFromOutbox(Subscription subscription, String messageIdentifier) {
+        PushOutbox outbox = pushOutbox;
+        if (outbox != null) {
+            try {
+                outbox.remove(subscription.getId(), messageIdentifier);
+            } catch (IOException e) {
+                logger.warn("Could not remove push from the outbox", e);
+            }
+        }
+    }
+
+    private void retryFromOutbox() {
+        PushOutbox outbox = pushOutbox;
+        try {
+            outbox.compact();
+            for (PushOutbox.Entry entry : outbox.pollDue(MAX_OUTBOX_RETRIES_PER_ROUND)) {
+                Subscription subscription = dataStorageService.getSubscription(entry.getSubscriptionId());
+                if (subscription == null) {
+                    outbox.delivered(entry);
+                } else {
+                    retry(outbox, subscription, entry);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Got exception while retrying pushes from the outbox", e);
+        }
+    }
+
+    /**
+     * Only a retry that gets through tells the subscription anything - a failed one is retried later without
+     * counting as another failed push to the subscription, as the failure was counted when the push was first sent.
+     */
+    private void retry(PushOutbox outbox, Subscription subscription, PushOutbox.Entry entry) {
+        AtomicBoolean failed = new AtomicBoolean(false);
+        boolean posted = post(subscription, entry.getPushAddress(), entry::getBody,
+                responseStatus -> {
+                    if (HttpStatus.OK.equals(responseStatus) || HttpStatus.RESET_CONTENT.equals(responseStatus)) {
+                        responseHandler.handle(responseStatus, subscription, entry.getPushAddress());
+                    }
+                    if (!failed.get()) {
+                        try {
+                            outbox.delivered(entry);
+                        } catch (IOException e) {
+                            logger.warn("Could not remove push from the outbox", e);
+                        }
+                    }
+                },
+                sent -> {
+                    failed.set(true);
+                    retryLater(outbox, subscription, entry);
+                });
+        if (!posted) {
+            retryLater(outbox, subscription, entry);
+        }
+    }
+
+    private void retryLater(PushOutbox outbox, Subscription subscription, PushOutbox.Entry entry) {
+        try {
+            if (!outbox.retryLater(entry) && entry.getAttempt() + 1 >= PushOutbox.MAX_ATTEMPTS) {
+                metricsService.getMeter(MetricsService.METER_OUTBOX_GIVEN_UP).mark();
+                logger.info("Gives up push of [{}] to {} after {} attempts", entry.getMessageIdentifier(), subscription, PushOutbox.MAX_ATTEMPTS);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not retry push from the outbox", e);
+        }
+    }
+
+    /**
+     * For a message that was never sent, so the next version is not taken for a duplicate of it.
+     */
+    private void forgetChecksum(Subscription subscription, String messageIdentifier) {
+        lastMessageChecksum.remove(new MessageIdentifierKey(subscription.getId(), messageIdentifier));
+    }
+
+    /*
+     * @return true if the message sent is NOT equal to last sent message.
+     */
+    private boolean hasMessageBeenUpdated(Subscription subscription, String messageIdentifier, PushPayload payload) {
+        boolean isEqualToLastMessage = false;
+        try {
+            String subscriptionId = subscription.getId();
+
+            MessageIdentifierKey msgId = new MessageIdentifierKey(subscriptionId, messageIdentifier);
+
+            String messageChecksum = payload.getChecksum(subscription.isUseSiriSubscriptionModel());
+
+            if (lastMessageChecksum.containsKey(msgId)) {
+                isEqualToLastMessage = messageChecksum.equals(lastMessageChecksum.get(msgId));
+            }
+
+            lastMessageChecksum.put(msgId, messageChecksum);
+
+        } catch (Exception e) {
+            //Ignore - will be flagged as updated message
+        }
+        return !isEqualToLastMessage;
+    }
+
+    /**
+     * Posts when the push limiter allows it, without holding a thread while waiting for the response. The response
+     * status is handed to onResponse on the push executor. Nothing is posted, and no outcome is registered, if the
+     * body can't be built or there is no body to send any more.
+     *
+     * @return false if the push was skipped since the circuit to the push host is open - onResponse is not called
+     * then, as the skipped push tells nothing new about the subscription (the failures that opened the circuit were
+     * already counted)
+     */
+    private boolean post(Subscription subscription, String pushAddress, Body body, Consumer<HttpStatus> onResponse) {
+        return post(subscription, pushAddress, body, onResponse, null);
+    }
+
+    /**
+     * @param onTransientFailure gets the body that was sent when the push failed in a way that is worth a retry
+     */
+    private boolean post(Subscription subscription, String pushAddress, Body body, Consumer<HttpStatus> onResponse, Consumer<byte[]> onTransientFailure) {
+        String host = subscription.getPushHost() != null ? subscription.getPushHost() : pushAddress;
+        PushCircuitBreaker circuitBreaker = pushCircuitBreaker;
+        if (!circuitBreaker.allow(host)) {
+            metricsService.getMeter(MetricsService.METER_PUSH_CIRCUIT_OPEN).mark();
+            logger.debug("The circuit to {} is open - skips push to {}", host, subscription);
+            return false;
+        }
+        PushLimiter limiter = pushLimiter;
+        if (prometheusMetricsService != null && pushHostsWithGauge.add(host)) {
+            prometheusMetricsService.registerActivePushes(host, () -> pushLimiter.getActive(host));
+        }
+        limiter.submit(host, () -> {
+            byte[] sent;
+            try {
+                sent = body.get();
+            } catch (Exception e) {
+                logger.error("Could not build push to {}", subscription, e);
+                limiter.release(host);
+                return;
+            }
+            if (sent == null) {
+                //Nothing left to send, like when the waiting pushes were moved to the outbox at shutdown:
+                limiter.release(host);
+                return;
+            }
+            Timer.Context context = metricsService.getTimer(MetricsService.TIMER_PUSH).time();
+            CompletableFuture<HttpResponse<Void>> response;
+            try {
+                boolean gzipped = PushCompression.isGzipped(sent);
+                if (prometheusMetricsService != null) {
+                    prometheusMetricsService.registerPushBytes(host, gzipped ? PushCompression.uncompressedSize(sent) : sent.length, sent.length);
+                }
+                response = pushClient.post(pushAddress, sent, gzipped);
+            } catch (Exception e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((r, e) -> {
+                        context.stop();
+                        if (r != null && prometheusMetricsService != null) {
+                            prometheusMetricsService.registerPushResponse(host, r.version().name());
+                        }
+                    })
+                    .whenCompleteAsync((r, e) -> {
+                        try {
+                            registerOutcome(circuitBreaker, host, r, e);
+                            if (onTransientFailure != null && isTransientFailure(r, e)) {
+                                onTransientFailure.accept(sent);
+                            }
+                            onResponse.accept(toStatus(subscription, pushAddress, r, e));
+                        } catch (Exception handlingError) {
+                            logger.error("Got exception while handling push response", handlingError);
+                        } finally {
+                            limiter.release(host);
+                        }
+                    }, this::executePush);
+        });
+        return true;
+    }
+
+    /**
+     * Only failed connections and server errors count against the circuit, any other response shows the host is up.
+     */
+    private void registerOutcome(PushCircuitBreaker circuitBreaker, String host, HttpResponse<Void> response, Throwable error) {
+        if (error == null && response.statusCode() < 500) {
+            circuitBreaker.onSuccess(host);
+        } else if (circuitBreaker.onFailure(host)) {
+            logger.warn("Opens the push circuit to {} after consecutive failures", host);
+            if (prometheusMetricsService != null) {
+                prometheusMetricsService.registerPushCircuit(host, "opened");
+            }
+        }
+    }
+
+    private boolean isTransientFailure(HttpResponse<Void> response, Throwable error) {
+        if (error != null) {
+            return true;
+        }
+        int responseCode = response.statusCode();
+        return responseCode >= 500 || responseCode == HttpStatus.REQUEST_TIMEOUT.value() || responseCode == HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+    private HttpStatus toStatus(Subscription subscription, String pushAddress, HttpResponse<Void> response, Throwable error) {
+        if (error == null) {
+            int responseCode = response.statusCode();
+            logger.debug("Receive {} on push to {} for subscription {}", responseCode, pushAddress, subscription);
+            HttpStatus status = HttpStatus.resolve(responseCode);
+            return status != null ? status : HttpStatus.BAD_REQUEST;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof ConnectException || cause instanceof HttpTimeoutException) {
+            logger.warn("Connection timed out for push to {} for subscription with id {}", subscription.getPushAddress(), subscription.getId(), cause);
+            return HttpStatus.REQUEST_TIMEOUT;
+        }
+        logger.warn("Could not push to {} for subscription with id {}", subscription.getPushAddress(), subscription.getId(), cause);
+        return HttpStatus.BAD_REQUEST;
+    }
+
+    /**
+     * Decides what happens to a subscription after a push to it.
+     */
+    @FunctionalInterface
+    interface ResponseHandler {
+        void handle(HttpStatus responseStatus, Subscription subscription, String pushAddress);
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        byte[] get() throws Exception;
+    }
+}
@@ -44,6 +44,7 @@ public class Subscription implements Serializable {
     private HashSet<String> codespaces = new HashSet<>();
     private SubscriptionTypeEnum type = SubscriptionTypeEnum.ALL;
     private Boolean useSiriSubscriptionModel;
+    private Boolean useGzip;
     @JsonIgnore
     private long failedPushCounter = 0;
     @JsonIgnore
@@ -52,6 +53,8 @@ public class Subscription implements Serializable {
     private ZonedDateTime initialTerminationTime;
     private Duration heartbeatInterval;
     private Duration minimumDelay;
+    private Duration coalesceMaxDelay;
+    private Integer coalesceMaxSize;
     private DeviationType deviationType = DeviationType.ALL;
 
     static String getName(String requestorRef, String subscriptionIdentifier) {
@@ -281,6 +284,17 @@ public class Subscription implements Serializable {
         this.useSiriSubscriptionModel = useSiriSubscriptionModel;
     }
 
+    /**
+     * Whether pushes are gzipped and sent with Content-Encoding: gzip.
+     */
+    public boolean isUseGzip() {
+        return Boolean.TRUE.equals(useGzip);
+    }
+
+    public void setUseGzip(Boolean useGzip) {
+        this.useGzip = useGzip;
+    }
+
     public void setInitialTerminationTime(ZonedDateTime initialTerminationTime) {
         this.initialTerminationTime = initialTerminationTime;
     }
@@ -304,4 +318,27 @@ public class Subscription implements Serializable {
     public void setMinimumDelay(Duration minimumDelay) {
         this.minimumDelay = minimumDelay;
     }
+
+    /**
+     * How long journeys and situations to a SIRI model subscription may be held back to be pushed together in one
+     * ServiceDelivery (null or zero pushes each one at once).
+     */
+    public Duration getCoalesceMaxDelay() {
+        return coalesceMaxDelay;
+    }
+
+    public void setCoalesceMaxDelay(Duration coalesceMaxDelay) {
+        this.coalesceMaxDelay = coalesceMaxDelay;
+    }
+
+    /**
+     * Max number of journeys and situations pushed together when coalescing (null for the default).
+     */
+    public Integer getCoalesceMaxSize() {
+        return coalesceMaxSize;
+    }
+
+    public void setCoalesceMaxSize(Integer coalesceMaxSize) {
+        this.coalesceMaxSize = coalesceMaxSize;
+    }
 }
@@ -16,10 +16,11 @@
 package org.entur.ukur.subscription;
 
 import com.codahale.metrics.Timer;
-import jakarta.xml.bind.DatatypeConverter;
 import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.entur.ukur.camelroute.InvalidSubscriptionIdException;
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionCandidates;
 import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.PrometheusMetricsService;
@@ -38,37 +39,22 @@ import uk.org.siri.siri21.AffectedStopPlaceStructure;
 import uk.org.siri.siri21.AffectedStopPointStructure;
 import uk.org.siri.siri21.AffectedVehicleJourneyStructure;
 import uk.org.siri.siri21.AffectsScopeStructure;
-import uk.org.siri.siri21.EstimatedCall;
-import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
-import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.HeartbeatNotificationStructure;
 import uk.org.siri.siri21.PtSituationElement;
-import uk.org.siri.siri21.RecordedCall;
 import uk.org.siri.siri21.RequestorRef;
-import uk.org.siri.siri21.ServiceDelivery;
 import uk.org.siri.siri21.Siri;
-import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.SubscriptionQualifierStructure;
 import uk.org.siri.siri21.SubscriptionTerminatedNotificationStructure;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.URI;
 import java.net.UnknownHostException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -77,13 +63,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.stream.Collectors;
 
-import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_QUEUE;
 import static org.entur.ukur.subscription.SiriXMLSubscriptionHandler.SIRI_VERSION;
 import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
 
@@ -97,29 +80,24 @@ public class SubscriptionManager {
     private SiriMarshaller siriMarshaller;
     private MetricsService metricsService;
     private QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
+    private PushService pushService;
     private String hostname;
     private Logger logger = LoggerFactory.getLogger(this.getClass());
-    private ThreadPoolExecutor pushExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(100);
     private Map<String, Long> subscriptionNextHeartbeat;
-    private Map<MessageIdentifierKey, String> lastMessageChecksum;
     private ZonedDateTime nextTerminatedCheck = null;
 
-    HttpClient httpClient = HttpClient.newBuilder()
-            .version(HttpClient.Version.HTTP_1_1)
-            .build();
-
     @Autowired
     public SubscriptionManager(DataStorageService dataStorageService,
                                SiriMarshaller siriMarshaller,
                                MetricsService metricsService,
                                @Qualifier("heartbeats") Map<String, Long> subscriptionNextHeartbeat,
-                               @Qualifier("lastMessageChecksum") Map<MessageIdentifierKey, String> lastMessageChecksum,
+                               PushService pushService,
                                QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
         this.dataStorageService = dataStorageService;
         this.siriMarshaller = siriMarshaller;
         this.metricsService = metricsService;
         this.subscriptionNextHeartbeat = subscriptionNextHeartbeat;
-        this.lastMessageChecksum = lastMessageChecksum;
+        this.pushService = pushService;
         this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
         try {
             hostname = InetAddress.getLocalHost().getHostName();
@@ -128,16 +106,15 @@ public class SubscriptionManager {
             hostname = "random_"+new Random().nextInt(10000); //want to separate message producing nodes from each other easy in the logs, this will work as fallback
             logger.error("Cant resolve hostname - use random name '{}' instead to differentiate nodes", hostname, e);
         }
-        metricsService.registerGauge(GAUGE_PUSH_QUEUE, this::getActivePushQueueSize);
+        pushService.setResponseHandler(this::handleResponse);
         logger.info("There are at startup {} subscriptions", dataStorageService.getNumberOfSubscriptions());
     }
 
-    private int getActivePushQueueSize() {
-        return pushExecutor.getQueue().size();
-    }
-
+    /**
+     * @return number of pushes being prepared, waiting to be sent, in flight or having their response handled
+     */
     public int getActivePushThreads() {
-        return pushExecutor.getActiveCount();
+        return pushService.getActivePushes();
     }
 
     @SuppressWarnings("unused") //Used from camel route
@@ -207,77 +184,124 @@ public class SubscriptionManager {
         return dataStorageService.getSubscriptionsForCodespaceAndNoStops(codespace, type);
     }
 
+    /**
+     * Subscriptions without stops on the lineRef or codespace, where subscriptions with both must match both.
+     */
+    public Set<Subscription> getSubscriptionsForLineRefOrCodespace(String lineRef, String codespace, SubscriptionTypeEnum type) {
+        return dataStorageService.getSubscriptionsForLineRefOrCodespaceAndNoStops(lineRef, codespace, type);
+    }
+
+    /**
+     * Subscriptions with a from stop before a to stop in the given sequence (that must contain both quays and the
+     * stop places they belong to for stop place subscriptions to be found).
+     */
+    public SubscriptionCandidates getCandidatesForStopsInOrder(StopSequence stops, SubscriptionTypeEnum type) {
+        return dataStorageService.getCandidatesForStopsInOrder(stops, type);
+    }
+
+    /**
+     * Pushes the journey with only the subscribed calls to each subscription. The push messages are prepared
+     * asynchronously, so neither the subscriptions nor the journey may be modified afterwards. The same goes for the
+     * other notify methods.
+     */
     public void notifySubscriptionsOnStops(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
-        for (Subscription subscription : subscriptions) {
-            Set<String> subscribedStops = getAllStops(subscription);
-            EstimatedVehicleJourney clone = clone(estimatedVehicleJourney);
-            //Removes all other estimated calls than those subscribed upon:
-            if (clone.getEstimatedCalls() != null && clone.getEstimatedCalls().getEstimatedCalls() != null) {
-                Iterator<EstimatedCall> iterator = clone.getEstimatedCalls().getEstimatedCalls().iterator();
-                while (iterator.hasNext()) {
-                    EstimatedCall call = iterator.next();
-                    String ref = getStringValue(call.getStopPointRef());
-                    if (!subscribedStops.contains(ref)) {
-                        iterator.remove();
-                    }
-                }
-            }
-            //Removes all other recorded calls than those subscribed upon:
-            if (clone.getRecordedCalls() != null && clone.getRecordedCalls().getRecordedCalls() != null) {
-                Iterator<RecordedCall> iterator = clone.getRecordedCalls().getRecordedCalls().iterator();
-                while (iterator.hasNext()) {
-                    RecordedCall call = iterator.next();
-                    String ref = getStringValue(call.getStopPointRef());
-                    if (!subscribedStops.contains(ref)) {
-                        iterator.remove();
-                    }
-                }
-            }
-            clone.setIsCompleteStopSequence(false); //since we have tampered with the calls!
-            pushMessage(subscription, clone, timestamp, "ET_STOPS", clone.getDataSource());
+        if (!subscriptions.isEmpty()) {
+            pushService.prepare(() -> pushOnStops(subscriptions, estimatedVehicleJourney, timestamp));
         }
     }
 
     public void notifySubscriptionsWithFullMessage(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
-        for (Subscription subscription : subscriptions) {
-            pushMessage(subscription, estimatedVehicleJourney, timestamp, "ET_FULL", estimatedVehicleJourney.getDataSource());
+        if (!subscriptions.isEmpty()) {
+            pushService.prepare(() -> pushFullMessage(subscriptions, estimatedVehicleJourney, timestamp));
         }
     }
 
     public void notifySubscriptions(HashSet<Subscription> subscriptions, PtSituationElement ptSituationElement, ZonedDateTime timestamp) {
+        if (!subscriptions.isEmpty()) {
+            pushService.prepare(() -> pushSituation(subscriptions, ptSituationElement, timestamp));
+        }
+    }
+
+    private void pushOnStops(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
+        //Subscriptions on the same calls get the same push body, which is built and marshalled once:
+        HashMap<BitSet, List<Subscription>> subscriptionsByCalls = new HashMap<>();
         for (Subscription subscription : subscriptions) {
-            Set<String> subscribedStops = getAllStops(subscription);
-            PtSituationElement clone = clone(ptSituationElement);
-            AffectsScopeStructure affects = clone.getAffects();
-            if (affects != null) {
-                //clears elements not covered by the norwegian profile to reduce size on push-message:
-                affects.setAreaOfInterest(null);
-                affects.setExtensions(null);
-                affects.setOperators(null);
-                affects.setPlaces(null);
-                affects.setStopPoints(null);
-                affects.setRoads(null);
-                affects.setVehicles(null);
-                //removes part not subscribed upon (to reduce size on push-message):
-                if (subscription.getCodespaces().isEmpty() || !subscription.hasNoStops() || !subscription.getLineRefs().isEmpty()) {
-                    removeUnsubscribedNetworks(subscription, affects.getNetworks());
-                    if (subscription.hasNoStops()) {
-                        affects.setStopPlaces(null);
-                    } else {
-                        removeUnsubscribedStopPlaces(subscribedStops, affects.getStopPlaces());
-                    }
-                    removeUnsubscribedJourneys(subscription, subscribedStops, affects.getVehicleJourneys());
-                }
+            BitSet calls = EstimatedVehicleJourneyProjection.subscribedCalls(estimatedVehicleJourney, getAllStops(subscription));
+            subscriptionsByCalls.computeIfAbsent(calls, c -> new ArrayList<>()).add(subscription);
+        }
+        for (Map.Entry<BitSet, List<Subscription>> group : subscriptionsByCalls.entrySet()) {
+            //Only the calls subscribed upon, sharing everything else with the received journey:
+            EstimatedVehicleJourney projection = EstimatedVehicleJourneyProjection.onCalls(estimatedVehicleJourney, group.getKey());
+            PushPayload payload = new PushPayload(projection, timestamp, siriMarshaller);
+            for (Subscription subscription : group.getValue()) {
+                pushMessage(subscription, payload, "ET_STOPS", projection.getDataSource());
             }
+        }
+        registerFanOut(subscriptions.size(), subscriptionsByCalls.size());
+    }
+
+    private void pushFullMessage(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
+        PushPayload payload = new PushPayload(estimatedVehicleJourney, timestamp, siriMarshaller);
+        for (Subscription subscription : subscriptions) {
+            pushMessage(subscription, payload, "ET_FULL", estimatedVehicleJourney.getDataSource());
+        }
+        registerFanOut(subscriptions.size(), 1);
+    }
 
+    private void pushSituation(HashSet<Subscription> subscriptions, PtSituationElement ptSituationElement, ZonedDateTime timestamp) {
+        //Subscriptions that reduce the situation the same way get the same push body, which is built and marshalled once:
+        HashMap<SituationProjectionKey, List<Subscription>> subscriptionsByProjection = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            SituationProjectionKey key = new SituationProjectionKey(subscription, getAllStops(subscription));
+            subscriptionsByProjection.computeIfAbsent(key, k -> new ArrayList<>()).add(subscription);
+        }
+        for (Map.Entry<SituationProjectionKey, List<Subscription>> group : subscriptionsByProjection.entrySet()) {
+            PtSituationElement clone = project(ptSituationElement, group.getValue().get(0), group.getKey().subscribedStops);
             if (withAffects(clone)) {
-                pushMessage(subscription, clone, timestamp, "SX", clone.getParticipantRef() != null ? clone.getParticipantRef().getValue() : null);
+                PushPayload payload = new PushPayload(clone, timestamp, siriMarshaller);
+                for (Subscription subscription : group.getValue()) {
+                    pushMessage(subscription, payload, "SX", clone.getParticipantRef() != null ? clone.getParticipantRef().getValue() : null);
+                }
             } else {
                 BigInteger version = SiriObjectHelper.getBigIntegerValue(clone.getVersion());
                 String situationNumber = getStringValue(clone.getSituationNumber());
-                logger.info("do not push PtSituationElement with situationnumber {} and version {} to subscription with id {} as all affects are removed", situationNumber, version, subscription.getId());
+                for (Subscription subscription : group.getValue()) {
+                    logger.info("do not push PtSituationElement with situationnumber {} and version {} to subscription with id {} as all affects are removed", situationNumber, version, subscription.getId());
+                }
             }
         }
+        registerFanOut(subscriptions.size(), subscriptionsByProjection.size());
+    }
+
+    private PtSituationElement project(PtSituationElement ptSituationElement, Subscription subscription, Set<String> subscribedStops) {
+        PtSituationElement clone = clone(ptSituationElement);
+        AffectsScopeStructure affects = clone.getAffects();
+        if (affects != null) {
+            //clears elements not covered by the norwegian profile to reduce size on push-message:
+            affects.setAreaOfInterest(null);
+            affects.setExtensions(null);
+            affects.setOperators(null);
+            affects.setPlaces(null);
+            affects.setStopPoints(null);
+            affects.setRoads(null);
+            affects.setVehicles(null);
+            //removes part not subscribed upon (to reduce size on push-message):
+            if (subscription.getCodespaces().isEmpty() || !subscription.hasNoStops() || !subscription.getLineRefs().isEmpty()) {
+                removeUnsubscribedNetworks(subscription, affects.getNetworks());
+                if (subscription.hasNoStops()) {
+                    affects.setStopPlaces(null);
+                } else {
+                    removeUnsubscribedStopPlaces(subscribedStops, affects.getStopPlaces());
+                }
+                removeUnsubscribedJourneys(subscription, subscribedStops, affects.getVehicleJourneys());
+            }
+        }
+        return clone;
+    }
+
+    private void registerFanOut(int subscriptions, int payloads) {
+        metricsService.getHistogram(MetricsService.HISTOGRAM_PUSH_SUBSCRIPTIONS).update(subscriptions);
+        metricsService.getHistogram(MetricsService.HISTOGRAM_PUSH_PAYLOADS).update(payloads);
     }
 
     Subscription getSubscriptionByName(String name) {
@@ -511,11 +535,7 @@ public class SubscriptionManager {
         logger.info("Removes subscription with id {}", subscriptionId);
         removeSubscription(subscriptionId);
         subscriptionNextHeartbeat.remove(subscriptionId);
-
-        List<MessageIdentifierKey> messageKeysForSubscription = lastMessageChecksum.keySet().stream().filter(key -> key.subscriptionId.equals(subscriptionId)).collect(Collectors.toList());
-        for (MessageIdentifierKey keyToRemove : messageKeysForSubscription) {
-            lastMessageChecksum.remove(keyToRemove);
-        }
+        pushService.forget(subscriptionId);
     }
 
     private Set<String> getAllStops(Subscription subscription) {
@@ -542,155 +562,42 @@ public class SubscriptionManager {
         return SerializationUtils.clone(toClone);
     }
 
-    private void pushMessage(Subscription subscription, Object siriElement, ZonedDateTime timestamp, String typeOfMessage, String codespace) {
+    private void pushMessage(Subscription subscription, PushPayload payload, String typeOfMessage, String codespace) {
 //        logger.info("PUSH {} to id={}", siriElement.getClass().getSimpleName(), subscription.getId());
         if (prometheusMetricsService != null) {
             prometheusMetricsService.registerDataToSubscriber(subscription.getPushHost(), typeOfMessage, codespace, 1);
         }
-        pushToHttp(subscription, siriElement, timestamp);
+        pushService.push(subscription, payload);
     }
 
     private void pushNotification(Subscription subscription, NotificationTypeEnum type) {
-        pushExecutor.execute(() -> {
-            try {
-                Siri siri = new Siri();
-                siri.setVersion(SIRI_VERSION);
-                switch (type) {
-                    case heartbeat:
-                        HeartbeatNotificationStructure heartbeatNotification = new HeartbeatNotificationStructure();
-                        siri.setHeartbeatNotification(heartbeatNotification);
-                        heartbeatNotification.setRequestTimestamp(ZonedDateTime.now());
-                        RequestorRef producerRef = new RequestorRef();
-                        producerRef.setValue(subscription.getName());
-                        heartbeatNotification.setProducerRef(producerRef);
-                        break;
-                    case subscriptionTerminated:
-                        SubscriptionTerminatedNotificationStructure subscriptionTerminatedNotification = new SubscriptionTerminatedNotificationStructure();
-                        subscriptionTerminatedNotification.setResponseTimestamp(ZonedDateTime.now());
-                        RequestorRef requestorRef = new RequestorRef();
-                        requestorRef.setValue(subscription.getSiriRequestor());
-                        subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(requestorRef);
-                        SubscriptionQualifierStructure subscriptionQualifierStructure = new SubscriptionQualifierStructure();
-                        subscriptionQualifierStructure.setValue(subscription.getSiriClientGeneratedId());
-                        subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(subscriptionQualifierStructure);
-                        siri.setSubscriptionTerminatedNotification(subscriptionTerminatedNotification);
-                        break;
-                    default:
-                        logger.error("Called without proper type specified...");
-                        return;
-                }
-                HttpStatus responseStatus = post(subscription, subscription.getPushAddress(), siri);
-                logger.info("POST {} to {}: {}", type, subscription.getId(), responseStatus);
-
-                handleResponse(responseStatus, subscription, subscription.getPushAddress());
-
-            } catch (Exception e) {
-                logger.error("Got exception while pushing message", e);
-            }
-        });
-    }
-
-    private void pushToHttp(Subscription subscription, Object siriElement, ZonedDateTime timestamp) {
-        pushExecutor.execute(() -> {
-            try {
-                String pushAddress = subscription.getPushAddress();
-
-                String messageIdentifier = null;
-
-                final Object pushMessage;
-                if (subscription.isUseSiriSubscriptionModel()) {
-                    Siri siri = new Siri();
-                    siri.setVersion(SIRI_VERSION);
-                    siri.setServiceDelivery(new ServiceDelivery());
-                    siri.getServiceDelivery().setResponseTimestamp(timestamp);
-                    RequestorRef producer = new RequestorRef();
-                    if (siriElement instanceof EstimatedVehicleJourney) {
-                        producer.setValue(((EstimatedVehicleJourney) siriElement).getDataSource());
-                        EstimatedTimetableDeliveryStructure estimatedTimetableDeliveryStructure = new EstimatedTimetableDeliveryStructure();
-                        EstimatedVersionFrameStructure estimatedVersionFrameStructure = new EstimatedVersionFrameStructure();
-                        estimatedVersionFrameStructure.getEstimatedVehicleJourneies().add((EstimatedVehicleJourney) siriElement);
-                        estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().add(estimatedVersionFrameStructure);
-                        siri.getServiceDelivery().getEstimatedTimetableDeliveries().add(estimatedTimetableDeliveryStructure);
-                    } else if (siriElement instanceof PtSituationElement) {
-                        producer.setValue(((PtSituationElement) siriElement).getParticipantRef().getValue());
-                        SituationExchangeDeliveryStructure situationExchangeDeliveryStructure = new SituationExchangeDeliveryStructure();
-                        SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
-                        situationExchangeDeliveryStructure.setSituations(situations);
-                        situations.getPtSituationElements().add((PtSituationElement) siriElement);
-                        siri.getServiceDelivery().getSituationExchangeDeliveries().add(situationExchangeDeliveryStructure);
-                    }
-                    siri.getServiceDelivery().setProducerRef(producer);
-                    pushMessage = siri;
-                } else {
-                    pushMessage = siriElement;
-                    if (siriElement instanceof EstimatedVehicleJourney) {
-                        pushAddress += "/et";
-                    } else if (siriElement instanceof PtSituationElement) {
-                        pushAddress += "/sx";
-                    }
-                }
-
-                if (siriElement instanceof EstimatedVehicleJourney) {
-                    if (((EstimatedVehicleJourney) siriElement).getDatedVehicleJourneyRef() != null) {
-                        messageIdentifier = ((EstimatedVehicleJourney) siriElement).getDatedVehicleJourneyRef().getValue();
-                    }
-                } else if (siriElement instanceof PtSituationElement) {
-                    if (((PtSituationElement) siriElement).getSituationNumber() != null) {
-                        messageIdentifier = ((PtSituationElement) siriElement).getSituationNumber().getValue();
-                    }
-                }
-
-                if (hasMessageBeenUpdated(subscription, messageIdentifier, pushMessage)) {
-
-                    HttpStatus responseStatus = post(subscription, pushAddress, pushMessage);
-                    handleResponse(responseStatus, subscription, pushAddress);
-                } else {
-                    logger.info("Ignoring push to {} since data for key [{}] has not changed since last push-attempt.", subscription, messageIdentifier);
-                }
-            } catch (Exception e) {
-                logger.error("Got exception while pushing message", e);
-            }
-        });
-    }
-
-    /*
-     * @return true if the message sent is NOT equal to last sent message.
-     */
-    private boolean hasMessageBeenUpdated(Subscription subscription, String messageIdentifier, Object pushMessage) {
-        boolean isEqualToLastMessage = false;
-        try {
-            String subscriptionId = subscription.getId();
-
-            MessageIdentifierKey msgId = new MessageIdentifierKey(subscriptionId, messageIdentifier);
-
-            String messageChecksum = getChecksum((Serializable) pushMessage);
-
-            if (lastMessageChecksum.containsKey(msgId)) {
-                isEqualToLastMessage = messageChecksum.equals(lastMessageChecksum.get(msgId));
-            }
-
-            lastMessageChecksum.put(msgId, messageChecksum);
-
-        } catch (Exception e) {
-            //Ignore - will be flagged as updated message
-        }
-        return !isEqualToLastMessage;
-    }
-
-    private static String getChecksum(Serializable object) throws IOException, NoSuchAlgorithmException {
-        ByteArrayOutputStream baos = null;
-        ObjectOutputStream oos = null;
-        try {
-            baos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(baos);
-            oos.writeObject(object);
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] thedigest = md.digest(baos.toByteArray());
-            return DatatypeConverter.printHexBinary(thedigest);
-        } finally {
-            oos.close();
-            baos.close();
-        }
+        Siri siri = new Siri();
+        siri.setVersion(SIRI_VERSION);
+        switch (type) {
+            case heartbeat:
+                HeartbeatNotificationStructure heartbeatNotification = new HeartbeatNotificationStructure();
+                siri.setHeartbeatNotification(heartbeatNotification);
+                heartbeatNotification.setRequestTimestamp(ZonedDateTime.now());
+                RequestorRef producerRef = new RequestorRef();
+                producerRef.setValue(subscription.getName());
+                heartbeatNotification.setProducerRef(producerRef);
+                break;
+            case subscriptionTerminated:
+                SubscriptionTerminatedNotificationStructure subscriptionTerminatedNotification = new SubscriptionTerminatedNotificationStructure();
+                subscriptionTerminatedNotification.setResponseTimestamp(ZonedDateTime.now());
+                RequestorRef requestorRef = new RequestorRef();
+                requestorRef.setValue(subscription.getSiriRequestor());
+                subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(requestorRef);
+                SubscriptionQualifierStructure subscriptionQualifierStructure = new SubscriptionQualifierStructure();
+                subscriptionQualifierStructure.setValue(subscription.getSiriClientGeneratedId());
+                subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(subscriptionQualifierStructure);
+                siri.setSubscriptionTerminatedNotification(subscriptionTerminatedNotification);
+                break;
+            default:
+                logger.error("Called without proper type specified...");
+                return;
+        }
+        pushService.pushNotification(subscription, siri, type.name());
     }
 
     private void handleResponse(HttpStatus responseStatus, Subscription subscription, String pushAddress) {
@@ -710,9 +617,6 @@ public class SubscriptionManager {
                     subscription.getId()
             );
 
-            // Last request failed - remove checksum for last send-attempt to retry
-            lastMessageChecksum.remove(subscription.getId());
-
             if (subscription.shouldRemove()) {
                 logger.info("Removing subscription with id {} after {} failed push attempts where first error was seen {}", subscription.getId(), subscription.getFailedPushCounter(), subscription.getFirstErrorSeen() );
                 remove(subscription.getId());
@@ -750,38 +654,39 @@ public class SubscriptionManager {
         }
     }
 
-
-    private HttpStatus post(Subscription subscription, String pushAddress, Object pushMessage) {
-        Timer pushToHttp = metricsService.getTimer(MetricsService.TIMER_PUSH);
-        Timer.Context context = pushToHttp.time();
-        try {
-            String payload = siriMarshaller.marshall(pushMessage);
-
-            HttpRequest post = HttpRequest.newBuilder()
-                    .uri(URI.create(pushAddress))
-                    .POST(HttpRequest.BodyPublishers.ofByteArray(payload.getBytes(StandardCharsets.UTF_8)))
-                    .header("Content-Type", "application/xml")
-                    .build();
-
-            HttpResponse<Void> response = httpClient.send(post, HttpResponse.BodyHandlers.discarding());
-            int responseCode = response.statusCode();
-
-            logger.debug("Receive {} on push to {} for subscription {}", responseCode, pushAddress, subscription);
-            return HttpStatus.valueOf(responseCode);
-        } catch (ConnectException e) {
-            logger.warn("Connection timed out for push to {} for subscription with id {}", subscription.getPushAddress(), subscription.getId(), e);
-            return HttpStatus.REQUEST_TIMEOUT;
-        } catch (Exception e) {
-            logger.warn("Could not push to {} for subscription with id {}", subscription.getPushAddress(), subscription.getId(), e);
-            return HttpStatus.BAD_REQUEST;
-        } finally {
-            context.stop();
-        }
-    }
-
     private enum NotificationTypeEnum {
         heartbeat,
         subscriptionTerminated
     }
-}
 
+    /**
+     * What {@link #project(PtSituationElement, Subscription, Set)} reduces a situation by for a subscription.
+     */
+    private static final class SituationProjectionKey {
+        private final boolean noCodespaces;
+        private final boolean noStops;
+        private final Set<String> lineRefs;
+        private final Set<String> subscribedStops;
+
+        SituationProjectionKey(Subscription subscription, Set<String> subscribedStops) {
+            this.noCodespaces = subscription.getCodespaces().isEmpty();
+            this.noStops = subscription.hasNoStops();
+            this.lineRefs = new HashSet<>(subscription.getLineRefs());
+            this.subscribedStops = subscribedStops;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SituationProjectionKey that = (SituationProjectionKey) o;
+            return noCodespaces == that.noCodespaces && noStops == that.noStops &&
+                    lineRefs.equals(that.lineRefs) && subscribedStops.equals(that.subscribedStops);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(noCodespaces, noStops, lineRefs, subscribedStops);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.subscription.Subscription;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * The per stop direction check the ET processing used before the stop pair matching, kept as a reference to
+ * verify (and benchmark) the stop pair matching against.
+ */
+class DirectionCheck {
+
+    private final HashMap<String, StopData> stops = new HashMap<>();
+
+    DirectionCheck(EstimatedVehicleJourney journey, QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+        JourneyTimeline timeline = JourneyTimeline.of(journey);
+        StopPattern stopPattern = StopPattern.of(timeline, quayAndStopPlaceMappingService);
+        for (int i = 0; i < stopPattern.size(); i++) {
+            int call = stopPattern.getCall(i);
+            stops.put(stopPattern.getStopId(i), new StopData(timeline.getAimedTime(call), timeline.isBoarding(call), timeline.isAlighting(call)));
+        }
+    }
+
+    Set<String> getStops() {
+        return stops.keySet();
+    }
+
+    boolean validDirection(Subscription subscription) {
+        long fromTime = findFrom(subscription.getFromStopPoints());
+        long toTime = findTo(subscription.getToStopPoints());
+        return fromTime != JourneyTimeline.NO_TIME && toTime != JourneyTimeline.NO_TIME && fromTime < toTime;
+    }
+
+    private long findFrom(Set<String> fromStopPoints) {
+        for (String fromStopPoint : fromStopPoints) {
+            StopData stopData = stops.get(fromStopPoint);
+            if (stopData != null) {
+                return stopData.boarding ? stopData.aimedTime : JourneyTimeline.NO_TIME;
+            }
+        }
+        return JourneyTimeline.NO_TIME;
+    }
+
+    private long findTo(Set<String> toStopPoints) {
+        for (String toStopPoint : toStopPoints) {
+            StopData stopData = stops.get(toStopPoint);
+            if (stopData != null) {
+                return stopData.alighting ? stopData.aimedTime : JourneyTimeline.NO_TIME;
+            }
+        }
+        return JourneyTimeline.NO_TIME;
+    }
+
+    private static class StopData {
+        private final long aimedTime;
+        private final boolean boarding;
+        private final boolean alighting;
+
+        StopData(long aimedTime, boolean boarding, boolean alighting) {
+            this.aimedTime = aimedTime;
+            this.boarding = boarding;
+            this.alighting = alighting;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class ETMessageTest {
+
+    @Test
+    public void readsRefsWithoutConverting() {
+        String payload = "{" +
+                "\"recordedAtTime\": \"2026-10-17T10:00:00+02:00\"," +
+                "\"lineRef\": \"NSB:Line:L1\"," +
+                "\"framedVehicleJourneyRef\": {\"dataFrameRef\": \"2026-10-17\", \"datedVehicleJourneyRef\": \"nested\"}," +
+                "\"datedVehicleJourneyRef\": {\"string\": \"1234\"}," +
+                "\"operatorRef\": null," +
+                "\"serviceFeatureRefs\": [\"passengerTrain\"]," +
+                "\"recordedCalls\": [{\"stopPointRef\": \"NSR:Quay:1\", \"aimedDepartureTime\": \"2026-10-17T09:50:00+02:00\"}]," +
+                "\"estimatedCalls\": [" +
+                "  {\"stopPointRef\": {\"string\": \"NSR:Quay:2\"}, \"order\": 2, \"cancellation\": false}," +
+                "  {\"stopPointRef\": \"NSR:Quay:3\", \"arrivalStopAssignment\": {\"aimedQuayRef\": \"NSR:Quay:4\"}}" +
+                "]," +
+                "\"dataSource\": \"BNR\"" +
+                "}";
+        ETMessage message = ETMessage.decode(payload);
+        assertFalse(message.isConverted());
+        assertEquals("BNR", message.getDataSource());
+        assertEquals("NSB:Line:L1", message.getLineRef());
+        assertEquals("1234", message.getDatedVehicleJourneyRef());
+        assertEquals(List.of("NSR:Quay:1", "NSR:Quay:2", "NSR:Quay:3"), message.getStopPointRefs());
+        assertEquals(ZonedDateTime.parse("2026-10-17T10:00:00+02:00"), message.getRecordedAtTime());
+    }
+}
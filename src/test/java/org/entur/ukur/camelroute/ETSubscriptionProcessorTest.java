@@ -15,19 +15,28 @@
 
 package org.entur.ukur.camelroute;
 
-import com.google.common.collect.Sets;
 import jakarta.xml.bind.JAXBException;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.component.google.pubsub.consumer.GooglePubsubAcknowledge;
+import org.entur.ukur.index.SubscriptionIndex;
 import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.JourneyChangeDetector;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.service.SubscriptionFilterService;
 import org.entur.ukur.subscription.DeviationType;
+import org.entur.ukur.subscription.PushService;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.xml.SiriMarshaller;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import uk.org.siri.siri21.ArrivalBoardingActivityEnumeration;
 import uk.org.siri.siri21.CallStatusEnumeration;
+import uk.org.siri.siri21.DepartureBoardingActivityEnumeration;
 import uk.org.siri.siri21.DatedVehicleJourneyRef;
 import uk.org.siri.siri21.EstimatedCall;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
@@ -43,10 +52,15 @@ import javax.xml.datatype.DatatypeConfigurationException;
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
 import static org.hamcrest.CoreMatchers.hasItem;
@@ -55,8 +69,12 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -78,37 +96,90 @@ public class ETSubscriptionProcessorTest {
         journey.setRecordedCalls(recordedCalls);
         journey.setEstimatedCalls(estimatedCalls);
 
-        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(mock(SubscriptionManager.class),
-                mock(FileStorageService.class),
-                mock(MetricsService.class), mock(QuayAndStopPlaceMappingService.class));
-
-        HashMap<String, ETSubscriptionProcessor.StopData> stopData = processor.getStopData(journey);
+        DirectionCheck directionCheck = new DirectionCheck(journey, mock(QuayAndStopPlaceMappingService.class));
         //No errors if no hits...
-        assertFalse(processor.validDirection(new Subscription(), stopData));
+        assertFalse(directionCheck.validDirection(new Subscription()));
 
         //Only to in journey
-        assertFalse(processor.validDirection(createSubscription("X", "E2", true), stopData));
+        assertFalse(directionCheck.validDirection(createSubscription("X", "E2", true)));
 
         //Only from in journey
-        assertFalse(processor.validDirection(createSubscription("E2", "X", true), stopData));
+        assertFalse(directionCheck.validDirection(createSubscription("E2", "X", true)));
 
         //To and from in correct order in estimated calls
-        assertTrue(processor.validDirection(createSubscription("E1", "E2", true), stopData));
+        assertTrue(directionCheck.validDirection(createSubscription("E1", "E2", true)));
 
         //To and from in opposite order in estimated calls
-        assertFalse(processor.validDirection(createSubscription("E2", "E1", true), stopData));
+        assertFalse(directionCheck.validDirection(createSubscription("E2", "E1", true)));
 
         //correct order: to in estimated calls, from in recorded calls
-        assertTrue(processor.validDirection(createSubscription("R1", "E2", true), stopData));
+        assertTrue(directionCheck.validDirection(createSubscription("R1", "E2", true)));
 
         //opposite order: to in estimated calls, from in recorded calls
-        assertFalse(processor.validDirection(createSubscription("E1", "R1", true), stopData));
+        assertFalse(directionCheck.validDirection(createSubscription("E1", "R1", true)));
 
     }
 
-    @SuppressWarnings("unchecked")
+    @Test
+    public void stopPairMatchingGivesSameResultAsValidDirection() {
+        Random random = new Random(42);
+        EstimatedVehicleJourney.RecordedCalls recordedCalls = new EstimatedVehicleJourney.RecordedCalls();
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        ZonedDateTime start = ZonedDateTime.now().minusHours(1);
+        for (int i = 0; i < 40; i++) {
+            ZonedDateTime time = start.plusMinutes(5L * i);
+            if (i < 10) {
+                addRecordedCall(recordedCalls, "P" + i, time);
+            } else {
+                addEstimatedCall(estimatedCalls, "P" + i, time);
+                EstimatedCall call = estimatedCalls.getEstimatedCalls().get(estimatedCalls.getEstimatedCalls().size() - 1);
+                if (random.nextInt(5) == 0) {
+                    call.setDepartureBoardingActivity(DepartureBoardingActivityEnumeration.NO_BOARDING);
+                }
+                if (random.nextInt(5) == 0) {
+                    call.setArrivalBoardingActivity(ArrivalBoardingActivityEnumeration.NO_ALIGHTING);
+                }
+            }
+        }
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setRecordedCalls(recordedCalls);
+        journey.setEstimatedCalls(estimatedCalls);
+
+        QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
+        for (int i = 0; i < 40; i += 2) {
+            when(mappingMock.mapQuayToStopPlace("NSR:Quay:P" + i)).thenReturn("NSR:StopPlace:P" + i);
+        }
+        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(mock(SubscriptionManager.class),
+                mock(FileStorageService.class), mock(MetricsService.class), mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
+
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            //stops outside the journey (P40-P49) are included to get subscriptions with only one of the stops on it
+            subscriptions.add(createSubscription("P" + random.nextInt(50), "P" + random.nextInt(50), random.nextBoolean()));
+        }
+        DirectionCheck directionCheck = new DirectionCheck(journey, mappingMock);
+        Set<Subscription> expected = subscriptions.stream().filter(directionCheck::validDirection).collect(Collectors.toSet());
+        Set<Subscription> found = index(subscriptions.toArray(new Subscription[0])).getSubscriptionsForStopsInOrder(processor.getStopSequence(journey), ET);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, found);
+    }
+
     @Test
     public void processEstimatedVehicleJourney() throws JAXBException, DatatypeConfigurationException {
+        assertEquals(0, processEstimatedVehicleJourney(0));
+    }
+
+    @Test
+    public void processEstimatedVehicleJourneyInParallel() throws JAXBException, DatatypeConfigurationException {
+        //two deviating stops with a handful of candidates is enough to match in parallel
+        assertEquals(1, processEstimatedVehicleJourney(5));
+    }
+
+    /**
+     * @return number of times stops were matched in parallel
+     */
+    @SuppressWarnings("unchecked")
+    private long processEstimatedVehicleJourney(int parallelMatchingThreshold) throws JAXBException, DatatypeConfigurationException {
         final Duration minimumDelay_sR1E1 = Duration.parse("PT30M");
         final Duration minimumDelay_sR1E1C = Duration.parse("PT4M");
 
@@ -160,18 +231,21 @@ public class ETSubscriptionProcessorTest {
 
         SubscriptionManager subscriptionManagerMock =
                 mock(SubscriptionManager.class); //must be somewhat carefull so we don't spend to much time testing the mock...
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:E1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:R1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForLineRef("NSB:Line:1", ET)).thenReturn(new HashSet<>(Arrays.asList(sL, sLC, sLCx)));
-        when(subscriptionManagerMock.getSubscriptionsForCodespace("BNR", ET)).thenReturn(new HashSet<>(Arrays.asList(sLC, sC, sLxC)));
+        SubscriptionIndex stopIndex = index(subscriptionsForStopPoint.toArray(new Subscription[0]));
+        when(subscriptionManagerMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> stopIndex.getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
+        when(subscriptionManagerMock.getSubscriptionsForLineRefOrCodespace("NSB:Line:1", "BNR", ET))
+                .thenReturn(index(sL, sLC, sLCx, sC, sLxC).getSubscriptionsForLineRefOrCodespaceAndNoStops("NSB:Line:1", "BNR", ET));
 
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:E1")).thenReturn("NSR:StopPlace:E1");
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:R1")).thenReturn("NSR:StopPlace:R1");
 
+        MetricsService metricsService = new MetricsService();
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
                 mock(FileStorageService.class),
-                new MetricsService(), mappingMock);
+                metricsService, mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
+        processor.parallelMatchingThreshold = parallelMatchingThreshold;
 
         ArgumentCaptor<HashSet> subscriptionsOnStopsCaptor = ArgumentCaptor.forClass(HashSet.class);
         ArgumentCaptor<HashSet> subscriptionsOnLineOrVehicleJourneyCaptor = ArgumentCaptor.forClass(HashSet.class);
@@ -189,6 +263,102 @@ public class ETSubscriptionProcessorTest {
         assertTrue(notifiedSubscriptionsWithFullMessage.contains(sLC));
         assertTrue(notifiedSubscriptionsWithFullMessage.contains(sL));
         assertTrue(notifiedSubscriptionsWithFullMessage.contains(sC));
+        processor.shutdown();
+        return metricsService.getMeter(MetricsService.METER_ET_PARALLEL_MATCHING).getCount();
+    }
+
+    @Test
+    public void skipsJourneysWithoutSubscribedStopsLineOrCodespace() {
+        DataStorageService dataStorageMock = mock(DataStorageService.class);
+        when(dataStorageMock.getSubscribedKeys(ET)).thenReturn(new HashSet<>(Arrays.asList("NSR:StopPlace:1", "NSB:Line:1")));
+        QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
+        when(mappingMock.isValidStopPlace("NSR:StopPlace:1")).thenReturn(true);
+        when(mappingMock.mapStopPlaceToQuays("NSR:StopPlace:1")).thenReturn(Collections.singletonList("NSR:Quay:11"));
+        SubscriptionManager subscriptionManagerMock = mock(SubscriptionManager.class);
+        when(subscriptionManagerMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> index().getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
+        MetricsService metricsService = new MetricsService();
+        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
+                mock(FileStorageService.class), metricsService, mappingMock,
+                new SubscriptionFilterService(dataStorageMock, mappingMock), mock(JourneyChangeDetector.class));
+
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        addDelayedEstimatedCall(estimatedCalls, "21", ZonedDateTime.now().plus(1, ChronoUnit.HOURS));
+        addDelayedEstimatedCall(estimatedCalls, "31", ZonedDateTime.now().plus(2, ChronoUnit.HOURS));
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setEstimatedCalls(estimatedCalls);
+        journey.setDataSource("BNR");
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("NSB:Line:2");
+        journey.setLineRef(lineRef);
+        assertTrue(processor.processEstimatedVehicleJourney(journey, ZonedDateTime.now()));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_FILTER_MISS).getCount());
+        assertEquals(0, metricsService.getMeter(MetricsService.METER_ET_FILTER_HIT).getCount());
+        verify(subscriptionManagerMock, never()).notifySubscriptionsOnStops(any(), any(), any());
+        verify(subscriptionManagerMock, never()).notifySubscriptionsWithFullMessage(any(), any(), any());
+
+        //a quay on a subscribed stop place passes the filter
+        addDelayedEstimatedCall(estimatedCalls, "11", ZonedDateTime.now().plus(3, ChronoUnit.HOURS));
+        assertTrue(processor.processEstimatedVehicleJourney(journey, ZonedDateTime.now()));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_FILTER_MISS).getCount());
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_FILTER_HIT).getCount());
+        verify(subscriptionManagerMock).notifySubscriptionsOnStops(any(), eq(journey), any());
+    }
+
+    @Test
+    public void processBatch() {
+        SubscriptionManager subscriptionManagerMock = mock(SubscriptionManager.class);
+        when(subscriptionManagerMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> index().getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
+        Subscription lineSubscription = createSubscription("s_l", new HashSet<>(), null, null, null, "NSB:Line:1", false);
+        when(subscriptionManagerMock.getSubscriptionsForLineRefOrCodespace("NSB:Line:1", "BNR", ET))
+                .thenReturn(Set.of(lineSubscription));
+        MetricsService metricsService = spy(new MetricsService());
+        doNothing().when(metricsService).registerReceivedMessage(any());
+        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
+                mock(FileStorageService.class), metricsService, mock(QuayAndStopPlaceMappingService.class),
+                mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
+
+        ETBatch batch = new ETBatch();
+        GooglePubsubAcknowledge acknowledge = mock(GooglePubsubAcknowledge.class);
+        List<Exchange> received = new ArrayList<>();
+        ZonedDateTime departure = ZonedDateTime.now().plus(1, ChronoUnit.HOURS);
+        for (int i = 0; i < 3; i++) {
+            EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+            addDelayedEstimatedCall(estimatedCalls, "E1", departure);
+            addDelayedEstimatedCall(estimatedCalls, "E2", departure.plusMinutes(10));
+            EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+            journey.setEstimatedCalls(estimatedCalls);
+            journey.setDataSource("BNR");
+            LineRef lineRef = new LineRef();
+            lineRef.setValue("NSB:Line:1");
+            journey.setLineRef(lineRef);
+            Exchange receivedExchange = mock(Exchange.class);
+            Message receivedMessage = mock(Message.class);
+            when(receivedExchange.getIn()).thenReturn(receivedMessage);
+            when(receivedMessage.getHeader(GooglePubsubConstants.GOOGLE_PUBSUB_ACKNOWLEDGE)).thenReturn(acknowledge);
+            when(receivedMessage.getHeader(GooglePubsubConstants.GOOGLE_PUBSUB_ACKNOWLEDGE, GooglePubsubAcknowledge.class)).thenReturn(acknowledge);
+            batch.add(ETMessage.of(journey), receivedExchange);
+            received.add(receivedExchange);
+        }
+        Exchange exchange = mock(Exchange.class);
+        Message message = mock(Message.class);
+        when(exchange.getIn()).thenReturn(message);
+        when(message.getBody(ETBatch.class)).thenReturn(batch);
+        processor.processBatch(exchange);
+
+        //all journeys are notified, but the line and codespace and the stops are looked up only once
+        verify(subscriptionManagerMock, times(3)).notifySubscriptionsWithFullMessage(eq(new HashSet<>(Set.of(lineSubscription))), any(), any());
+        verify(subscriptionManagerMock, times(1)).getSubscriptionsForLineRefOrCodespace("NSB:Line:1", "BNR", ET);
+        verify(subscriptionManagerMock, times(1)).getCandidatesForStopsInOrder(any(), eq(ET));
+        //the messages are acknowledged after the batch is processed
+        for (Exchange receivedExchange : received) {
+            verify(acknowledge).ack(receivedExchange);
+        }
+        verify(acknowledge, never()).nack(any());
+        assertEquals(1, metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_SIZE).getCount());
+        assertEquals(3, metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_SIZE).getSnapshot().getMax());
+        assertEquals(66, metricsService.getHistogram(MetricsService.HISTOGRAM_ET_BATCH_DEDUP).getSnapshot().getMax());
     }
 
     @Test
@@ -203,7 +373,7 @@ public class ETSubscriptionProcessorTest {
         HashSet<Subscription> subscriptionsNotified = new HashSet<>();
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
         SubscriptionManager subscriptionManager =
-                new SubscriptionManager(dataStorageMock, siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), mappingMock) {
+                new SubscriptionManager(dataStorageMock, siriMarshaller, metricsService, new HashMap<>(), new PushService(dataStorageMock, siriMarshaller, metricsService, new HashMap<>()), mappingMock) {
                     @Override
                     public void notifySubscriptionsOnStops(HashSet<Subscription> subscriptions,
                                                            EstimatedVehicleJourney estimatedVehicleJourney, ZonedDateTime timestamp) {
@@ -212,13 +382,11 @@ public class ETSubscriptionProcessorTest {
                 };
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManager,
-                mock(FileStorageService.class), metricsService, mappingMock);
+                mock(FileStorageService.class), metricsService, mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
 
-        HashSet<Subscription> subscriptions = Sets.newHashSet(s1, s2);
-        when(dataStorageMock.getSubscriptionsForStopPoint("NSR:StopPlace:1", ET)).thenReturn(subscriptions);
-        when(dataStorageMock.getSubscriptionsForStopPoint("NSR:StopPlace:2", ET)).thenReturn(subscriptions);
-        when(dataStorageMock.getSubscriptionsForStopPoint("NSR:Quay:1", ET)).thenReturn(Sets.newHashSet(q1));
-        when(dataStorageMock.getSubscriptionsForStopPoint("NSR:Quay:2", ET)).thenReturn(Sets.newHashSet(q1));
+        SubscriptionIndex stopIndex = index(s1, q1, s2);
+        when(dataStorageMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> stopIndex.getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:1")).thenReturn("NSR:StopPlace:1");
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:2")).thenReturn("NSR:StopPlace:2");
 
@@ -296,12 +464,12 @@ public class ETSubscriptionProcessorTest {
 
         SubscriptionManager subscriptionManagerMock =
                 mock(SubscriptionManager.class); //must be somewhat carefull so we don't spend to much time testing the mock...
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:E1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:R1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForLineRef("NSB:Line:1", ET))
-                .thenReturn(new HashSet<>(Arrays.asList(sL, sLC, sLCx, allMessagesL, allMessagesLC)));
-        when(subscriptionManagerMock.getSubscriptionsForCodespace("BNR", ET))
-                .thenReturn(new HashSet<>(Arrays.asList(sLC, sC, sLxC, allMessagesLC, allMessagesC)));
+        SubscriptionIndex stopIndex = index(subscriptionsForStopPoint.toArray(new Subscription[0]));
+        when(subscriptionManagerMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> stopIndex.getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
+        when(subscriptionManagerMock.getSubscriptionsForLineRefOrCodespace("NSB:Line:1", "BNR", ET))
+                .thenReturn(index(sL, sLC, sLCx, sC, sLxC, allMessagesL, allMessagesLC, allMessagesC)
+                        .getSubscriptionsForLineRefOrCodespaceAndNoStops("NSB:Line:1", "BNR", ET));
 
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:E1")).thenReturn("NSR:StopPlace:E1");
@@ -309,7 +477,7 @@ public class ETSubscriptionProcessorTest {
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
                 mock(FileStorageService.class),
-                new MetricsService(), mappingMock);
+                new MetricsService(), mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
 
         ArgumentCaptor<HashSet> subscriptionsOnStopsCaptor = ArgumentCaptor.forClass(HashSet.class);
         ArgumentCaptor<HashSet> subscriptionsOnLineOrVehicleJourneyCaptor = ArgumentCaptor.forClass(HashSet.class);
@@ -369,10 +537,11 @@ public class ETSubscriptionProcessorTest {
 
         SubscriptionManager subscriptionManagerMock =
                 mock(SubscriptionManager.class); //must be somewhat careful so we don't spend to much time testing the mock...
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:E1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:R1", ET)).thenReturn(subscriptionsForStopPoint);
-        when(subscriptionManagerMock.getSubscriptionsForLineRef("NSB:Line:1", ET)).thenReturn(new HashSet<>(Arrays.asList(sL, sLC, sLCx)));
-        when(subscriptionManagerMock.getSubscriptionsForCodespace("BNR", ET)).thenReturn(new HashSet<>(Arrays.asList(sLC, sC, sLxC)));
+        SubscriptionIndex stopIndex = index(subscriptionsForStopPoint.toArray(new Subscription[0]));
+        when(subscriptionManagerMock.getCandidatesForStopsInOrder(any(), eq(ET)))
+                .thenAnswer(invocation -> stopIndex.getCandidatesForStopsInOrder(invocation.getArgument(0), ET));
+        when(subscriptionManagerMock.getSubscriptionsForLineRefOrCodespace("NSB:Line:1", "BNR", ET))
+                .thenReturn(index(sL, sLC, sLCx, sC, sLxC).getSubscriptionsForLineRefOrCodespaceAndNoStops("NSB:Line:1", "BNR", ET));
 
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:E1")).thenReturn("NSR:StopPlace:E1");
@@ -380,7 +549,7 @@ public class ETSubscriptionProcessorTest {
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
                 mock(FileStorageService.class),
-                new MetricsService(), mappingMock);
+                new MetricsService(), mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
 
         ArgumentCaptor<HashSet> subscriptionsOnStopsCaptor = ArgumentCaptor.forClass(HashSet.class);
         ArgumentCaptor<HashSet> subscriptionsOnLineOrVehicleJourneyCaptor = ArgumentCaptor.forClass(HashSet.class);
@@ -452,6 +621,14 @@ public class ETSubscriptionProcessorTest {
         return createSubscription(name, subscriptions,from,to,codespace,line,subscribeToQuay,minimumDelay,null);
     }
 
+    private SubscriptionIndex index(Subscription... subscriptions) {
+        SubscriptionIndex index = new SubscriptionIndex();
+        for (Subscription subscription : subscriptions) {
+            index.addOrUpdate(subscription);
+        }
+        return index;
+    }
+
     private Subscription createSubscription(String name, String from, String to, boolean createQuay) {
         return createSubscription(name, null, from, to, null, null, createQuay);
     }
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.CallStatusEnumeration;
+import uk.org.siri.siri21.DepartureBoardingActivityEnumeration;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JourneyTimelineTest {
+
+    @Test
+    public void timesAndStatuses() {
+        ZonedDateTime aimed = ZonedDateTime.parse("2026-10-17T10:00:00.250+02:00");
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+
+        RecordedCall recordedCall = new RecordedCall();
+        recordedCall.setStopPointRef(stopPointRef("NSR:Quay:1"));
+        recordedCall.setAimedDepartureTime(aimed.minusMinutes(10));
+        EstimatedVehicleJourney.RecordedCalls recordedCalls = new EstimatedVehicleJourney.RecordedCalls();
+        recordedCalls.getRecordedCalls().add(recordedCall);
+        journey.setRecordedCalls(recordedCalls);
+
+        EstimatedCall delayed = new EstimatedCall();
+        delayed.setStopPointRef(stopPointRef("NSR:Quay:2"));
+        delayed.setAimedArrivalTime(aimed);
+        delayed.setExpectedArrivalTime(aimed.plusMinutes(3));
+        delayed.setAimedDepartureTime(aimed.plusMinutes(1));
+        delayed.setExpectedDepartureTime(aimed.plusMinutes(3));
+        delayed.setDepartureStatus(CallStatusEnumeration.DELAYED);
+        delayed.setDepartureBoardingActivity(DepartureBoardingActivityEnumeration.NO_BOARDING);
+        EstimatedCall last = new EstimatedCall();
+        last.setStopPointRef(stopPointRef("NSR:Quay:3"));
+        last.setAimedArrivalTime(aimed.plusMinutes(10));
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        estimatedCalls.getEstimatedCalls().add(delayed);
+        estimatedCalls.getEstimatedCalls().add(last);
+        journey.setEstimatedCalls(estimatedCalls);
+
+        JourneyTimeline timeline = JourneyTimeline.of(journey);
+        assertEquals(3, timeline.size());
+        assertFalse(timeline.isEstimated(0));
+        assertTrue(timeline.isEstimated(1));
+        assertEquals(aimed.minusMinutes(10).toInstant().toEpochMilli(), timeline.getAimedTime(0));
+        assertEquals(aimed.plusMinutes(1).toInstant().toEpochMilli(), timeline.getAimedTime(1));
+        assertEquals(aimed.plusMinutes(10).toInstant().toEpochMilli(), timeline.getAimedTime(2), "uses arrival without departure");
+
+        long now = aimed.plusMinutes(2).toInstant().toEpochMilli();
+        assertTrue(timeline.isAfter(1, now), "expected departure is after now");
+        assertTrue(timeline.isAfter(2, now));
+        assertFalse(timeline.isAfter(1, aimed.plusMinutes(3).toInstant().toEpochMilli()));
+
+        assertTrue(timeline.isDelayedDeparture(1));
+        assertTrue(timeline.isDelayedArrival(1));
+        assertEquals(180_000, timeline.getArrivalDelay(1));
+        assertEquals(JourneyTimeline.NO_TIME, timeline.getArrivalDelay(2));
+        assertFalse(timeline.isBoarding(1), "departure is not cancelled and has no boarding");
+        assertTrue(timeline.isAlighting(1));
+        assertTrue(timeline.isBoarding(0));
+
+        assertNull(delayed.getArrivalStatus());
+        timeline.markDelayed(1, true, true);
+        assertEquals(CallStatusEnumeration.DELAYED, delayed.getArrivalStatus());
+        assertEquals(CallStatusEnumeration.DELAYED, delayed.getDepartureStatus());
+    }
+
+    private StopPointRefStructure stopPointRef(String value) {
+        StopPointRefStructure stopPointRef = new StopPointRefStructure();
+        stopPointRef.setValue(value);
+        return stopPointRef;
+    }
+}
@@ -29,8 +29,11 @@ import org.apache.camel.Message;
 import org.entur.siri21.util.SiriXml;
 import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.JourneyChangeDetector;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.service.SubscriptionFilterService;
+import org.entur.ukur.subscription.PushService;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.testsupport.DatastoreTest;
@@ -110,10 +113,10 @@ public class NsbETSubscriptionManualTest extends DatastoreTest {
         HazelcastInstance hazelcastInstance = new TestHazelcastInstanceFactory().newHazelcastInstance();
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
         siriMarshaller = new SiriMarshaller();
-        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic, metricsService);
         quayAndStopPlaceMappingService = new QuayAndStopPlaceMappingService(metricsService);
-        subscriptionManager = new SubscriptionManager(dataStorageService,siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), quayAndStopPlaceMappingService);
-        ETSubscriptionProcessor = new ETSubscriptionProcessor(subscriptionManager, mock(FileStorageService.class), metricsService, quayAndStopPlaceMappingService);
+        subscriptionManager = new SubscriptionManager(dataStorageService,siriMarshaller, metricsService, new HashMap<>(), new PushService(dataStorageService, siriMarshaller, metricsService, new HashMap<>()), quayAndStopPlaceMappingService);
+        ETSubscriptionProcessor = new ETSubscriptionProcessor(subscriptionManager, mock(FileStorageService.class), metricsService, quayAndStopPlaceMappingService, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
         ETSubscriptionProcessor.skipCallTimeChecks = true; //since we post old recorded ET messages
     }
 
@@ -30,6 +30,7 @@ import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.subscription.PushService;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.testsupport.DatastoreTest;
@@ -103,9 +104,9 @@ public class NsbSXSubscriptionManualTest extends DatastoreTest {
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
         MetricsService metricsService = new MetricsService();
         siriMarshaller = new SiriMarshaller();
-        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic, metricsService);
         quayAndStopPlaceMappingService = new QuayAndStopPlaceMappingService(metricsService);
-        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), quayAndStopPlaceMappingService);
+        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, new HashMap<>(), new PushService(dataStorageService, siriMarshaller, metricsService, new HashMap<>()), quayAndStopPlaceMappingService);
         SXSubscriptionProcessor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, mock(FileStorageService.class), metricsService);
     }
 
@@ -24,6 +24,7 @@ import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.subscription.PushService;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.testsupport.DatastoreTest;
@@ -71,7 +72,7 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
         MetricsService metricsService = new MetricsService();
         siriMarshaller = new SiriMarshaller();
-        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService dataStorageService = new DataStorageService(datastore, subscriptionTopic, metricsService);
         HashMap<String, Collection<String>> stopPlacesAndQuays = new HashMap<>();
         stopPlacesAndQuays.put("NSR:StopPlace:0", Sets.newHashSet("NSR:Quay:232"));
         stopPlacesAndQuays.put("NSR:StopPlace:1", Sets.newHashSet("NSR:Quay:232"));
@@ -91,7 +92,7 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
         quayAndStopPlaceMappingService.updateStopsAndQuaysMap(stopPlacesAndQuays);
 
         subscriptionManager =
-                new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), quayAndStopPlaceMappingService);
+                new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, new HashMap<>(), new PushService(dataStorageService, siriMarshaller, metricsService, new HashMap<>()), quayAndStopPlaceMappingService);
         processor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, mock(FileStorageService.class), mock(MetricsService.class));
     }
 
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionIndex;
+import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.JourneyChangeDetector;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.service.SubscriptionFilterService;
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionManager;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the per stop lookup and direction check we used to do with the stop pair matching, on a long rail
+ * journey where a few large stations are used by most subscriptions.
+ */
+@Disabled //Manual benchmark - takes a while and only logs the results; not part of the default suite
+public class StopPairMatchingManualTest {
+
+    private static final int JOURNEY_STOPS = 60;
+    private static final int STOPS = 400;
+    private static final int SUBSCRIPTIONS = 20_000;
+    private static final int ITERATIONS = 200;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Test
+    @Disabled //So idea don't run it as part of package/folder tests
+    public void longRailJourney() {
+        Random random = new Random(1);
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        ZonedDateTime start = ZonedDateTime.now().plusMinutes(1);
+        QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
+        for (int i = 0; i < JOURNEY_STOPS; i++) {
+            EstimatedCall call = new EstimatedCall();
+            StopPointRefStructure ref = new StopPointRefStructure();
+            ref.setValue("NSR:Quay:" + i);
+            call.setStopPointRef(ref);
+            call.setAimedDepartureTime(start.plusMinutes(6L * i));
+            estimatedCalls.getEstimatedCalls().add(call);
+            when(mappingMock.mapQuayToStopPlace("NSR:Quay:" + i)).thenReturn("NSR:StopPlace:" + i);
+        }
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setEstimatedCalls(estimatedCalls);
+
+        SubscriptionIndex index = new SubscriptionIndex();
+        for (int i = 0; i < SUBSCRIPTIONS; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setId("benchmark-" + i);
+            //most subscriptions are to or from one of the first (large) stations:
+            subscription.addFromStopPoint("NSR:StopPlace:" + (random.nextInt(4) == 0 ? random.nextInt(STOPS) : random.nextInt(5)));
+            subscription.addToStopPoint("NSR:StopPlace:" + (random.nextInt(4) == 0 ? random.nextInt(5) : random.nextInt(STOPS)));
+            index.addOrUpdate(subscription);
+        }
+
+        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(mock(SubscriptionManager.class),
+                mock(FileStorageService.class), mock(MetricsService.class), mappingMock, mock(SubscriptionFilterService.class), mock(JourneyChangeDetector.class));
+        DirectionCheck directionCheck = new DirectionCheck(journey, mappingMock);
+        StopSequence stopSequence = processor.getStopSequence(journey);
+
+        assertEquals(perStopLookup(index, directionCheck), index.getSubscriptionsForStopsInOrder(stopSequence, ET));
+        for (int round = 0; round < 3; round++) {
+            long perStop = 0;
+            long pairs = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                perStop += perStopLookup(index, directionCheck).size();
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                pairs += index.getSubscriptionsForStopsInOrder(processor.getStopSequence(journey), ET).size();
+            }
+            long t2 = System.nanoTime();
+            logger.info("Round {}: per stop lookup {} micros/journey ({} hits), stop pair matching {} micros/journey ({} hits)",
+                    round, (t1 - t0) / 1000 / ITERATIONS, perStop / ITERATIONS, (t2 - t1) / 1000 / ITERATIONS, pairs / ITERATIONS);
+        }
+    }
+
+    private Set<Subscription> perStopLookup(SubscriptionIndex index, DirectionCheck directionCheck) {
+        HashSet<Subscription> found = new HashSet<>();
+        for (String stop : directionCheck.getStops()) {
+            for (Subscription subscription : index.getSubscriptionsForStopPoint(stop, ET)) {
+                if (directionCheck.validDirection(subscription)) {
+                    found.add(subscription);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StopPatternCacheTest {
+
+    @Test
+    public void reusesPatternUntilStopsOrMappingChange() {
+        QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
+        when(mappingMock.mapQuayToStopPlace("NSR:Quay:1")).thenReturn("NSR:StopPlace:1");
+        when(mappingMock.mapQuayToStopPlace("NSR:Quay:2")).thenReturn("NSR:StopPlace:2");
+        StopPatternCache cache = new StopPatternCache(mappingMock, 10);
+
+        StopPattern pattern = cache.get("BNR:1", timeline("NSR:Quay:1", "NSR:Quay:2"));
+        assertEquals(4, pattern.size());
+        assertEquals("NSR:StopPlace:1", pattern.getStopPlace("NSR:Quay:1"));
+        assertNull(pattern.getStopPlace("NSR:StopPlace:1"));
+        assertEquals("NSR:Quay:2", pattern.getStopId(1));
+        assertEquals("NSR:StopPlace:2", pattern.getStopId(3));
+        assertEquals(pattern.getCall(1), pattern.getCall(3));
+
+        //new times on the same stops
+        assertSame(pattern, cache.get("BNR:1", timeline("NSR:Quay:1", "NSR:Quay:2")));
+        verify(mappingMock, times(1)).mapQuayToStopPlace("NSR:Quay:1");
+
+        StopPattern changedStops = cache.get("BNR:1", timeline("NSR:Quay:1", "NSR:Quay:3"));
+        assertNotSame(pattern, changedStops);
+        assertEquals(3, changedStops.size());
+        assertSame(changedStops, cache.get("BNR:1", timeline("NSR:Quay:1", "NSR:Quay:3")));
+
+        when(mappingMock.getVersion()).thenReturn(1L);
+        assertNotSame(changedStops, cache.get("BNR:1", timeline("NSR:Quay:1", "NSR:Quay:3")));
+        assertEquals(1, cache.size());
+
+        //journeys without ref are not cached
+        assertNotSame(cache.get(null, timeline("NSR:Quay:1")), cache.get(null, timeline("NSR:Quay:1")));
+        assertEquals(1, cache.size());
+    }
+
+    private JourneyTimeline timeline(String... quays) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        ZonedDateTime time = ZonedDateTime.now();
+        for (String quay : quays) {
+            EstimatedCall call = new EstimatedCall();
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue(quay);
+            call.setStopPointRef(stopPointRef);
+            time = time.plusMinutes(10);
+            call.setAimedDepartureTime(time);
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        return JourneyTimeline.of(journey);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.entur.ukur.subscription.SubscriptionTypeEnum.SX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SubscriptionLookupsTest {
+
+    @Test
+    public void memoizesLookupsPerKind() {
+        SubscriptionManager subscriptionManagerMock = mock(SubscriptionManager.class);
+        Set<Subscription> onStop = Collections.singleton(new Subscription());
+        when(subscriptionManagerMock.getSubscriptionsForStopPoint("NSR:Quay:1", SX)).thenReturn(onStop);
+        when(subscriptionManagerMock.getSubscriptionsForLineRef("NSR:Quay:1", SX)).thenReturn(Collections.emptySet());
+        when(subscriptionManagerMock.getSubscriptionsForCodespace("NSB", SX)).thenReturn(Collections.emptySet());
+        SubscriptionLookups lookups = new SubscriptionLookups(subscriptionManagerMock, SX);
+
+        assertSame(onStop, lookups.getSubscriptionsForStopPoint("NSR:Quay:1"));
+        assertSame(onStop, lookups.getSubscriptionsForStopPoint("NSR:Quay:1"));
+        //same key, but another index
+        assertEquals(0, lookups.getSubscriptionsForLineRef("NSR:Quay:1").size());
+        assertEquals(0, lookups.getSubscriptionsForCodespace("NSB").size());
+        assertEquals(0, lookups.getSubscriptionsForCodespace("NSB").size());
+
+        verify(subscriptionManagerMock, times(1)).getSubscriptionsForStopPoint("NSR:Quay:1", SX);
+        verify(subscriptionManagerMock, times(1)).getSubscriptionsForLineRef("NSR:Quay:1", SX);
+        verify(subscriptionManagerMock, times(1)).getSubscriptionsForCodespace("NSB", SX);
+        assertEquals(5, lookups.getLookups());
+        assertEquals(2, lookups.getHits());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IntObjectHashMapTest {
+
+    @Test
+    public void verifyPutGetAndRemove() {
+        IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(17, "seventeen"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals(2, map.size());
+        assertEquals("uno", map.get(1));
+        assertEquals("seventeen", map.get(17));
+        assertNull(map.get(2));
+        assertNull(map.get(SymbolTable.NO_SYMBOL));
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        assertEquals("seventeen", map.get(17));
+    }
+
+    @Test
+    public void verifyAgainstHashMap() {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int key = 0; key < 2_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        HashMap<Integer, Integer> iterated = new HashMap<>();
+        map.forEach(iterated::put);
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void readersNeverMissKeysThatAreNotModified() throws Exception {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        int stableKeys = 64;
+        for (int key = 0; key < stableKeys; key++) {
+            map.put(key, key);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] results = new Future<?>[4];
+            for (int r = 0; r < results.length; r++) {
+                results[r] = readers.submit(() -> {
+                    while (running.get()) {
+                        for (int key = 0; key < stableKeys; key++) {
+                            assertEquals(Integer.valueOf(key), map.get(key));
+                        }
+                    }
+                    return null;
+                });
+            }
+            //one writer churning other keys in the same small table, so entries are shifted around the stable ones
+            Random random = new Random(42);
+            long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (System.nanoTime() < stopAt) {
+                int key = stableKeys + random.nextInt(64);
+                if (random.nextBoolean()) {
+                    map.put(key, key);
+                } else {
+                    map.remove(key);
+                }
+            }
+            running.set(false);
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void verifyIntIntHashMap() {
+        IntIntHashMap map = new IntIntHashMap(3);
+        map.put(10, 1);
+        map.put(26, 2);
+        map.put(10, 3);
+        assertEquals(2, map.size());
+        assertEquals(3, map.get(10, -1));
+        assertEquals(2, map.get(26, -1));
+        assertEquals(-1, map.get(42, -1));
+        assertTrue(map.containsKey(26));
+        assertFalse(map.containsKey(42));
+    }
+
+    @Test
+    public void verifySymbolTable() {
+        SymbolTable symbols = new SymbolTable();
+        assertEquals(SymbolTable.NO_SYMBOL, symbols.lookup("NSR:Quay:1"));
+        assertEquals(SymbolTable.NO_SYMBOL, symbols.lookup(null));
+        int quay = symbols.intern("NSR:Quay:1");
+        assertEquals(quay, symbols.intern(new String("NSR:Quay:1")));
+        assertEquals(quay, symbols.lookup("NSR:Quay:1"));
+        assertEquals("NSR:Quay:1", symbols.name(quay));
+        for (int i = 0; i < 5_000; i++) {
+            assertEquals(symbols.intern("NSR:StopPlace:" + i), symbols.lookup("NSR:StopPlace:" + i));
+        }
+        assertEquals(5_001, symbols.size());
+        assertEquals("NSR:StopPlace:4999", symbols.name(symbols.lookup("NSR:StopPlace:4999")));
+        assertNull(symbols.name(SymbolTable.NO_SYMBOL));
+    }
+}
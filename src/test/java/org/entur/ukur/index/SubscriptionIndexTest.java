@@ -0,0 +1,265 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.index;
+
+import org.entur.ukur.subscription.DeviationType;
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionTypeEnum;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.entur.ukur.subscription.SubscriptionTypeEnum.ALL;
+import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
+import static org.entur.ukur.subscription.SubscriptionTypeEnum.SX;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionIndexTest {
+
+    private int subscriptionCounter = 0;
+
+    @Test
+    public void stopsAndTypes() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription all = createStopSubscription("NSR:StopPlace:1", "NSR:StopPlace:2", ALL);
+        Subscription et = createStopSubscription("NSR:StopPlace:1", "NSR:Quay:3", ET);
+        Subscription sx = createStopSubscription("NSR:Quay:3", "NSR:StopPlace:1", SX);
+        index.addOrUpdate(all);
+        index.addOrUpdate(et);
+        index.addOrUpdate(sx);
+        assertEquals(3, index.size());
+
+        assertEquals(Set.of(all, et), index.getSubscriptionsForStopPoint("NSR:StopPlace:1", ET));
+        assertEquals(Set.of(all, sx), index.getSubscriptionsForStopPoint("NSR:StopPlace:1", SX));
+        assertEquals(Set.of(all), index.getSubscriptionsForStopPoint("NSR:StopPlace:1", ALL));
+        assertEquals(Set.of(et), index.getSubscriptionsForStopPoint("NSR:Quay:3", ET));
+        assertTrue(index.getSubscriptionsForStopPoint("NSR:StopPlace:99", ET).isEmpty());
+        assertTrue(index.getSubscriptionsForLineRefAndNoStops("NSR:StopPlace:1", ALL).isEmpty());
+    }
+
+    @Test
+    public void updateAndRemove() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription subscription = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        index.addOrUpdate(subscription);
+        assertEquals(1, index.getSubscriptionsForStopPoint("NSR:Quay:1", ET).size());
+
+        //updates the indexed instance itself, as the subscription manager does
+        subscription.removeFromStopPoint("NSR:Quay:1");
+        subscription.addFromStopPoint("NSR:Quay:11");
+        index.addOrUpdate(subscription);
+        assertEquals(1, index.size());
+        assertTrue(index.getSubscriptionsForStopPoint("NSR:Quay:1", ET).isEmpty());
+        assertEquals(Set.of(subscription), index.getSubscriptionsForStopPoint("NSR:Quay:11", ET));
+        assertEquals(Set.of(subscription), index.getSubscriptionsForStopPoint("NSR:Quay:2", ET));
+
+        subscription.setType(SX);
+        index.addOrUpdate(subscription);
+        assertTrue(index.getSubscriptionsForStopPoint("NSR:Quay:2", ET).isEmpty());
+        assertEquals(Set.of(subscription), index.getSubscriptionsForStopPoint("NSR:Quay:2", SX));
+
+        Subscription lineOnly = new Subscription();
+        lineOnly.setId(subscription.getId());
+        lineOnly.addLineRef("NSB:Line:1");
+        index.addOrUpdate(lineOnly);
+        assertTrue(index.getSubscriptionsForStopPoint("NSR:Quay:2", SX).isEmpty());
+        assertEquals(Set.of(lineOnly), index.getSubscriptionsForLineRefAndNoStops("NSB:Line:1", ET));
+        assertSame(lineOnly, index.get(subscription.getId()));
+
+        index.remove(subscription.getId());
+        assertEquals(0, index.size());
+        assertNull(index.get(subscription.getId()));
+        assertTrue(index.getSubscriptionsForLineRefAndNoStops("NSB:Line:1", ET).isEmpty());
+        assertTrue(index.getSubscriptions().isEmpty());
+    }
+
+    @Test
+    public void reportsWhatAnUpdateChanged() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription subscription = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        assertEquals(SubscriptionIndex.Change.KEYS, index.addOrUpdate(subscription));
+        assertEquals(SubscriptionIndex.Change.ROWS, index.addOrUpdate(subscription));
+
+        subscription.setMinimumDelay(Duration.ofMinutes(5));
+        assertEquals(SubscriptionIndex.Change.ROWS, index.addOrUpdate(subscription));
+
+        Subscription newInstance = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        newInstance.setId(subscription.getId());
+        newInstance.setMinimumDelay(Duration.ofMinutes(5));
+        newInstance.setPushAddress("http://other");
+        assertEquals(SubscriptionIndex.Change.ROWS, index.addOrUpdate(newInstance));
+        assertSame(newInstance, index.get(subscription.getId()));
+
+        newInstance.addToStopPoint("NSR:Quay:3");
+        assertEquals(SubscriptionIndex.Change.KEYS, index.addOrUpdate(newInstance));
+    }
+
+    @Test
+    public void lineRefOrCodespace() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription line = createLineSubscription("NSB:Line:1", null);
+        Subscription lineAndCodespace = createLineSubscription("NSB:Line:1", "BNR");
+        Subscription lineAndOtherCodespace = createLineSubscription("NSB:Line:1", "XXX");
+        Subscription codespace = createLineSubscription(null, "BNR");
+        Subscription otherLineAndCodespace = createLineSubscription("NSB:Line:2", "BNR");
+        Subscription withStops = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ALL);
+        withStops.addLineRef("NSB:Line:1");
+        withStops.addCodespace("BNR");
+        for (Subscription s : new Subscription[]{line, lineAndCodespace, lineAndOtherCodespace, codespace, otherLineAndCodespace, withStops}) {
+            index.addOrUpdate(s);
+        }
+
+        Set<Subscription> found = index.getSubscriptionsForLineRefOrCodespaceAndNoStops("NSB:Line:1", "BNR", ET);
+        assertEquals(3, found.size());
+        assertThat(found, hasItems(line, lineAndCodespace, codespace));
+
+        //blank values does not restrict
+        assertEquals(Set.of(line, lineAndCodespace, lineAndOtherCodespace), index.getSubscriptionsForLineRefOrCodespaceAndNoStops("NSB:Line:1", null, ET));
+        assertEquals(Set.of(lineAndCodespace, codespace, otherLineAndCodespace), index.getSubscriptionsForLineRefOrCodespaceAndNoStops("", "BNR", ET));
+        assertEquals(Set.of(lineAndCodespace, codespace, otherLineAndCodespace), index.getSubscriptionsForCodespaceAndNoStops("BNR", SX));
+    }
+
+    @Test
+    public void narrowCandidates() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription plain = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        Subscription otherLine = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        otherLine.addLineRef("NSB:Line:2");
+        Subscription sameLineAndCodespace = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ALL);
+        sameLineAndCodespace.addLineRef("NSB:Line:1");
+        sameLineAndCodespace.addCodespace("BNR");
+        Subscription delayedMoreThan10Minutes = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        delayedMoreThan10Minutes.setDeviationType(DeviationType.DELAYED);
+        delayedMoreThan10Minutes.setMinimumDelay(Duration.ofMinutes(10));
+        Subscription pushAllData = createStopSubscription("NSR:Quay:1", "NSR:Quay:3", ET);
+        pushAllData.setPushAllData(true);
+        Subscription sx = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", SX);
+        for (Subscription s : new Subscription[]{plain, otherLine, sameLineAndCodespace, delayedMoreThan10Minutes, pushAllData, sx}) {
+            index.addOrUpdate(s);
+        }
+        StopSequence stops = new StopSequence(3);
+        stops.add("NSR:Quay:1", 1000, true, true);
+        stops.add("NSR:Quay:2", 2000, true, true);
+        stops.add("NSR:Quay:3", 3000, true, true);
+
+        SubscriptionCandidates candidates = index.getCandidatesForStopsInOrder(stops, ET).onLineRefAndCodespace("NSB:Line:1", "BNR");
+        assertEquals(Set.of(plain, sameLineAndCodespace, delayedMoreThan10Minutes, pushAllData), candidates.getSubscriptions());
+        assertEquals(Set.of(pushAllData), candidates.withPushAllData().getSubscriptions());
+
+        DeviationFilter cancelled = DeviationFilter.of(Set.of(DeviationType.CANCELED), false, false, null);
+        assertEquals(Set.of(plain, sameLineAndCodespace), candidates.getSubscriptionsOnStop("NSR:Quay:2", null, cancelled));
+        DeviationFilter delayed5Minutes = DeviationFilter.of(Set.of(DeviationType.DELAYED), false, true, Duration.ofMinutes(5));
+        assertEquals(Set.of(plain, sameLineAndCodespace), candidates.getSubscriptionsOnStop("NSR:Quay:2", null, delayed5Minutes));
+        DeviationFilter delayed15Minutes = DeviationFilter.of(Set.of(DeviationType.DELAYED), false, true, Duration.ofMinutes(15));
+        assertEquals(Set.of(plain, sameLineAndCodespace, delayedMoreThan10Minutes), candidates.getSubscriptionsOnStop("NSR:Quay:2", null, delayed15Minutes));
+        //found on the stop place the quay belongs to as well
+        assertEquals(Set.of(pushAllData), candidates.getSubscriptionsOnStop("NSR:Quay:33", "NSR:Quay:3", DeviationFilter.NO_DEVIATIONS));
+        assertTrue(candidates.getSubscriptionsOnStop("NSR:Quay:99", null, DeviationFilter.NO_DEVIATIONS).isEmpty());
+    }
+
+    @Test
+    public void pushAllDataPostingsFollowUpdates() {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription subscription = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        index.addOrUpdate(subscription);
+        StopSequence stops = new StopSequence(2);
+        stops.add("NSR:Quay:1", 1000, true, true);
+        stops.add("NSR:Quay:2", 2000, true, true);
+        assertTrue(index.getCandidatesForStopsInOrder(stops, ET).withPushAllData().isEmpty());
+
+        subscription.setPushAllData(true);
+        assertEquals(SubscriptionIndex.Change.KEYS, index.addOrUpdate(subscription), "pushAllData is part of what the subscription is indexed on");
+        assertEquals(Set.of(subscription), index.getCandidatesForStopsInOrder(stops, ET).withPushAllData().getSubscriptions());
+        assertTrue(index.getCandidatesForStopsInOrder(stops, SX).withPushAllData().isEmpty());
+
+        subscription.setPushAllData(false);
+        assertEquals(SubscriptionIndex.Change.KEYS, index.addOrUpdate(subscription));
+        assertTrue(index.getCandidatesForStopsInOrder(stops, ET).withPushAllData().isEmpty());
+        assertEquals(Set.of(subscription), index.getCandidatesForStopsInOrder(stops, ET).getSubscriptions());
+    }
+
+    @Test
+    public void lookupsDuringUpdatesFindSubscriptionsThatKeepTheirStops() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex(new SymbolTable());
+        Subscription stable = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        Subscription updated = createStopSubscription("NSR:Quay:1", "NSR:Quay:2", ET);
+        index.addOrUpdate(stable);
+        index.addOrUpdate(updated);
+        StopSequence stops = new StopSequence(2);
+        stops.add("NSR:Quay:1", 1000, true, true);
+        stops.add("NSR:Quay:2", 2000, true, true);
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Future<?>[] results = new Future<?>[2];
+            for (int r = 0; r < results.length; r++) {
+                results[r] = readers.submit(() -> {
+                    while (running.get()) {
+                        assertEquals(Set.of(stable, updated), index.getCandidatesForStopsInOrder(stops, ET).getSubscriptions());
+                    }
+                    return null;
+                });
+            }
+            //other attributes give the subscription a new ordinal each time, and other subscriptions come and go
+            for (int i = 0; i < 20_000; i++) {
+                updated.setMinimumDelay(Duration.ofSeconds(i % 2));
+                index.addOrUpdate(updated);
+                Subscription other = createStopSubscription("NSR:Quay:3", "NSR:Quay:4", ET);
+                index.addOrUpdate(other);
+                index.remove(other.getId());
+            }
+            running.set(false);
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+            readers.shutdownNow();
+        }
+        assertEquals(2, index.size());
+        assertEquals(Set.of(stable, updated), Set.copyOf(index.getSubscriptions()));
+    }
+
+    private Subscription createStopSubscription(String from, String to, SubscriptionTypeEnum type) {
+        Subscription subscription = new Subscription();
+        subscription.setId(Integer.toString(subscriptionCounter++));
+        subscription.addFromStopPoint(from);
+        subscription.addToStopPoint(to);
+        subscription.setType(type);
+        return subscription;
+    }
+
+    private Subscription createLineSubscription(String line, String codespace) {
+        Subscription subscription = new Subscription();
+        subscription.setId(Integer.toString(subscriptionCounter++));
+        if (line != null) {
+            subscription.addLineRef(line);
+        }
+        if (codespace != null) {
+            subscription.addCodespace(codespace);
+        }
+        return subscription;
+    }
+}
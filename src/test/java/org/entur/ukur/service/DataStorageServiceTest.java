@@ -18,6 +18,10 @@ package org.entur.ukur.service;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.topic.ITopic;
 import com.hazelcast.test.TestHazelcastInstanceFactory;
+import org.entur.ukur.index.DeviationFilter;
+import org.entur.ukur.index.StopSequence;
+import org.entur.ukur.index.SubscriptionCandidates;
+import org.entur.ukur.subscription.DeviationType;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionTypeEnum;
 import org.entur.ukur.testsupport.DatastoreTest;
@@ -27,6 +31,7 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
@@ -58,7 +63,7 @@ public class DataStorageServiceTest extends DatastoreTest {
     @Test
     public void testSubscriptionHandling() {
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
-        DataStorageService service = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService service = new DataStorageService(datastore, subscriptionTopic, new MetricsService());
         Subscription subscription = createSubscription("Test#1", ET, "ABC", "NSR:Quay:1", "NSR:Quay:2", "NSB:Line:Test1");
 
         //add new
@@ -181,7 +186,7 @@ public class DataStorageServiceTest extends DatastoreTest {
     @Test
     public void testLineOnlySubscription() {
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
-        DataStorageService service = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService service = new DataStorageService(datastore, subscriptionTopic, new MetricsService());
         Subscription subscription = new Subscription();
         subscription.setPushAddress("http://somehost/test");
         subscription.setName("Test#1");
@@ -208,11 +213,73 @@ public class DataStorageServiceTest extends DatastoreTest {
         assertEquals(1, existingLineRef);
     }
 
+    @Test
+    public void testCachedCandidatesForStopsInOrder() {
+        ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("candidates#" + System.currentTimeMillis());
+        MetricsService metricsService = new MetricsService();
+        DataStorageService service = new DataStorageService(datastore, subscriptionTopic, metricsService);
+        Subscription first = service.addSubscription(createSubscription("Test#1", ET, null, "NSR:Quay:1", "NSR:Quay:2", (String) null));
+        long invalidations = service.getCandidatesCacheInvalidations();
+
+        assertEquals(Set.of(first.getId()), candidateIds(service));
+        assertEquals(Set.of(first.getId()), candidateIds(service));
+        assertEquals(0.5, service.getCandidatesCacheHitRatio(), 0.001);
+        assertEquals(0.5, metricsService.getGauges().get(MetricsService.GAUGE_MATCH_CACHE_HIT_RATIO).getValue());
+
+        //a new subscription on the same stops must be found
+        Subscription second = service.addSubscription(createSubscription("Test#2", ET, null, "NSR:Quay:1", "NSR:Quay:2", (String) null));
+        assertEquals(invalidations + 1, service.getCandidatesCacheInvalidations());
+        assertEquals(Set.of(first.getId(), second.getId()), candidateIds(service));
+
+        service.removeSubscription(first.getId());
+        assertEquals(Set.of(second.getId()), candidateIds(service));
+        assertEquals(invalidations + 2, service.getCandidatesCacheInvalidations());
+        assertEquals(invalidations + 2, metricsService.getGauges().get(MetricsService.GAUGE_MATCH_CACHE_INVALIDATIONS).getValue());
+    }
+
+    @Test
+    public void testCachedCandidatesFollowUpdatesWithSameKeys() {
+        ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("candidates-updates#" + System.currentTimeMillis());
+        DataStorageService service = new DataStorageService(datastore, subscriptionTopic, new MetricsService());
+        Subscription subscription = service.addSubscription(createSubscription("Test#1", ET, null, "NSR:Quay:1", "NSR:Quay:2", (String) null));
+        DeviationFilter delayed5Minutes = DeviationFilter.of(Set.of(DeviationType.DELAYED), false, true, Duration.ofMinutes(5));
+        assertEquals(Set.of(subscription), candidates(service).getSubscriptionsOnStop("NSR:Quay:2", null, delayed5Minutes));
+        long keysVersion = service.getSubscriptionKeysVersion();
+        long invalidations = service.getCandidatesCacheInvalidations();
+
+        //same keys, but filtered out on the new minimum delay and pushed to the new address
+        Subscription updated = createSubscription("Test#1", ET, null, "NSR:Quay:1", "NSR:Quay:2", (String) null);
+        updated.setId(subscription.getId());
+        updated.setMinimumDelay(Duration.ofMinutes(10));
+        updated.setPushAddress("http://updated");
+        assertTrue(service.updateSubscription(updated));
+        assertEquals(keysVersion, service.getSubscriptionKeysVersion());
+        assertEquals(invalidations + 1, service.getCandidatesCacheInvalidations());
+        assertTrue(candidates(service).getSubscriptionsOnStop("NSR:Quay:2", null, delayed5Minutes).isEmpty());
+        DeviationFilter delayed15Minutes = DeviationFilter.of(Set.of(DeviationType.DELAYED), false, true, Duration.ofMinutes(15));
+        Set<Subscription> found = candidates(service).getSubscriptionsOnStop("NSR:Quay:2", null, delayed15Minutes);
+        assertEquals(1, found.size());
+        assertEquals("http://updated", found.iterator().next().getPushAddress());
+    }
+
+    private Set<String> candidateIds(DataStorageService service) {
+        return candidates(service).getSubscriptions().stream()
+                .map(Subscription::getId)
+                .collect(Collectors.toSet());
+    }
+
+    private SubscriptionCandidates candidates(DataStorageService service) {
+        StopSequence stops = new StopSequence(2);
+        stops.add("NSR:Quay:1", 1000, true, true);
+        stops.add("NSR:Quay:2", 2000, true, true);
+        return service.getCandidatesForStopsInOrder(stops, ET);
+    }
+
     @Test
     public void testSubscriptionSyncing() throws InterruptedException {
 
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subsync#" + System.currentTimeMillis());
-        DataStorageService service1 = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService service1 = new DataStorageService(datastore, subscriptionTopic, new MetricsService());
         service1.logger = LoggerFactory.getLogger(DataStorageService.class.getName()+"#1");
         service1.populateSubscriptionCacheFromDatastore(); //postconstruct...
         assertEquals(0, service1.getNumberOfSubscriptions());
@@ -229,7 +296,7 @@ public class DataStorageServiceTest extends DatastoreTest {
         assertEquals(3, service1.getNumberOfSubscriptions());
 
         logger.info("Creates second DataStorageService");
-        DataStorageService service2 = new DataStorageService(datastore, subscriptionTopic);
+        DataStorageService service2 = new DataStorageService(datastore, subscriptionTopic, new MetricsService());
         service2.logger = LoggerFactory.getLogger(DataStorageService.class.getName()+"#2");
         assertEquals(0, service2.getNumberOfSubscriptions());
         service2.populateSubscriptionCacheFromDatastore(); //postconstruct...
@@ -19,6 +19,7 @@ import org.entur.ukur.setup.UkurConfiguration;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.Mockito.mock;
 
@@ -41,4 +42,13 @@ public class ExtendedHazelcastServiceTest {
         assertNull(service.sharedProperties().get(ExtendedHazelcastService.NODENUMBER_PREFIX+"someothernode"));
     }
 
+    @Test
+    public void pushCircuitsAreNearCached() {
+        UkurConfiguration cfg = mock(UkurConfiguration.class);
+        ExtendedHazelcastService service = new ExtendedHazelcastService(new ExtendedKubernetesService(cfg), cfg);
+        service.init();
+
+        assertNotNull(service.getHazelcastInstance().getConfig().getMapConfig("ukur.pushCircuits").getNearCacheConfig());
+    }
+
 }
\ No newline at end of file
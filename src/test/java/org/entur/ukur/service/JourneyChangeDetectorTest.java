@@ -0,0 +1,156 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.ukur.service;
+
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.CallStatusEnumeration;
+import uk.org.siri.siri21.DatedVehicleJourneyRef;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.QuayRefStructure;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.StopAssignmentStructure;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.io.FileInputStream;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JourneyChangeDetectorTest {
+
+    private final ZonedDateTime departure = ZonedDateTime.now().plusHours(1);
+
+    @Test
+    public void detectsChangedCalls() {
+        MetricsService metricsService = new MetricsService();
+        DataStorageService dataStorageService = mock(DataStorageService.class);
+        JourneyChangeDetector detector = new JourneyChangeDetector(metricsService, dataStorageService,
+                mock(QuayAndStopPlaceMappingService.class), 1000, 1);
+
+        assertFalse(isUnchanged(detector, createJourney("1", 0)));
+        assertTrue(isUnchanged(detector, createJourney("1", 0)));
+        assertFalse(isUnchanged(detector, createJourney("2", 0)));
+        assertFalse(isUnchanged(detector, createJourney("1", 5)));
+        assertTrue(isUnchanged(detector, createJourney("1", 5)));
+
+        EstimatedVehicleJourney cancelled = createJourney("1", 5);
+        cancelled.getEstimatedCalls().getEstimatedCalls().get(1).setCancellation(true);
+        assertFalse(isUnchanged(detector, cancelled));
+
+        //new subscriptions, or subscriptions updated with another minimum delay or deviation type (that does not
+        //change their keys), may match an unchanged journey
+        when(dataStorageService.getSubscriptionKeysVersion()).thenReturn(1L);
+        assertTrue(isUnchanged(detector, cancelled));
+        when(dataStorageService.getSubscriptionsVersion()).thenReturn(1L);
+        assertFalse(isUnchanged(detector, cancelled));
+        assertTrue(isUnchanged(detector, cancelled));
+
+        //no ref to compare on
+        EstimatedVehicleJourney withoutRef = createJourney("1", 0);
+        withoutRef.setDatedVehicleJourneyRef(null);
+        assertFalse(isUnchanged(detector, withoutRef));
+        assertFalse(isUnchanged(detector, withoutRef));
+
+        assertEquals(4, metricsService.getMeter(MetricsService.METER_ET_DELTA_UNCHANGED).getCount());
+        assertEquals(5, metricsService.getMeter(MetricsService.METER_ET_DELTA_CHANGED).getCount());
+    }
+
+    @Test
+    public void unchangedWhenParsedAgain() throws Exception {
+        JourneyChangeDetector detector = new JourneyChangeDetector(new MetricsService(), mock(DataStorageService.class),
+                mock(QuayAndStopPlaceMappingService.class), 1000, 1);
+        //separately parsed copies share no objects, and has stop assignments
+        assertFalse(isUnchanged(detector, parseJourney("src/test/resources/ET_kol_osl.xml")));
+        assertTrue(isUnchanged(detector, parseJourney("src/test/resources/ET_kol_osl.xml")));
+    }
+
+    @Test
+    public void onlyProcessedVersionsAreRemembered() {
+        JourneyChangeDetector detector = new JourneyChangeDetector(new MetricsService(), mock(DataStorageService.class),
+                mock(QuayAndStopPlaceMappingService.class), 1000, 1);
+        JourneyChangeDetector.JourneyVersion failed = detector.getVersion(createJourney("1", 0));
+        assertFalse(detector.isUnchanged(failed));
+        //not registered as processed, so an identical resend must be processed
+        JourneyChangeDetector.JourneyVersion resent = detector.getVersion(createJourney("1", 0));
+        assertFalse(detector.isUnchanged(resent));
+        detector.processed(resent);
+        assertTrue(detector.isUnchanged(detector.getVersion(createJourney("1", 0))));
+    }
+
+    @Test
+    public void boundedByNumberOfCalls() {
+        MetricsService metricsService = new MetricsService();
+        JourneyChangeDetector detector = new JourneyChangeDetector(metricsService, mock(DataStorageService.class),
+                mock(QuayAndStopPlaceMappingService.class), 30, 1);
+        for (int i = 0; i < 20; i++) {
+            isUnchanged(detector, createJourney(Integer.toString(i), 0));
+        }
+        assertTrue(metricsService.getMeter(MetricsService.METER_ET_DELTA_EVICTED).getCount() > 0);
+        assertTrue((Long) metricsService.getGauges().get(MetricsService.GAUGE_ET_DELTA_JOURNEYS).getValue() <= 10);
+    }
+
+    /**
+     * Checks the journey and registers it as processed, as the ET processor does when processing succeeds.
+     */
+    private boolean isUnchanged(JourneyChangeDetector detector, EstimatedVehicleJourney journey) {
+        JourneyChangeDetector.JourneyVersion version = detector.getVersion(journey);
+        if (version == null) {
+            return false;
+        }
+        boolean unchanged = detector.isUnchanged(version);
+        detector.processed(version);
+        return unchanged;
+    }
+
+    private EstimatedVehicleJourney parseJourney(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            Siri siri = SiriXml.parseXml(xml);
+            return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+        }
+    }
+
+    private EstimatedVehicleJourney createJourney(String ref, int delayMinutes) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setDataSource("BNR");
+        DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+        datedVehicleJourneyRef.setValue(ref);
+        journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < 2; i++) {
+            EstimatedCall call = new EstimatedCall();
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:Quay:" + i);
+            call.setStopPointRef(stopPointRef);
+            call.setAimedDepartureTime(departure.plusMinutes(10L * i));
+            call.setExpectedDepartureTime(departure.plusMinutes(10L * i + delayMinutes));
+            call.setDepartureStatus(delayMinutes > 0 ? CallStatusEnumeration.DELAYED : CallStatusEnumeration.ON_TIME);
+            StopAssignmentStructure stopAssignment = new StopAssignmentStructure();
+            QuayRefStructure quayRef = new QuayRefStructure();
+            quayRef.setValue("NSR:Quay:" + i);
+            stopAssignment.setExpectedQuayRef(quayRef);
+            call.getDepartureStopAssignments().add(stopAssignment);
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        return journey;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+
+import static org.entur.ukur.subscription.ConflatingPushQueue.Offer.CONFLATED;
+import static org.entur.ukur.subscription.ConflatingPushQueue.Offer.DROPPED;
+import static org.entur.ukur.subscription.ConflatingPushQueue.Offer.QUEUED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ConflatingPushQueueTest {
+
+    @Test
+    public void latestBodyWins() {
+        ConflatingPushQueue queue = new ConflatingPushQueue(10, 1000);
+        MessageIdentifierKey key = new MessageIdentifierKey("1", "NSB:ServiceJourney:1");
+        byte[] first = new byte[100];
+        byte[] second = new byte[150];
+        assertEquals(QUEUED, queue.offer(key, "http://localhost/et", first));
+        assertEquals(CONFLATED, queue.offer(key, "http://localhost/et", second));
+        assertEquals(QUEUED, queue.offer(new MessageIdentifierKey("2", "NSB:ServiceJourney:1"), "http://localhost/et", first));
+        assertEquals(2, queue.size());
+        assertEquals(250, queue.getBytes());
+
+        assertSame(second, queue.take(key));
+        assertNull(queue.take(key));
+        assertEquals(1, queue.size());
+        assertEquals(100, queue.getBytes());
+        assertEquals(QUEUED, queue.offer(key, "http://localhost/et", first));
+    }
+
+    @Test
+    public void dropsNewKeysWhenFull() {
+        ConflatingPushQueue queue = new ConflatingPushQueue(2, 250);
+        MessageIdentifierKey first = new MessageIdentifierKey("1", "a");
+        assertEquals(QUEUED, queue.offer(first, "http://localhost/et", new byte[100]));
+        assertEquals(DROPPED, queue.offer(new MessageIdentifierKey("1", "b"), "http://localhost/et", new byte[200]));
+        assertEquals(QUEUED, queue.offer(new MessageIdentifierKey("1", "b"), "http://localhost/et", new byte[100]));
+        assertEquals(DROPPED, queue.offer(new MessageIdentifierKey("1", "c"), "http://localhost/et", new byte[1]));
+        //a newer version of a waiting body is always taken:
+        assertEquals(CONFLATED, queue.offer(first, "http://localhost/et", new byte[200]));
+        assertEquals(300, queue.getBytes());
+        queue.take(first);
+        assertEquals(QUEUED, queue.offer(new MessageIdentifierKey("1", "c"), "http://localhost/et", new byte[1]));
+    }
+
+    @Test
+    public void nothingToTakeAfterDrain() {
+        ConflatingPushQueue queue = new ConflatingPushQueue(10, 1000);
+        MessageIdentifierKey key = new MessageIdentifierKey("1", "a");
+        byte[] body = new byte[100];
+        assertEquals(QUEUED, queue.offer(key, "http://localhost/et", body));
+        assertSame(body, queue.drain().get(key).body);
+        assertNull(queue.take(key));
+        assertEquals(0, queue.getBytes());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EstimatedVehicleJourneyProjectionTest {
+
+    @Test
+    public void sharesEverythingButTheCallLists() {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("NSB:Line:L1");
+        journey.setLineRef(lineRef);
+        journey.setDataSource("NSB");
+        journey.setIsCompleteStopSequence(true);
+        journey.setRecordedCalls(new EstimatedVehicleJourney.RecordedCalls());
+        RecordedCall recordedCall = new RecordedCall();
+        recordedCall.setStopPointRef(stopPointRef("NSR:Quay:1"));
+        journey.getRecordedCalls().getRecordedCalls().add(recordedCall);
+        journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+        EstimatedCall subscribed = new EstimatedCall();
+        subscribed.setStopPointRef(stopPointRef("NSR:Quay:2"));
+        EstimatedCall notSubscribed = new EstimatedCall();
+        notSubscribed.setStopPointRef(stopPointRef("NSR:Quay:3"));
+        journey.getEstimatedCalls().getEstimatedCalls().add(subscribed);
+        journey.getEstimatedCalls().getEstimatedCalls().add(notSubscribed);
+
+        EstimatedVehicleJourney projection = EstimatedVehicleJourneyProjection.onStops(journey, Set.of("NSR:Quay:2"));
+        assertSame(lineRef, projection.getLineRef());
+        assertEquals("NSB", projection.getDataSource());
+        assertFalse(projection.isIsCompleteStopSequence());
+        assertTrue(projection.getRecordedCalls().getRecordedCalls().isEmpty());
+        assertEquals(1, projection.getEstimatedCalls().getEstimatedCalls().size());
+        assertSame(subscribed, projection.getEstimatedCalls().getEstimatedCalls().get(0));
+
+        //the original is untouched
+        assertTrue(journey.isIsCompleteStopSequence());
+        assertEquals(1, journey.getRecordedCalls().getRecordedCalls().size());
+        assertEquals(2, journey.getEstimatedCalls().getEstimatedCalls().size());
+    }
+
+    /**
+     * Fails when a SIRI version adds a property the projection doesn't copy.
+     */
+    @Test
+    public void copiesEveryPropertyButTheCalls() throws Exception {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        List<Field> fields = new ArrayList<>();
+        for (Field field : EstimatedVehicleJourney.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                field.setAccessible(true);
+                field.set(journey, sample(field.getType()));
+                fields.add(field);
+            }
+        }
+
+        EstimatedVehicleJourney projection = EstimatedVehicleJourneyProjection.onCalls(journey, new BitSet());
+        for (Field field : fields) {
+            if (!Set.of("recordedCalls", "estimatedCalls", "isCompleteStopSequence").contains(field.getName())) {
+                assertEquals(field.get(journey), field.get(projection), field.getName());
+            }
+        }
+    }
+
+    private static Object sample(Class<?> type) throws ReflectiveOperationException {
+        if (type == Boolean.class) {
+            return Boolean.TRUE;
+        } else if (type == String.class) {
+            return "value";
+        } else if (type == ZonedDateTime.class) {
+            return ZonedDateTime.now();
+        } else if (type == BigInteger.class) {
+            return BigInteger.ONE;
+        } else if (type.isEnum()) {
+            return type.getEnumConstants()[0];
+        } else if (type == List.class) {
+            List<Object> list = new ArrayList<>();
+            list.add(new Object());
+            return list;
+        }
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    @Test
+    public void sameCallsOnDifferentStopsGivesSameProjection() {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+        for (String stop : new String[]{"NSR:Quay:1", "NSR:Quay:2", "NSR:Quay:3"}) {
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef(stop));
+            journey.getEstimatedCalls().getEstimatedCalls().add(call);
+        }
+        assertEquals(EstimatedVehicleJourneyProjection.subscribedCalls(journey, Set.of("NSR:Quay:1", "NSR:Quay:3")),
+                EstimatedVehicleJourneyProjection.subscribedCalls(journey, Set.of("NSR:Quay:1", "NSR:Quay:3", "NSR:Quay:99")));
+        assertNotEquals(EstimatedVehicleJourneyProjection.subscribedCalls(journey, Set.of("NSR:Quay:1", "NSR:Quay:3")),
+                EstimatedVehicleJourneyProjection.subscribedCalls(journey, Set.of("NSR:Quay:1", "NSR:Quay:2")));
+    }
+
+    @Test
+    public void keepsMissingCallContainersMissing() {
+        EstimatedVehicleJourney projection = EstimatedVehicleJourneyProjection.onStops(new EstimatedVehicleJourney(), Set.of("NSR:Quay:1"));
+        assertNull(projection.getEstimatedCalls());
+        assertNull(projection.getRecordedCalls());
+    }
+
+    private StopPointRefStructure stopPointRef(String ref) {
+        StopPointRefStructure stopPointRef = new StopPointRefStructure();
+        stopPointRef.setValue(ref);
+        return stopPointRef;
+    }
+}
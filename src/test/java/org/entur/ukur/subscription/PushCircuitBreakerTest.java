@@ -0,0 +1,68 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.entur.ukur.subscription.PushCircuitBreaker.State.CLOSED;
+import static org.entur.ukur.subscription.PushCircuitBreaker.State.HALF_OPEN;
+import static org.entur.ukur.subscription.PushCircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PushCircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailuresAndProbesOnce() {
+        AtomicLong now = new AtomicLong(1_000);
+        ConcurrentHashMap<String, PushCircuit> circuits = new ConcurrentHashMap<>();
+        PushCircuitBreaker breaker = new PushCircuitBreaker(circuits, 3, Duration.ofSeconds(10), now::get);
+
+        assertFalse(breaker.onFailure("dead"));
+        breaker.onSuccess("dead");
+        assertFalse(breaker.onFailure("dead"));
+        assertFalse(breaker.onFailure("dead"));
+        assertEquals(CLOSED, breaker.getState("dead"));
+        assertTrue(breaker.onFailure("dead"));
+        assertEquals(OPEN, breaker.getState("dead"));
+        assertFalse(breaker.allow("dead"));
+        assertTrue(breaker.allow("alive"));
+        assertEquals(1, breaker.getOpen());
+
+        now.addAndGet(10_000);
+        assertEquals(HALF_OPEN, breaker.getState("dead"));
+        //another node sharing the circuits gets no probe of its own:
+        PushCircuitBreaker otherNode = new PushCircuitBreaker(circuits, 3, Duration.ofSeconds(10), now::get);
+        assertTrue(breaker.allow("dead"));
+        assertFalse(otherNode.allow("dead"));
+        assertFalse(breaker.allow("dead"));
+
+        //failed probe keeps it open for another period:
+        assertFalse(breaker.onFailure("dead"));
+        assertEquals(OPEN, breaker.getState("dead"));
+        now.addAndGet(10_000);
+        assertTrue(otherNode.allow("dead"));
+        otherNode.onSuccess("dead");
+        assertEquals(CLOSED, breaker.getState("dead"));
+        assertTrue(breaker.allow("dead"));
+        assertEquals(0, breaker.getOpen());
+    }
+}
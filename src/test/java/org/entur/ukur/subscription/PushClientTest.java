@@ -0,0 +1,45 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PushClientTest {
+
+    @Test
+    public void parsesEachPushAddressOnce() {
+        PushClient client = new PushClient(true, Duration.ofSeconds(1), Duration.ofSeconds(1));
+        assertEquals(HttpClient.Version.HTTP_2, client.getVersion());
+        assertSame(client.uri("http://localhost:8080/push/et"), client.uri("http://localhost:8080/push/et"));
+        assertNotSame(client.uri("http://localhost:8080/push/et"), client.uri("http://localhost:8080/push/sx"));
+        IllegalArgumentException invalid = assertThrows(IllegalArgumentException.class, () -> client.uri("not a uri"));
+        assertTrue(invalid.getMessage().contains("not a uri"));
+    }
+
+    @Test
+    public void canBePinnedToHttp1() {
+        assertEquals(HttpClient.Version.HTTP_1_1, new PushClient(false, Duration.ofSeconds(1), Duration.ofSeconds(1)).getVersion());
+    }
+}
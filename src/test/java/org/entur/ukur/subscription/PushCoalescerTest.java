@@ -0,0 +1,134 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import uk.org.siri.siri21.DatedVehicleJourneyRef;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PushCoalescerTest {
+
+    @Test
+    public void flushesWhenFullOrTimedOut() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        List<List<PushPayload>> flushed = new ArrayList<>();
+        PushCoalescer coalescer = new PushCoalescer(scheduler, (subscription, payloads) -> flushed.add(payloads));
+        Subscription subscription = subscription(Duration.ofSeconds(2), 3);
+
+        PushPayload first = journey("1");
+        PushPayload second = journey("2");
+        PushPayload secondUpdated = journey("2");
+        PushPayload third = journey("3");
+        coalescer.add(subscription, first);
+        coalescer.add(subscription, second);
+        coalescer.add(subscription, secondUpdated);
+        assertTrue(flushed.isEmpty());
+        coalescer.add(subscription, third);
+        assertEquals(1, flushed.size());
+        assertEquals(asList(first, secondUpdated, third), flushed.get(0));
+        assertEquals(0, coalescer.getWaiting());
+
+        //the first window was flushed on size, so its timeout does nothing:
+        PushPayload fourth = journey("4");
+        coalescer.add(subscription, fourth);
+        ArgumentCaptor<Runnable> timeouts = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(2)).schedule(timeouts.capture(), eq(2000L), eq(TimeUnit.MILLISECONDS));
+        timeouts.getAllValues().get(0).run();
+        assertEquals(1, flushed.size());
+        timeouts.getAllValues().get(1).run();
+        assertEquals(2, flushed.size());
+        assertEquals(asList(fourth), flushed.get(1));
+        timeouts.getAllValues().get(1).run();
+        assertEquals(2, flushed.size());
+    }
+
+    @Test
+    public void drainedWindowsAreNotFlushed() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        List<List<PushPayload>> flushed = new ArrayList<>();
+        PushCoalescer coalescer = new PushCoalescer(scheduler, (subscription, payloads) -> flushed.add(payloads));
+        Subscription subscription = subscription(Duration.ofSeconds(2), 3);
+        PushPayload first = journey("1");
+        PushPayload second = journey("2");
+        coalescer.add(subscription, first);
+        coalescer.add(subscription, second);
+
+        Map<Subscription, List<PushPayload>> drained = coalescer.drain();
+        assertEquals(asList(first, second), drained.get(subscription));
+        assertEquals(0, coalescer.getWaiting());
+        ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(timeout.capture(), eq(2000L), eq(TimeUnit.MILLISECONDS));
+        timeout.getValue().run();
+        assertTrue(flushed.isEmpty());
+    }
+
+    @Test
+    public void onlySiriModelSubscriptionsWithADelayCoalesce() {
+        assertTrue(PushCoalescer.isCoalescing(subscription(Duration.ofMillis(500), null)));
+        assertFalse(PushCoalescer.isCoalescing(subscription(Duration.ZERO, null)));
+        assertFalse(PushCoalescer.isCoalescing(subscription(null, 10)));
+        Subscription restSubscription = subscription(Duration.ofMillis(500), null);
+        restSubscription.setUseSiriSubscriptionModel(false);
+        assertFalse(PushCoalescer.isCoalescing(restSubscription));
+
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        List<List<PushPayload>> flushed = new ArrayList<>();
+        PushCoalescer coalescer = new PushCoalescer(scheduler, (subscription, payloads) -> flushed.add(payloads));
+        Subscription defaultSize = subscription(Duration.ofMillis(500), null);
+        for (int i = 0; i < PushCoalescer.DEFAULT_MAX_SIZE; i++) {
+            coalescer.add(defaultSize, journey(Integer.toString(i)));
+        }
+        assertEquals(1, flushed.size());
+        assertEquals(PushCoalescer.DEFAULT_MAX_SIZE, flushed.get(0).size());
+        verify(scheduler).schedule(any(Runnable.class), eq(500L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    private static Subscription subscription(Duration maxDelay, Integer maxSize) {
+        Subscription subscription = new Subscription();
+        subscription.setId("1");
+        subscription.setUseSiriSubscriptionModel(true);
+        subscription.setCoalesceMaxDelay(maxDelay);
+        subscription.setCoalesceMaxSize(maxSize);
+        return subscription;
+    }
+
+    private static PushPayload journey(String id) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+        datedVehicleJourneyRef.setValue("NSB:ServiceJourney:" + id);
+        journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        return new PushPayload(journey, ZonedDateTime.now(), null);
+    }
+}
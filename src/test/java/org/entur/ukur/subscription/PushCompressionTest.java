@@ -0,0 +1,55 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PushCompressionTest {
+
+    @Test
+    public void gzipsWithReusedDeflaters() throws IOException {
+        StringBuilder xml = new StringBuilder("<Siri>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<EstimatedCall><StopPointRef>NSR:Quay:").append(i).append("</StopPointRef></EstimatedCall>");
+        }
+        xml.append("</Siri>");
+        byte[] data = xml.toString().getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 3; i++) {
+            byte[] gzipped = PushCompression.gzip(data);
+            assertTrue(gzipped.length < data.length / 5);
+            assertTrue(PushCompression.isGzipped(gzipped));
+            assertEquals(data.length, PushCompression.uncompressedSize(gzipped));
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        }
+        assertFalse(PushCompression.isGzipped(data));
+        byte[] empty = PushCompression.gzip(new byte[0]);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(empty))) {
+            assertEquals(0, in.readAllBytes().length);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PushLimiterTest {
+
+    @Test
+    public void limitsPerHostAndInTotal() {
+        List<String> started = new ArrayList<>();
+        PushLimiter limiter = new PushLimiter(3, 2, Runnable::run);
+        limiter.submit("a", () -> started.add("a1"));
+        limiter.submit("a", () -> started.add("a2"));
+        limiter.submit("a", () -> started.add("a3"));
+        limiter.submit("b", () -> started.add("b1"));
+        limiter.submit("c", () -> started.add("c1"));
+        assertEquals(asList("a1", "a2", "b1"), started);
+        assertEquals(3, limiter.getInFlight());
+        assertEquals(2, limiter.getWaiting());
+        assertEquals(3, limiter.getActive("a"));
+        assertEquals(0, limiter.getActive("d"));
+
+        //a is still at its limit, so c gets the free slot
+        limiter.release("b");
+        assertEquals(asList("a1", "a2", "b1", "c1"), started);
+        limiter.release("a");
+        assertEquals(asList("a1", "a2", "b1", "c1", "a3"), started);
+        assertEquals(0, limiter.getWaiting());
+
+        limiter.release("a");
+        limiter.release("a");
+        limiter.release("c");
+        assertEquals(0, limiter.getInFlight());
+        assertThrows(IllegalStateException.class, () -> limiter.release("a"));
+    }
+
+    @Test
+    public void hostsTakeTurnsWhenTheTotalLimitIsReached() {
+        List<String> started = new ArrayList<>();
+        PushLimiter limiter = new PushLimiter(1, 10, Runnable::run);
+        limiter.submit("a", () -> started.add("a1"));
+        limiter.submit("a", () -> started.add("a2"));
+        limiter.submit("a", () -> started.add("a3"));
+        limiter.submit("b", () -> started.add("b1"));
+        limiter.release("a");
+        limiter.release("a");
+        limiter.release("b");
+        limiter.release("a");
+        assertEquals(asList("a1", "a2", "b1", "a3"), started);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PushOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void retriesLatestVersionWithBackoff() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 4096, 1_000_000, now::get);
+        assertTrue(outbox.add("1", "http://localhost/push", "NSB:ServiceJourney:1", body("v1")));
+        assertTrue(outbox.add("1", "http://localhost/push", "NSB:ServiceJourney:1", body("v2")));
+        assertTrue(outbox.add("2", "http://localhost/push", "NSB:ServiceJourney:1", body("other")));
+        assertEquals(2, outbox.size());
+        assertTrue(outbox.pollDue(10).isEmpty());
+
+        now.addAndGet(PushOutbox.FIRST_RETRY_MILLIS);
+        List<PushOutbox.Entry> due = outbox.pollDue(1);
+        assertEquals(1, due.size());
+        assertEquals(1, outbox.pollDue(10).size());
+        assertTrue(outbox.pollDue(10).isEmpty());
+        PushOutbox.Entry first = due.get(0);
+        assertEquals("1", first.getSubscriptionId());
+        assertEquals("http://localhost/push", first.getPushAddress());
+        assertArrayEquals(body("v2"), first.getBody());
+
+        assertTrue(outbox.retryLater(first));
+        now.addAndGet(PushOutbox.backoff(1) - 1);
+        assertTrue(outbox.pollDue(10).isEmpty());
+        now.incrementAndGet();
+        PushOutbox.Entry second = outbox.pollDue(10).get(0);
+        assertEquals(1, second.getAttempt());
+
+        //a newer version while retrying is kept:
+        outbox.add("1", "http://localhost/push", "NSB:ServiceJourney:1", body("v3"));
+        outbox.delivered(second);
+        assertEquals(2, outbox.size());
+        outbox.remove("1", "NSB:ServiceJourney:1");
+        assertEquals(1, outbox.size());
+        assertEquals(PushOutbox.MAX_RETRY_MILLIS, PushOutbox.backoff(20));
+    }
+
+    @Test
+    public void pollsInTheOrderDue() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 4096, 1_000_000, now::get);
+        outbox.add("1", "http://localhost/push", "a", body("a"));
+        now.addAndGet(10);
+        outbox.add("1", "http://localhost/push", "b", body("b"));
+        now.addAndGet(10);
+        outbox.add("1", "http://localhost/push", "c", body("c"));
+
+        now.addAndGet(PushOutbox.FIRST_RETRY_MILLIS);
+        PushOutbox.Entry a = outbox.pollDue(1).get(0);
+        assertEquals("a", a.getMessageIdentifier());
+        assertTrue(outbox.retryLater(a));
+        //b was due before a's next attempt, and a newer version of c is due later:
+        outbox.add("1", "http://localhost/push", "c", body("c2"));
+        List<PushOutbox.Entry> due = outbox.pollDue(10);
+        assertEquals(1, due.size());
+        assertEquals("b", due.get(0).getMessageIdentifier());
+
+        now.addAndGet(PushOutbox.backoff(1));
+        due = outbox.pollDue(10);
+        assertEquals(2, due.size());
+        assertEquals("c", due.get(0).getMessageIdentifier());
+        assertArrayEquals(body("c2"), due.get(0).getBody());
+        assertEquals("a", due.get(1).getMessageIdentifier());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 4096, 1_000_000, now::get);
+        outbox.add("1", "http://localhost/push", "a", body("a"));
+        for (int i = 1; i < PushOutbox.MAX_ATTEMPTS; i++) {
+            now.addAndGet(PushOutbox.MAX_RETRY_MILLIS);
+            assertTrue(outbox.retryLater(outbox.pollDue(1).get(0)));
+        }
+        now.addAndGet(PushOutbox.MAX_RETRY_MILLIS);
+        assertFalse(outbox.retryLater(outbox.pollDue(1).get(0)));
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void recoversAfterRestart() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 256, 1_000_000, now::get);
+        for (int i = 0; i < 10; i++) {
+            outbox.add("1", "http://localhost/push", "journey" + i, body("body" + i));
+        }
+        outbox.add("1", "http://localhost/push", "journey3", body("newer"));
+        outbox.remove("1", "journey5");
+        outbox.close();
+
+        PushOutbox recovered = new PushOutbox(directory, 256, 1_000_000, now::get);
+        assertEquals(9, recovered.size());
+        now.addAndGet(PushOutbox.FIRST_RETRY_MILLIS);
+        List<PushOutbox.Entry> due = recovered.pollDue(100);
+        assertEquals(9, due.size());
+        for (PushOutbox.Entry entry : due) {
+            String expected = "journey3".equals(entry.getMessageIdentifier()) ? "newer" : "body" + entry.getMessageIdentifier().substring(7);
+            assertArrayEquals(body(expected), entry.getBody());
+        }
+        //appends after the recovered records:
+        recovered.add("2", "http://localhost/push", "journey0", body("appended"));
+        assertEquals(10, new PushOutbox(directory, 256, 1_000_000, now::get).size());
+    }
+
+    @Test
+    public void compactsFromTheOldestSegment() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 256, 1_000_000, now::get);
+        for (int i = 0; i < 20; i++) {
+            outbox.add("1", "http://localhost/push", "journey" + (i % 2 == 0 ? "0" : i), body("body" + i));
+        }
+        long segments = segments();
+        assertTrue(segments > 2);
+        for (int i = 1; i < 20; i += 2) {
+            outbox.remove("1", "journey" + i);
+        }
+        outbox.compact();
+        assertTrue(segments() < segments);
+        assertEquals(1, outbox.size());
+
+        PushOutbox recovered = new PushOutbox(directory, 256, 1_000_000, now::get);
+        assertEquals(1, recovered.size());
+        now.addAndGet(PushOutbox.FIRST_RETRY_MILLIS);
+        assertArrayEquals(body("body18"), recovered.pollDue(10).get(0).getBody());
+    }
+
+    @Test
+    public void refusesWhenFull() throws Exception {
+        PushOutbox outbox = new PushOutbox(directory, 256, 512, now::get);
+        int added = 0;
+        while (outbox.add("1", "http://localhost/push", "journey" + added, body("body" + added))) {
+            added++;
+        }
+        assertTrue(added > 0);
+        assertEquals(512, outbox.getBytes());
+        assertEquals(added, outbox.size());
+    }
+
+    private long segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] body(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
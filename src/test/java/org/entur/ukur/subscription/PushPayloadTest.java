@@ -0,0 +1,97 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.entur.ukur.xml.SiriMarshaller;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.DatedVehicleJourneyRef;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+
+import java.time.ZonedDateTime;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PushPayloadTest {
+
+    @Test
+    public void marshallsOncePerVariant() throws Exception {
+        SiriMarshaller marshallerMock = mock(SiriMarshaller.class);
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+        datedVehicleJourneyRef.setValue("NSB:ServiceJourney:1");
+        journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        when(marshallerMock.marshall(same(journey))).thenReturn("<EstimatedVehicleJourney/>");
+        when(marshallerMock.marshall(any(Siri.class))).thenReturn("<Siri/>");
+        PushPayload payload = new PushPayload(journey, ZonedDateTime.now(), marshallerMock);
+
+        byte[] plain = payload.getBody(false);
+        assertSame(plain, payload.getBody(false));
+        assertEquals("<EstimatedVehicleJourney/>", new String(plain));
+        assertEquals("<Siri/>", new String(payload.getBody(true)));
+        payload.getBody(true);
+        verify(marshallerMock, times(1)).marshall(same(journey));
+        verify(marshallerMock, times(1)).marshall(any(Siri.class));
+
+        assertEquals(payload.getChecksum(false), payload.getChecksum(false));
+        assertNotEquals(payload.getChecksum(false), payload.getChecksum(true));
+        verify(marshallerMock, times(1)).marshall(same(journey));
+        //the checksum is of the body, so an equal journey that marshals the same has the same checksum:
+        EstimatedVehicleJourney equalJourney = new EstimatedVehicleJourney();
+        when(marshallerMock.marshall(same(equalJourney))).thenReturn("<EstimatedVehicleJourney/>");
+        assertEquals(payload.getChecksum(false), new PushPayload(equalJourney, ZonedDateTime.now(), marshallerMock).getChecksum(false));
+        assertEquals("NSB:ServiceJourney:1", payload.getMessageIdentifier());
+
+        byte[] gzipped = payload.getBody(true, true);
+        assertSame(gzipped, payload.getBody(true, true));
+        assertEquals("<Siri/>".length(), PushCompression.uncompressedSize(gzipped));
+        verify(marshallerMock, times(1)).marshall(any(Siri.class));
+    }
+
+    @Test
+    public void coalescesIntoOneDeliveryPerKind() {
+        EstimatedVehicleJourney first = new EstimatedVehicleJourney();
+        first.setDataSource("NSB");
+        EstimatedVehicleJourney second = new EstimatedVehicleJourney();
+        PtSituationElement situation = new PtSituationElement();
+        RequestorRef participantRef = new RequestorRef();
+        participantRef.setValue("RUT");
+        situation.setParticipantRef(participantRef);
+        ZonedDateTime timestamp = ZonedDateTime.now();
+
+        Siri siri = PushPayload.createSiri(asList(first, situation, second), timestamp);
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        assertEquals(timestamp, serviceDelivery.getResponseTimestamp());
+        assertEquals("NSB", serviceDelivery.getProducerRef().getValue());
+        assertEquals(1, serviceDelivery.getEstimatedTimetableDeliveries().size());
+        assertEquals(1, serviceDelivery.getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().size());
+        assertEquals(asList(first, second), serviceDelivery.getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies());
+        assertEquals(1, serviceDelivery.getSituationExchangeDeliveries().size());
+        assertEquals(asList(situation), serviceDelivery.getSituationExchangeDeliveries().get(0).getSituations().getPtSituationElements());
+    }
+}
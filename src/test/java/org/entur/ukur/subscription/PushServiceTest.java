@@ -0,0 +1,256 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.xml.SiriMarshaller;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import uk.org.siri.siri21.DatedVehicleJourneyRef;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.Siri;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PushServiceTest {
+
+    @TempDir
+    Path directory;
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final StubPushClient pushClient = new StubPushClient();
+    private final List<HttpStatus> responses = new CopyOnWriteArrayList<>();
+    private DataStorageService dataStorageService;
+    private SiriMarshaller siriMarshaller;
+    private PushService pushService;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dataStorageService = mock(DataStorageService.class);
+        siriMarshaller = mock(SiriMarshaller.class);
+        when(siriMarshaller.marshall(any())).thenAnswer(invocation -> marshall(invocation.getArgument(0)));
+        pushService = new PushService(dataStorageService, siriMarshaller, new MetricsService(), new ConcurrentHashMap<>());
+        pushService.clock = now::get;
+        pushService.pushClient = pushClient;
+        pushService.setResponseHandler((responseStatus, subscription, pushAddress) -> responses.add(responseStatus));
+    }
+
+    @Test
+    public void successClearsTheOutboxAfterAQueuedPush() throws Exception {
+        pushService.configurePushOutbox(directory.toString(), DataSize.ofMegabytes(64));
+        Subscription subscription = subscription("1", false);
+
+        pushClient.statusCode = 500;
+        pushService.push(subscription, journey("1", "v1"));
+        awaitPushes();
+        assertEquals(1, pushService.pushOutbox.size());
+
+        pushClient.statusCode = 200;
+        pushService.push(subscription, journey("1", "v2"));
+        awaitPushes();
+        assertEquals(0, pushService.pushOutbox.size());
+        assertEquals(asList("<EstimatedVehicleJourney>1 v1</EstimatedVehicleJourney>",
+                "<EstimatedVehicleJourney>1 v2</EstimatedVehicleJourney>"), pushClient.posted);
+        assertEquals(asList(HttpStatus.INTERNAL_SERVER_ERROR, HttpStatus.OK), responses);
+        pushService.shutdown();
+    }
+
+    @Test
+    public void successClearsTheOutboxAfterACoalescedPush() throws Exception {
+        pushService.configurePushOutbox(directory.toString(), DataSize.ofMegabytes(64));
+        //a full window is pushed right away, so the coalescing delay never runs out:
+        Subscription subscription = subscription("1", true);
+        subscription.setCoalesceMaxDelay(Duration.ofMinutes(1));
+        subscription.setCoalesceMaxSize(2);
+
+        pushClient.statusCode = 500;
+        pushService.push(subscription, journey("1", "v1"));
+        pushService.push(subscription, journey("2", "v1"));
+        awaitPushes(0, 1);
+        assertEquals(2, pushService.pushOutbox.size());
+
+        pushClient.statusCode = 200;
+        pushService.push(subscription, journey("1", "v2"));
+        pushService.push(subscription, journey("2", "v2"));
+        awaitPushes(0, 2);
+        assertEquals(0, pushService.pushOutbox.size());
+        assertEquals(asList(HttpStatus.INTERNAL_SERVER_ERROR, HttpStatus.OK), responses);
+        pushService.shutdown();
+    }
+
+    @Test
+    public void pushesAgainAfterATransientFailureWithoutAnOutbox() throws Exception {
+        Subscription subscription = subscription("1", false);
+
+        pushClient.statusCode = 500;
+        pushService.push(subscription, journey("1", "v1"));
+        awaitPushes();
+        //the failed push can't be retried, so the same version is not taken for a duplicate:
+        pushClient.statusCode = 200;
+        pushService.push(subscription, journey("1", "v1"));
+        awaitPushes();
+        assertEquals(2, pushClient.posted.size());
+
+        pushService.push(subscription, journey("1", "v1"));
+        awaitPushes();
+        assertEquals(2, pushClient.posted.size());
+        pushService.shutdown();
+    }
+
+    @Test
+    public void skipsPushesWhileTheCircuitIsOpen() throws Exception {
+        pushService.configurePushCircuitBreaker(new ConcurrentHashMap<>(), 1, Duration.ofSeconds(30));
+        Subscription subscription = subscription("1", false);
+
+        pushClient.statusCode = 500;
+        pushService.push(subscription, journey("1", "v1"));
+        awaitPushes();
+        pushService.push(subscription, journey("1", "v2"));
+        awaitPushes();
+        assertEquals(1, pushClient.posted.size());
+        //the skipped push does not count as another failed push to the subscription:
+        assertEquals(asList(HttpStatus.INTERNAL_SERVER_ERROR), responses);
+
+        //a probe gets through when the circuit has been open long enough:
+        now.addAndGet(Duration.ofSeconds(30).toMillis());
+        pushClient.statusCode = 200;
+        pushService.push(subscription, journey("1", "v3"));
+        awaitPushes();
+        assertEquals(2, pushClient.posted.size());
+        assertEquals("<EstimatedVehicleJourney>1 v3</EstimatedVehicleJourney>", pushClient.posted.get(1));
+        assertEquals(asList(HttpStatus.INTERNAL_SERVER_ERROR, HttpStatus.OK), responses);
+        pushService.shutdown();
+    }
+
+    @Test
+    public void movesWaitingPushesToTheOutboxOnShutdown() throws Exception {
+        pushService.configurePushLimits(1, 1, 100, DataSize.ofMegabytes(1));
+        pushService.configurePushOutbox(directory.toString(), DataSize.ofMegabytes(64));
+        Subscription coalescing = subscription("1", true);
+        coalescing.setCoalesceMaxDelay(Duration.ofMinutes(1));
+        Subscription queued = subscription("2", false);
+        when(dataStorageService.getSubscription("2")).thenReturn(queued);
+
+        //the first push never gets a response, so the next one waits for the push limiter:
+        pushClient.respond = false;
+        pushService.push(coalescing, journey("1", "v1"));
+        pushService.push(queued, journey("2", "v1"));
+        pushService.push(queued, journey("3", "v1"));
+        awaitPushes(2, 1);
+        pushService.shutdown();
+
+        PushOutbox outbox = new PushOutbox(directory, PushOutbox.DEFAULT_SEGMENT_SIZE, DataSize.ofMegabytes(64).toBytes(), now::get);
+        assertEquals(2, outbox.size());
+        outbox.close();
+    }
+
+    private void awaitPushes() throws InterruptedException {
+        awaitPushes(0, pushClient.posted.size());
+    }
+
+    private void awaitPushes(int active, int posted) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5_000;
+        while (pushService.getActivePushes() != active || pushClient.posted.size() < posted) {
+            assertTrue(System.currentTimeMillis() < timeout, "Pushes did not finish in time");
+            Thread.sleep(10);
+        }
+    }
+
+    private static Subscription subscription(String id, boolean useSiriSubscriptionModel) {
+        Subscription subscription = new Subscription();
+        subscription.setId(id);
+        subscription.setPushAddress("http://localhost:8080/push");
+        subscription.setUseSiriSubscriptionModel(useSiriSubscriptionModel);
+        return subscription;
+    }
+
+    /**
+     * The data source stands in for the journey's content, so a new version gets another body and checksum.
+     */
+    private PushPayload journey(String id, String version) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+        datedVehicleJourneyRef.setValue(id);
+        journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        journey.setDataSource(version);
+        return new PushPayload(journey, ZonedDateTime.now(), siriMarshaller);
+    }
+
+    private static String marshall(Object element) {
+        if (element instanceof Siri) {
+            StringBuilder siri = new StringBuilder("<Siri>");
+            for (EstimatedTimetableDeliveryStructure delivery : ((Siri) element).getServiceDelivery().getEstimatedTimetableDeliveries()) {
+                for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                    for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+                        siri.append(marshall(journey));
+                    }
+                }
+            }
+            return siri.append("</Siri>").toString();
+        }
+        EstimatedVehicleJourney journey = (EstimatedVehicleJourney) element;
+        return "<EstimatedVehicleJourney>" + journey.getDatedVehicleJourneyRef().getValue() + " " + journey.getDataSource() + "</EstimatedVehicleJourney>";
+    }
+
+    /**
+     * Answers every push with the status code set, or never answers at all.
+     */
+    private static class StubPushClient extends PushClient {
+        private final List<String> posted = new CopyOnWriteArrayList<>();
+        private volatile int statusCode = 200;
+        private volatile boolean respond = true;
+
+        StubPushClient() {
+            super(false, PushClient.DEFAULT_CONNECT_TIMEOUT, PushClient.DEFAULT_REQUEST_TIMEOUT);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        CompletableFuture<HttpResponse<Void>> post(String pushAddress, byte[] body, boolean gzipped) {
+            posted.add(new String(body, StandardCharsets.UTF_8));
+            if (!respond) {
+                return new CompletableFuture<>();
+            }
+            HttpResponse<Void> response = mock(HttpResponse.class);
+            when(response.statusCode()).thenReturn(statusCode);
+            when(response.version()).thenReturn(HttpClient.Version.HTTP_1_1);
+            return CompletableFuture.completedFuture(response);
+        }
+    }
+}
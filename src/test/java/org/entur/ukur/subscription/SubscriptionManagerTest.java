@@ -39,8 +39,10 @@ public class SubscriptionManagerTest {
     public void testQuayToStopPlaceMapping() throws JAXBException {
         DataStorageService storageMock = mock(DataStorageService.class);
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
-        SubscriptionManager subscriptionManager = new SubscriptionManager(storageMock,
-                new SiriMarshaller(), new MetricsService(), new HashMap<>(), new HashMap<>(), mappingMock);
+        SiriMarshaller siriMarshaller = new SiriMarshaller();
+        MetricsService metricsService = new MetricsService();
+        SubscriptionManager subscriptionManager = new SubscriptionManager(storageMock, siriMarshaller, metricsService,
+                new HashMap<>(), new PushService(storageMock, siriMarshaller, metricsService, new HashMap<>()), mappingMock);
 
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:1")).thenReturn("NSR:StopPlace:1");
         Subscription s1 = new Subscription();
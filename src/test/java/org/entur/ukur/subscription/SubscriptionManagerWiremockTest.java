@@ -116,7 +116,7 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         HazelcastInstance hazelcastInstance = new TestHazelcastInstanceFactory().newHazelcastInstance();
         ITopic<String> subscriptionTopic = hazelcastInstance.getTopic("subscriptions");
         MetricsService metricsService = new MetricsService();
-        dataStorageService = new DataStorageService(datastore, subscriptionTopic);
+        dataStorageService = new DataStorageService(datastore, subscriptionTopic, metricsService);
 
         HashMap<String, Collection<String>> stopPlacesAndQuays = new HashMap<>();
         stopPlacesAndQuays.put("NSR:StopPlace:1", Sets.newHashSet("NSR:Quay:232"));
@@ -128,7 +128,7 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
                 siriMarshaller,
                 metricsService,
                 new HashMap<>(),
-                new HashMap<>(),
+                new PushService(dataStorageService, siriMarshaller, metricsService, new HashMap<>()),
                 quayAndStopPlaceMappingService);
     }
 